@@ -0,0 +1,59 @@
+/**
+ *  LedgerBenchmark.java measures Ledger.add over a given number of
+ *  accounts. Run it with -t N to see how the segments hold up under
+ *  N threads adding at once.
+ */
+package ethereumcontract;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LedgerBenchmark {
+
+    @Param({"1000", "1000000"})
+    int accounts;
+
+    Ledger ledger;
+    long[] idHigh, idMiddle;
+    int[] idLow;
+
+    @Setup
+    public void setup() {
+        ledger = new Ledger();
+        idHigh = new long[accounts];
+        idMiddle = new long[accounts];
+        idLow = new int[accounts];
+        Random rnd = new Random(42);
+        for (int i = 0; i < accounts; i++) {
+            idHigh[i] = rnd.nextLong();
+            idMiddle[i] = rnd.nextLong();
+            idLow[i] = rnd.nextInt();
+            ledger.add(idHigh[i], idMiddle[i], idLow[i], 1);
+        }
+    }
+
+    /**
+     * The delta of the next add of one benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Delta {
+        long delta = 1;
+    }
+
+    @Benchmark
+    public long add(Delta next) {
+        int i = ThreadLocalRandom.current().nextInt(accounts);
+        // each thread alternates +1 and -1, so the balances stay near 1
+        next.delta = -next.delta;
+        return ledger.add(idHigh[i], idMiddle[i], idLow[i], next.delta);
+    }
+}
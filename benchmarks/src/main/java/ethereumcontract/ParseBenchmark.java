@@ -0,0 +1,45 @@
+/**
+ *  ParseBenchmark.java measures the parsing of a request, a text line
+ *  and a binary frame, without the signature check.
+ */
+package ethereumcontract;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+    byte[] line;
+    byte[] body;
+    // reused like the view of a connection
+    VerifyingServerTCP.Request request = new VerifyingServerTCP.Request();
+
+    @Setup
+    public void setup() throws Exception {
+        SigningClientTCP signer = SigningClientTCP.generateKeys(new Random(42));
+        line = signer.request(100, "add").getBytes(StandardCharsets.UTF_8);
+        byte[] frame = signer.binaryRequest(100, "add");
+        // the server parses the frame without its 4 byte length
+        body = Arrays.copyOfRange(frame, 4, frame.length);
+    }
+
+    @Benchmark
+    public VerifyingServerTCP.Request parseText() {
+        return request.parse(line, 0, line.length);
+    }
+
+    @Benchmark
+    public BinaryProtocol.Request parseBinary() {
+        return BinaryProtocol.Request.parse(body);
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ *  RequestCheckBenchmark.java measures the two checks the server makes
+ *  before servicing a request. checkBeforeService is the usual path, the
+ *  id and key pair of the client is already in the IdentityCache.
+ *  checkIdentity is the work a cache miss adds: hashing the key to the id
+ *  and parsing n.
+ */
+package ethereumcontract;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestCheckBenchmark {
+
+    String message;
+    String signature;
+    String id;
+    String publicKey;
+
+    @Setup
+    public void setup() throws Exception {
+        // keep the checks quiet
+        Log.setLevel(Log.Level.WARN);
+        SigningClientTCP signer = SigningClientTCP.generateKeys(new Random(42));
+        String line = signer.request(100, "add");
+        int split = line.indexOf(';');
+        message = line.substring(0, split);
+        signature = line.substring(split + 1);
+        id = signer.idStr;
+        publicKey = signer.publicKey;
+        // fill the cache
+        VerifyingServerTCP.checkBeforeService(message, signature);
+    }
+
+    @Benchmark
+    public boolean checkBeforeService() throws Exception {
+        return VerifyingServerTCP.checkBeforeService(message, signature);
+    }
+
+    @Benchmark
+    public IdentityCache.Identity checkIdentity() throws Exception {
+        return VerifyingServerTCP.checkIdentity(id, publicKey);
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ *  SignBenchmark.java measures the signing of the client, through the CRT
+ *  and with plain m^d mod n, for a few key and message sizes.
+ *
+ *  It is in package ethereumcontract so that it can build signers from the
+ *  same primes with and without the CRT parameters.
+ */
+package ethereumcontract;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SignBenchmark {
+
+    // size of p and q, the modulus is twice as long
+    @Param({"1024", "2048"})
+    int primeBits;
+
+    // length of the signed message, a text request is about 1300 bytes
+    @Param({"64", "1400"})
+    int messageSize;
+
+    SigningClientTCP crt;
+    SigningClientTCP plain;
+    byte[] message;
+
+    @Setup
+    public void setup() throws Exception {
+        Random rnd = new Random(42);
+        crt = SigningClientTCP.generateKeys(rnd, primeBits);
+        // same key, but without p and q the signer falls back to m^d mod n
+        plain = new SigningClientTCP(crt.e, crt.d, crt.n);
+        message = new byte[messageSize];
+        rnd.nextBytes(message);
+    }
+
+    @Benchmark
+    public BigInteger signCrt() throws Exception {
+        return crt.sign(message, 0, message.length);
+    }
+
+    @Benchmark
+    public BigInteger signPlain() throws Exception {
+        return plain.sign(message, 0, message.length);
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ *  VerifyBenchmark.java measures the signature check of the server: the
+ *  generic VerifyingServerTCP.verify on the text of a request and on its
+ *  bytes, and FixedExponentVerifier, which the server uses for e = 65537.
+ */
+package ethereumcontract;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VerifyBenchmark {
+
+    @Param({"1024", "2048"})
+    int primeBits;
+
+    VerifyingServerTCP verifier;
+    FixedExponentVerifier fixedExponent;
+    String message;
+    String signature;
+    byte[] messageBytes;
+    BigInteger signatureValue;
+
+    @Setup
+    public void setup() throws Exception {
+        SigningClientTCP signer = SigningClientTCP.generateKeys(new Random(42), primeBits);
+        verifier = new VerifyingServerTCP(signer.e, signer.n);
+        fixedExponent = new FixedExponentVerifier(signer.n);
+        String line = signer.request(100, "add");
+        int split = line.indexOf(';');
+        message = line.substring(0, split);
+        signature = line.substring(split + 1);
+        messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        signatureValue = new BigInteger(signature);
+    }
+
+    @Benchmark
+    public boolean verifyText() throws Exception {
+        return verifier.verify(message, signature);
+    }
+
+    @Benchmark
+    public boolean verifyBytes() throws Exception {
+        return verifier.verify(messageBytes, 0, messageBytes.length, signatureValue);
+    }
+
+    @Benchmark
+    public boolean verifyFixedExponent() {
+        return fixedExponent.verify(messageBytes, 0, messageBytes.length, signatureValue);
+    }
+}
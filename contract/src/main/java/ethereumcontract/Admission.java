@@ -0,0 +1,222 @@
+/**
+ *  Admission.java decides which requests the server takes on when it
+ *  cannot serve all of them, so the clients that behave keep getting
+ *  replies at a steady latency while others flood it.
+ *
+ *  - Verification slots: at most --verify-slots RSA checks run at once
+ *    (one per core by default). A request that cannot get a slot within
+ *    --max-wait-ms (100 by default) is not verified at all and gets the
+ *    reply "busy" (status STATUS_BUSY in the binary protocol), so the
+ *    queue in front of the CPU never grows past what it clears in that
+ *    time. Session lines need no slot, their HMAC is cheap.
+ *  - Per connection: --conn-rate=R requests per second with bursts of
+ *    --conn-burst=B (R by default). Checked before a line is even parsed,
+ *    a line over the limit gets "busy".
+ *  - Per client id: --id-rate=R and --id-burst=B, the same for all the
+ *    connections of one client, text and binary, as the buckets are kept
+ *    by the 20 byte ledger id apart from the identity cache. Checked after
+ *    the request is verified, so requests forged with the id of someone
+ *    else cannot use up their tokens. A bucket that has filled up again is
+ *    dropped, the next request of its client gets a new, full one.
+ *
+ *  "busy" means the request was not carried out and may be sent again.
+ *  The rate limits are off unless given.
+ */
+
+package ethereumcontract;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class Admission {
+
+    // reply line of a request that was turned away
+    public static final byte[] BUSY_REPLY = "busy\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Thrown where a request is turned away, the caller replies "busy".
+     * One shared instance without a stack trace, it is thrown under overload.
+     */
+    public static final class BusyException extends RuntimeException {
+        private BusyException() {
+            super("busy", null, false, false);
+        }
+    }
+
+    static final BusyException BUSY = new BusyException();
+
+    /**
+     * A token bucket: rate tokens per second, at most burst of them.
+     */
+    public static final class TokenBucket {
+        private final double rate;
+        private final double burst;
+        private double tokens;
+        private long refilled = System.nanoTime();
+
+        TokenBucket(double rate, double burst) {
+            this.rate = rate;
+            this.burst = burst;
+            this.tokens = burst;
+        }
+
+        /**
+         * @return true if a token was taken, false if the bucket is empty
+         */
+        public synchronized boolean tryTake() {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilled) * rate / 1e9);
+            refilled = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        /**
+         * @return true if the bucket has filled up by now, so a new one
+         *         would take the same requests
+         */
+        synchronized boolean isFull(long now) {
+            return tokens + (now - refilled) * rate / 1e9 >= burst;
+        }
+    }
+
+    /**
+     * The ledger id of a client, what the id buckets are kept by.
+     */
+    private record IdKey(long idHigh, long idMiddle, int idLow) {
+    }
+
+    private static Semaphore verifySlots = new Semaphore(Runtime.getRuntime().availableProcessors());
+    private static long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private static double connectionRate, connectionBurst;
+    private static double idRate, idBurst;
+
+    // the buckets of the client ids; a bucket is only changed and dropped
+    // inside compute, so a token is never taken from a dropped one
+    private static final ConcurrentHashMap<IdKey, TokenBucket> idBuckets = new ConcurrentHashMap<>();
+    // System.nanoTime() of the next sweep for full buckets
+    private static final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+
+    // requests turned away, by reason
+    static final LongAdder shed = new LongAdder();
+    static final LongAdder connectionLimited = new LongAdder();
+    static final LongAdder idLimited = new LongAdder();
+
+    private Admission() {
+    }
+
+    /**
+     * Reads the admission options, before the server takes any request.
+     */
+    static void configure(String[] args) {
+        int slots = Integer.parseInt(VerifyingServerTCP.option(args, "verify-slots",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        verifySlots = new Semaphore(slots);
+        maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(VerifyingServerTCP.option(args, "max-wait-ms", "100")));
+        connectionRate = Double.parseDouble(VerifyingServerTCP.option(args, "conn-rate", "0"));
+        connectionBurst = Double.parseDouble(VerifyingServerTCP.option(args, "conn-burst", String.valueOf(connectionRate)));
+        idRate = Double.parseDouble(VerifyingServerTCP.option(args, "id-rate", "0"));
+        idBurst = Double.parseDouble(VerifyingServerTCP.option(args, "id-burst", String.valueOf(idRate)));
+        // the sweeps follow the new rate from now on
+        nextSweep.set(System.nanoTime());
+        if (slots < 1 || connectionBurst < 0 || idBurst < 0) {
+            throw new IllegalArgumentException("--verify-slots must be positive, the bursts must not be negative");
+        }
+    }
+
+    /**
+     * @return a bucket for a new connection, null if connections are not limited
+     */
+    static TokenBucket connectionBucket() {
+        return connectionRate > 0 ? new TokenBucket(connectionRate, Math.max(1, connectionBurst)) : null;
+    }
+
+
+    /**
+     * Takes a token of a connection for one line.
+     * @param bucket the bucket of the connection, or null
+     * @return false if the line is over the limit and gets "busy"
+     */
+    static boolean admitLine(TokenBucket bucket) {
+        if (bucket == null || bucket.tryTake()) {
+            return true;
+        }
+        connectionLimited.increment();
+        return false;
+    }
+
+    /**
+     * Takes a token of a verified client for one request.
+     * @throws BusyException if the client is over its limit
+     */
+    static void admit(IdentityCache.Identity identity) {
+        if (idRate <= 0) {
+            return;
+        }
+        boolean[] taken = new boolean[1];
+        idBuckets.compute(new IdKey(identity.idHigh, identity.idMiddle, identity.idLow), (id, bucket) -> {
+            if (bucket == null) {
+                bucket = new TokenBucket(idRate, Math.max(1, idBurst));
+            }
+            taken[0] = bucket.tryTake();
+            return bucket;
+        });
+        sweepIdBuckets();
+        if (!taken[0]) {
+            idLimited.increment();
+            throw BUSY;
+        }
+    }
+
+    /**
+     * Drops the buckets that have filled up, about once per time it takes
+     * a bucket to fill and at most once a second, on one thread at a time.
+     */
+    private static void sweepIdBuckets() {
+        long now = System.nanoTime();
+        long next = nextSweep.get();
+        long fillNanos = (long) (Math.max(1, idBurst) / idRate * 1e9);
+        if (now - next < 0 || !nextSweep.compareAndSet(next, now + Math.max(fillNanos, TimeUnit.SECONDS.toNanos(1)))) {
+            return;
+        }
+        for (IdKey id : idBuckets.keySet()) {
+            idBuckets.computeIfPresent(id, (key, bucket) -> bucket.isFull(now) ? null : bucket);
+        }
+    }
+
+    /**
+     * @return number of client ids with a bucket
+     */
+    static int idBuckets() {
+        return idBuckets.size();
+    }
+
+    /**
+     * Waits for a verification slot, release it with endVerification().
+     * @throws BusyException if no slot frees up in time
+     */
+    static void beginVerification() {
+        boolean acquired;
+        try {
+            acquired = verifySlots.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            shed.increment();
+            throw BUSY;
+        }
+    }
+
+    static void endVerification() {
+        verifySlots.release();
+    }
+}
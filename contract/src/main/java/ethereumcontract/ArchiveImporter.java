@@ -0,0 +1,312 @@
+/**
+ *  ArchiveImporter.java checks and applies a file of signed request lines
+ *  offline, the way a node imports blocks: no socket, no replies, every
+ *  core busy with signatures. It is started with
+ *
+ *      VerifyingServerTCP --mode=import --file=requests.txt
+ *
+ *  The file holds request lines as SigningClientTCP.RSA makes them,
+ *  "message;signature", one per line, batch requests included. The file is
+ *  memory-mapped and cut into blocks of whole lines (--block-kb=N, 1024 by
+ *  default). The lines of a block are parsed and checked like
+ *  checkBeforeService does, on --threads=N threads (one per core by
+ *  default), while earlier blocks are applied. The valid requests are then
+ *  carried out in file order with VerifyingServerTCP.execute, exactly as
+ *  the server would have, so the result does not depend on the number of
+ *  threads. At most two blocks per thread are read ahead.
+ *
+ *  A line is rejected when it cannot be parsed, its key does not hash to
+ *  its id, its signature does not verify, or it would overflow a balance;
+ *  session lines need a connection and are rejected too. Blank lines are
+ *  skipped. The rejected lines go to --rejects=FILE with their line number
+ *  and reason, or the first few of them to the console. The final balances
+ *  go to --balances=FILE as "id,balance" lines, or to the console. A
+ *  summary with the counts and the rate ends the run.
+ *
+ *  With --data-dir=DIR the lines are applied to the ledger kept there by
+ *  WriteAheadLog, restored first and logged as they are applied, which
+ *  catches a server's ledger up from an archive. --identity-cache=N sizes
+ *  the identity cache, worth raising for archives of many clients.
+ */
+
+package ethereumcontract;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ArchiveImporter {
+
+    // the file is mapped this much at a time, a line cut by the end of a
+    // window is read again from the next one
+    static final long WINDOW = 1L << 30;
+    // rejected lines shown on the console without --rejects
+    static final int SHOWN_REJECTS = 10;
+
+    /**
+     * Whole lines of the file, checked together by one thread.
+     */
+    private static final class Block {
+        // number in the file of the first line of the block, from 1
+        final long firstLine;
+        final byte[] data;
+        int[] starts = new int[256];
+        int[] lengths = new int[256];
+        int count;
+        // per line, set by the check: the identity or why the line is rejected
+        IdentityCache.Identity[] identities;
+        String[] rejected;
+
+        Block(long firstLine, byte[] data) {
+            this.firstLine = firstLine;
+            this.data = data;
+            // the last line may have no terminator
+            int start = 0;
+            for (int i = 0; i <= data.length; i++) {
+                if (i == data.length ? i > start : data[i] == '\n') {
+                    int end = i > start && data[i - 1] == '\r' ? i - 1 : i;
+                    if (count == starts.length) {
+                        starts = Arrays.copyOf(starts, count * 2);
+                        lengths = Arrays.copyOf(lengths, count * 2);
+                    }
+                    starts[count] = start;
+                    lengths[count++] = end - start;
+                    start = i + 1;
+                }
+            }
+        }
+    }
+
+    private final Path file;
+    private final int threads;
+    private final int blockBytes;
+    private final PrintWriter rejects;
+    // true when rejects go to a file rather than the console
+    private final boolean rejectsToFile;
+
+    private long lines, applied, rejected, blank;
+
+    ArchiveImporter(Path file, int threads, int blockBytes, PrintWriter rejects, boolean rejectsToFile) {
+        this.file = file;
+        this.threads = threads;
+        this.blockBytes = blockBytes;
+        this.rejects = rejects;
+        this.rejectsToFile = rejectsToFile;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String fileArg = VerifyingServerTCP.option(args, "file", null);
+        if (fileArg == null) {
+            throw new IllegalArgumentException("--mode=import needs --file=FILE");
+        }
+        int threads = Integer.parseInt(VerifyingServerTCP.option(args, "threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int blockBytes = Integer.parseInt(VerifyingServerTCP.option(args, "block-kb", "1024")) * 1024;
+        Log.setLevel(Log.Level.valueOf(VerifyingServerTCP.option(args, "log-level", "INFO").toUpperCase()));
+        VerifyingServerTCP.identityCache = new IdentityCache(
+                Integer.parseInt(VerifyingServerTCP.option(args, "identity-cache", "10000")));
+
+        String dataDir = VerifyingServerTCP.option(args, "data-dir", null);
+        if (dataDir != null) {
+            VerifyingServerTCP.wal = WriteAheadLog.open(Paths.get(dataDir), VerifyingServerTCP.ledger,
+                    WriteAheadLog.fileSize(VerifyingServerTCP.option(args, "wal-file-mb", "64")),
+                    Integer.parseInt(VerifyingServerTCP.option(args, "snapshot-interval", "300")));
+            Log.info("Recovered " + VerifyingServerTCP.ledger.size() + " accounts from " + dataDir);
+        }
+
+        String rejectsArg = VerifyingServerTCP.option(args, "rejects", null);
+        String balancesArg = VerifyingServerTCP.option(args, "balances", null);
+        try (PrintWriter rejects = writer(rejectsArg)) {
+            ArchiveImporter importer = new ArchiveImporter(Paths.get(fileArg), threads, blockBytes,
+                    rejects, rejectsArg != null);
+            long start = System.nanoTime();
+            importer.run();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            rejects.flush();
+
+            try (PrintWriter balances = writer(balancesArg)) {
+                VerifyingServerTCP.ledger.forEach((idHigh, idMiddle, idLow, balance) ->
+                        balances.append(Ledger.idString(idHigh, idMiddle, idLow)).append(',')
+                                .append(Long.toString(balance)).append('\n'));
+            }
+            System.out.printf(Locale.ROOT, "lines=%d applied=%d rejected=%d blank=%d accounts=%d elapsed=%.1fs rate=%.0f lines/s%n",
+                    importer.lines, importer.applied, importer.rejected, importer.blank,
+                    VerifyingServerTCP.ledger.size(), seconds, importer.lines / seconds);
+        }
+    }
+
+    /**
+     * @return a writer to the file, or to the console without one, which
+     *         is then left open when the writer is closed
+     */
+    private static PrintWriter writer(String file) throws IOException {
+        if (file == null) {
+            return new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))) {
+                @Override
+                public void close() {
+                    flush();
+                }
+            };
+        }
+        return new PrintWriter(Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads the file block by block, checks the blocks on the pool and
+     * applies them in order.
+     */
+    void run() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        // blocks being checked, in file order
+        Queue<CompletableFuture<Block>> inFlight = new ArrayDeque<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long pos = 0;
+            long nextLine = 1;
+            while (pos < size) {
+                long windowLength = Math.min(WINDOW, size - pos);
+                boolean last = pos + windowLength == size;
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, windowLength);
+                int off = 0;
+                while (off < windowLength) {
+                    int end = blockEnd(window, off, (int) windowLength, last);
+                    if (end < 0) {
+                        // the line goes on past the window, map again from it
+                        break;
+                    }
+                    byte[] data = new byte[end - off];
+                    window.get(off, data);
+                    Block block = new Block(nextLine, data);
+                    nextLine += block.count;
+                    off = end;
+
+                    if (inFlight.size() >= 2 * threads) {
+                        apply(inFlight.remove().join());
+                    }
+                    inFlight.add(CompletableFuture.supplyAsync(() -> check(block), pool));
+                }
+                if (off == 0) {
+                    throw new IOException("Line at byte " + pos + " of " + file + " is longer than " + WINDOW + " bytes");
+                }
+                pos += off;
+            }
+            while (!inFlight.isEmpty()) {
+                apply(inFlight.remove().join());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return the end of the block starting at off, after the last line
+     *         terminator within blockBytes, or after the first one if the
+     *         line is longer than that; -1 if the window ends first
+     */
+    private int blockEnd(MappedByteBuffer window, int off, int windowLength, boolean last) {
+        int limit = (int) Math.min(windowLength, (long) off + blockBytes);
+        for (int i = limit - 1; i >= off; i--) {
+            if (window.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        for (int i = limit; i < windowLength; i++) {
+            if (window.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        // the end of the file ends the last line too
+        return last ? windowLength : -1;
+    }
+
+    /**
+     * Parses and checks every line of a block, on a pool thread.
+     */
+    private static Block check(Block block) {
+        block.identities = new IdentityCache.Identity[block.count];
+        block.rejected = new String[block.count];
+        VerifyingServerTCP.Request request = new VerifyingServerTCP.Request();
+        for (int i = 0; i < block.count; i++) {
+            if (block.lengths[i] == 0) {
+                continue;
+            }
+            try {
+                request.parse(block.data, block.starts[i], block.lengths[i]);
+                if (request.sequence >= 0 || request.operation == Operation.SESSION) {
+                    block.rejected[i] = "session lines need a connection";
+                    continue;
+                }
+                // the threads of the pool are what bounds the checks here
+                block.identities[i] = VerifyingServerTCP.checkRequest(request, false);
+                if (block.identities[i] == null) {
+                    block.rejected[i] = "id or signature does not verify";
+                }
+            } catch (IllegalArgumentException e) {
+                ServerMetrics.malformedRequests.increment();
+                block.rejected[i] = "malformed, " + e.getMessage();
+            } catch (Exception e) {
+                block.rejected[i] = e.toString();
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Carries out the valid lines of a checked block in order.
+     */
+    private void apply(Block block) throws Exception {
+        VerifyingServerTCP.Request request = new VerifyingServerTCP.Request();
+        for (int i = 0; i < block.count; i++) {
+            lines++;
+            if (block.lengths[i] == 0) {
+                blank++;
+                continue;
+            }
+            String reason = block.rejected[i];
+            if (reason == null) {
+                try {
+                    request.parse(block.data, block.starts[i], block.lengths[i]);
+                    VerifyingServerTCP.execute(request, block.identities[i]);
+                    applied++;
+                    continue;
+                } catch (ArithmeticException e) {
+                    reason = "would overflow the balance";
+                } catch (IllegalStateException e) {
+                    // an account of another shard, or a read replica
+                    reason = e.getMessage();
+                }
+            }
+            reject(block.firstLine + i, reason, block, i);
+        }
+        // one wait for the log of the whole block
+        VerifyingServerTCP.awaitDurable();
+    }
+
+    private void reject(long line, String reason, Block block, int i) {
+        rejected++;
+        if (rejectsToFile) {
+            rejects.append(Long.toString(line)).append('\t').append(reason).append('\t')
+                    .append(new String(block.data, block.starts[i], block.lengths[i], StandardCharsets.UTF_8))
+                    .append('\n');
+        } else if (rejected <= SHOWN_REJECTS) {
+            rejects.printf("Rejected line %d: %s%n", line, reason);
+        } else if (rejected == SHOWN_REJECTS + 1) {
+            rejects.println("More lines rejected, give --rejects=FILE to list them all");
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ *  BatchVerifier.java verifies request lines in batches on all cores.
+ *
+ *  Connections submit request lines as they read them and get a future for
+ *  the reply. A single dispatcher thread takes every line that is waiting,
+ *  up to maxBatch of them, and runs the id check and the RSA verification
+ *  of the whole batch in parallel on a fork-join pool. It then applies the
+ *  verified operations to the ledger one by one in the order the lines were
+ *  submitted, so the updates of every account keep their arrival order.
+ *  With a write-ahead log the batch waits for one commit of all its
+ *  updates before any of its replies is sent.
+ *
+ *  No time is spent waiting for a batch to fill up: when the server is
+ *  quiet a batch holds a single line, under load the lines that arrive
+ *  while one batch is verified make up the next one.
+ *
+ *  A connection submits its lines through its Lines, which keeps its
+ *  replies in order. A session line (see Session) is checked against the
+ *  lines before it, so it does not join a batch: it waits for their
+ *  replies and is serviced on an executor of its own, never on the
+ *  dispatcher, whose batches would all wait for its commit otherwise. The
+ *  lines after it wait in turn until every reply before them is in, so the
+ *  lines of a connection are applied in the order they came in even around
+ *  a session line.
+ *
+ *  At most maxQueued lines wait for a batch; a line submitted beyond that,
+ *  or one that finds no verification slot in time (see Admission), is
+ *  answered "busy" instead of making every later line wait longer.
+ */
+
+package ethereumcontract;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+public class BatchVerifier {
+
+    /**
+     * A submitted line waiting for its reply.
+     */
+    private static final class Pending {
+        final byte[] data;
+        final CompletableFuture<byte[]> reply = new CompletableFuture<>();
+        final long submitted = System.nanoTime();
+        final VerifyingServerTCP.Request request = new VerifyingServerTCP.Request();
+        // set when the request passed the checks
+        IdentityCache.Identity identity;
+        // set when the request was turned away instead of checked
+        boolean busy;
+
+        Pending(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    private final BlockingQueue<Pending> queue;
+    private final ForkJoinPool pool;
+    // services the session lines, which wait for their commit; at most
+    // one per connection at a time
+    private final ExecutorService sessions = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "batch-session");
+        t.setDaemon(true);
+        return t;
+    });
+    private final int maxBatch;
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder lines = new LongAdder();
+
+    /**
+     * Starts the dispatcher thread.
+     * @param parallelism number of threads verifying signatures
+     * @param maxBatch largest number of lines verified together
+     * @param maxQueued largest number of lines waiting for a batch
+     */
+    public BatchVerifier(int parallelism, int maxBatch, int maxQueued) {
+        this.queue = new LinkedBlockingQueue<>(maxQueued);
+        this.pool = new ForkJoinPool(parallelism);
+        this.maxBatch = maxBatch;
+        Thread dispatcher = new Thread(this::dispatch, "batch-verifier");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Queues a request line for verification.
+     * @param data a request line "message;signature" without its terminator,
+     *             not to be changed until the reply is complete
+     * @return the reply line, the user's value, "error" or "busy"
+     */
+    public CompletableFuture<byte[]> submit(byte[] data) {
+        Pending pending = new Pending(data);
+        if (!queue.offer(pending)) {
+            Admission.shed.increment();
+            return CompletableFuture.completedFuture(Admission.BUSY_REPLY);
+        }
+        return pending.reply;
+    }
+
+    /**
+     * The lines of one connection, replied in the order they came in.
+     * Only the thread reading the connection submits to it.
+     */
+    public final class Lines {
+        private final Session session;
+        private final LedgerPipeline.Replies replies;
+        // completes once the reply of the last line submitted is handed on
+        private CompletableFuture<Void> lastReply = CompletableFuture.completedFuture(null);
+        // true from a session line until every reply before it is in
+        private boolean ordered;
+
+        private Lines(Session session, LedgerPipeline.Replies replies) {
+            this.session = session;
+            this.replies = replies;
+        }
+
+        /**
+         * Submits a line, its reply goes to the replies of the connection
+         * after those of the lines before it.
+         * @param line a request line without its terminator, not to be
+         *             changed until its reply is handed on
+         * @param admitted false to answer "busy" without looking at the line
+         */
+        public void submit(byte[] line, boolean admitted) {
+            CompletableFuture<byte[]> result;
+            if (!admitted) {
+                result = CompletableFuture.completedFuture(Admission.BUSY_REPLY);
+            } else if (Session.isSessionLine(line, 0, line.length)) {
+                result = lastReply.thenApplyAsync(done -> VerifyingServerTCP.service(
+                        new VerifyingServerTCP.Request(), session, line, 0, line.length), sessions);
+                ordered = true;
+            } else if (ordered && !lastReply.isDone()) {
+                // behind a session line, it joins a batch once every line
+                // before it is applied
+                result = lastReply.thenCompose(done -> BatchVerifier.this.submit(line));
+            } else {
+                ordered = false;
+                result = BatchVerifier.this.submit(line);
+            }
+            // runs on the dispatcher, which must never wait for a socket
+            lastReply = lastReply.thenCombine(result, (done, reply) -> {
+                replies.reply(reply);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * @param session session of the connection, checks its session lines
+     * @param replies where the replies of the connection go, called by
+     *                the dispatcher or a session thread
+     * @return the submitter of the lines of a new connection
+     */
+    public Lines lines(Session session, LedgerPipeline.Replies replies) {
+        return new Lines(session, replies);
+    }
+
+    /**
+     * @return average number of lines per batch so far
+     */
+    public double averageBatchSize() {
+        long b = batches.sum();
+        return b == 0 ? 0 : (double) lines.sum() / b;
+    }
+
+    private void dispatch() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, maxBatch - 1);
+            process(batch);
+            batches.increment();
+            lines.add(batch.size());
+            batch.clear();
+        }
+    }
+
+    /**
+     * Verifies a batch in parallel, then applies it in submission order.
+     */
+    private void process(List<Pending> batch) {
+        pool.submit(() -> IntStream.range(0, batch.size()).parallel().forEach(i -> verify(batch.get(i)))).join();
+
+        long t = System.nanoTime();
+        byte[][] replies = new byte[batch.size()][];
+        for (int i = 0; i < batch.size(); i++) {
+            Pending pending = batch.get(i);
+            if (pending.identity == null) {
+                replies[i] = pending.busy ? Admission.BUSY_REPLY : VerifyingServerTCP.ERROR_REPLY;
+                continue;
+            }
+            try {
+                Admission.admit(pending.identity);
+                replies[i] = VerifyingServerTCP.execute(pending.request, pending.identity);
+            } catch (Admission.BusyException e) {
+                replies[i] = Admission.BUSY_REPLY;
+            } catch (RuntimeException | IOException e) {
+                Log.debug("Error in request: " + e);
+                replies[i] = VerifyingServerTCP.ERROR_REPLY;
+            }
+        }
+
+        t = ServerMetrics.ledger.recordSince(t);
+
+        // one wait for the log of the whole batch
+        try {
+            VerifyingServerTCP.awaitDurable();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Arrays.fill(replies, VerifyingServerTCP.ERROR_REPLY);
+        }
+        ServerMetrics.commit.recordSince(t);
+        for (int i = 0; i < batch.size(); i++) {
+            ServerMetrics.request.recordSince(batch.get(i).submitted);
+            batch.get(i).reply.complete(replies[i]);
+        }
+    }
+
+    private static void verify(Pending pending) {
+        try {
+            long start = System.nanoTime();
+            pending.request.parse(pending.data, 0, pending.data.length);
+            ServerMetrics.parse.recordSince(start);
+            pending.identity = VerifyingServerTCP.checkRequest(pending.request);
+            if (pending.identity == null) {
+                Log.debug("Error in request");
+            }
+        } catch (Admission.BusyException e) {
+            pending.busy = true;
+        } catch (Exception e) {
+            ServerMetrics.malformedRequests.increment();
+            Log.debug("Error in request: " + e);
+            pending.identity = null;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ *  BinaryProtocol.java describes the compact binary framing spoken by
+ *  SigningClientTCP and VerifyingServerTCP next to the decimal text lines.
+ *
+ *  A client asks for the binary protocol by sending the MAGIC byte right
+ *  after connecting. Text requests always start with a digit or '-', so the
+ *  server tells the two apart from the first byte and old clients keep
+ *  working unchanged.
+ *
+ *  Request frame, all integers big-endian:
+ *
+ *      int32   length of the rest of the frame
+ *      uint8   opcode (OP_ADD, OP_MIN or OP_GET)
+ *      byte[20] client id, the raw least significant 20 bytes of the hash
+ *      uint16  length of the modulus
+ *      byte[]  modulus n, BigInteger.toByteArray()
+ *      int32   operand
+ *      uint16  length of the signature
+ *      byte[]  signature, BigInteger.toByteArray()
+ *
+ *  The signature is made exactly like the text one, over the SHA-256 of the
+ *  frame bytes from the opcode to the operand. The public exponent is always
+ *  65537 and is not sent. The id is the same one a text client with the same
+ *  key has, so both kinds of client share one ledger entry.
+ *
+ *  Reply frame: uint8 status (STATUS_OK, STATUS_ERROR or STATUS_BUSY),
+ *  int64 value. STATUS_BUSY means the server turned the request away
+ *  unverified (see Admission) and it may be sent again.
+ */
+
+package ethereumcontract;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public final class BinaryProtocol {
+
+    // first byte sent by a client that speaks the binary protocol
+    public static final int MAGIC = 0xEB;
+
+    public static final byte OP_ADD = 1;
+    public static final byte OP_MIN = 2;
+    public static final byte OP_GET = 3;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+    public static final byte STATUS_BUSY = 2;
+
+    // length of the raw client id
+    public static final int ID_LENGTH = 20;
+    // a 4096 bit key frame is about 1050 bytes, anything much bigger is rejected
+    public static final int MAX_FRAME = 4096;
+    // length of a reply frame
+    public static final int REPLY_LENGTH = 9;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * @param operation "add", "min" or "get"
+     * @return the opcode of the operation
+     */
+    public static byte opcode(String operation) {
+        switch (operation) {
+            case "add":
+                return OP_ADD;
+            case "min":
+                return OP_MIN;
+            case "get":
+                return OP_GET;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+
+    /**
+     * @param opcode an opcode read from a frame
+     * @return the operation, or null for an unknown opcode
+     */
+    public static Operation operation(byte opcode) {
+        switch (opcode) {
+            case OP_ADD:
+                return Operation.ADD;
+            case OP_MIN:
+                return Operation.MIN;
+            case OP_GET:
+                return Operation.GET;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Builds the signed part of a request frame: opcode, id, modulus and operand.
+     */
+    public static byte[] signedPart(byte opcode, byte[] id, byte[] modulus, int operand) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(ID_LENGTH + modulus.length + 8);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(opcode);
+            out.write(id);
+            out.writeShort(modulus.length);
+            out.write(modulus);
+            out.writeInt(operand);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // cannot happen with a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Builds a whole request frame from its signed part and the signature.
+     */
+    public static byte[] frame(byte[] signedPart, byte[] signature) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(signedPart.length + signature.length + 6);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(signedPart.length + 2 + signature.length);
+            out.write(signedPart);
+            out.writeShort(signature.length);
+            out.write(signature);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Builds a reply frame.
+     */
+    public static byte[] reply(byte status, long value) {
+        byte[] reply = new byte[REPLY_LENGTH];
+        reply[0] = status;
+        for (int i = 0; i < 8; i++) {
+            reply[1 + i] = (byte) (value >>> (56 - 8 * i));
+        }
+        return reply;
+    }
+
+    /**
+     * The fields of a request frame, as offsets into the frame body
+     * (the bytes after the length).
+     */
+    public static final class Request {
+        public final byte opcode;
+        public final int idOffset;
+        public final int modulusOffset, modulusLength;
+        public final int operand;
+        // the signed part starts at offset 0
+        public final int signedLength;
+        public final int signatureOffset, signatureLength;
+        // the operation of the opcode
+        public final Operation operation;
+
+        private Request(byte opcode, Operation operation, int idOffset, int modulusOffset, int modulusLength,
+                        int operand, int signedLength, int signatureOffset, int signatureLength) {
+            this.opcode = opcode;
+            this.idOffset = idOffset;
+            this.modulusOffset = modulusOffset;
+            this.modulusLength = modulusLength;
+            this.operand = operand;
+            this.signedLength = signedLength;
+            this.signatureOffset = signatureOffset;
+            this.signatureLength = signatureLength;
+            this.operation = operation;
+        }
+
+        /**
+         * @param body a frame without its length
+         * @return the fields of the frame
+         * @throws IllegalArgumentException if the frame is malformed
+         */
+        public static Request parse(byte[] body) {
+            int pos = 0;
+            byte opcode = body[pos++];
+            int idOffset = pos;
+            pos += ID_LENGTH;
+            int modulusLength = readShort(body, pos);
+            pos += 2;
+            int modulusOffset = pos;
+            pos += modulusLength;
+            int operand = readInt(body, pos);
+            pos += 4;
+            int signedLength = pos;
+            int signatureLength = readShort(body, pos);
+            pos += 2;
+            int signatureOffset = pos;
+            Operation operation = operation(opcode);
+            if (operation == null || pos + signatureLength != body.length) {
+                throw new IllegalArgumentException("Malformed binary request");
+            }
+            return new Request(opcode, operation, idOffset, modulusOffset, modulusLength, operand,
+                    signedLength, signatureOffset, signatureLength);
+        }
+
+        private static int readShort(byte[] b, int pos) {
+            checkBounds(b, pos, 2);
+            return ((b[pos] & 0xff) << 8) | (b[pos + 1] & 0xff);
+        }
+
+        private static int readInt(byte[] b, int pos) {
+            checkBounds(b, pos, 4);
+            return ((b[pos] & 0xff) << 24) | ((b[pos + 1] & 0xff) << 16)
+                    | ((b[pos + 2] & 0xff) << 8) | (b[pos + 3] & 0xff);
+        }
+
+        private static void checkBounds(byte[] b, int pos, int len) {
+            if (pos < 0 || pos + len > b.length) {
+                throw new IllegalArgumentException("Malformed binary request");
+            }
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ *  ClientKeyStore.java keeps the key pairs of clients in a file, so a
+ *  client keeps its id from one run to the next instead of generating new
+ *  keys, and a new id, every time it starts.
+ *
+ *  A key pair is stored as its two primes, everything else (n, d and the
+ *  CRT values) is derived from them by SigningClientTCP.fromPrimes. The
+ *  file is a sequence of records, each
+ *
+ *      int32 length of p, p as big-endian bytes,
+ *      int32 length of q, q as big-endian bytes
+ *
+ *  after the 4 byte magic "CKS1", about 520 bytes per pair of 2048 bit
+ *  primes. New pairs are appended. The file is memory-mapped when opened,
+ *  so opening a store of many pairs reads no more of it than the pairs
+ *  taken. It holds private keys: it is created readable by its owner only
+ *  where the file system supports that.
+ *
+ *  A crash in the middle of an append leaves part of a record at the end
+ *  of the file. Opening the store skips it, and the next add cuts it off
+ *  before appending, so the pairs stored before are not lost with it.
+ */
+
+package ethereumcontract;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ClientKeyStore {
+
+    private static final byte[] MAGIC = "CKS1".getBytes(StandardCharsets.US_ASCII);
+    // a prime longer than this is not from this store
+    private static final int MAX_PRIME_BYTES = 2048;
+
+    private final Path file;
+    // the file as it was when opened, null for a new store
+    private final MappedByteBuffer mapped;
+    // offset of each record, in mapped for the first mappedCount of them
+    private int[] offsets = new int[16];
+    private int mappedCount;
+    // length of the file up to the end of its last whole record, -1 when
+    // nothing follows that record
+    private long tornAt = -1;
+    // pairs added since the store was opened
+    private final List<SigningClientTCP> added = new ArrayList<>();
+
+    private ClientKeyStore(Path file, MappedByteBuffer mapped) throws IOException {
+        this.file = file;
+        this.mapped = mapped;
+        if (mapped != null) {
+            index();
+        }
+    }
+
+    /**
+     * Opens a store, an empty one if the file does not exist yet.
+     * @param file the keystore file
+     * @throws IOException if the file is not a keystore
+     */
+    public static ClientKeyStore open(Path file) throws IOException {
+        if (!Files.exists(file) || Files.size(file) == 0) {
+            return new ClientKeyStore(file, null);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            return new ClientKeyStore(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return number of key pairs in the store
+     */
+    public int size() {
+        return mappedCount + added.size();
+    }
+
+    /**
+     * @param index position of the pair in the store, the oldest is 0
+     * @return size of the primes of the pair in bits
+     */
+    public int primeBits(int index) {
+        if (index >= mappedCount) {
+            return added.get(index - mappedCount).p.bitLength();
+        }
+        return prime(offsets[index]).bitLength();
+    }
+
+    /**
+     * @param index position of the pair in the store, the oldest is 0
+     * @return a signer for the pair
+     */
+    public SigningClientTCP get(int index) throws Exception {
+        if (index >= mappedCount) {
+            return added.get(index - mappedCount);
+        }
+        int offset = offsets[index];
+        BigInteger p = prime(offset);
+        BigInteger q = prime(offset + 4 + mapped.getInt(offset));
+        return SigningClientTCP.fromPrimes(p, q);
+    }
+
+    /**
+     * Appends a key pair to the file, on disk when this returns.
+     * @param signer keys that know their primes, see generateKeys
+     */
+    public void add(SigningClientTCP signer) throws IOException {
+        if (signer.p == null || signer.q == null) {
+            throw new IllegalArgumentException("Only keys with their primes can be stored");
+        }
+        byte[] p = signer.p.toByteArray();
+        byte[] q = signer.q.toByteArray();
+        boolean created = !Files.exists(file);
+        if (created && FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            if (tornAt >= 0) {
+                // the rest of a record a crash cut short, see index()
+                channel.truncate(tornAt);
+                tornAt = -1;
+            }
+            ByteBuffer record = ByteBuffer.allocate((channel.size() == 0 ? MAGIC.length : 0) + 8 + p.length + q.length);
+            if (channel.size() == 0) {
+                record.put(MAGIC);
+            }
+            record.putInt(p.length).put(p).putInt(q.length).put(q).flip();
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            channel.force(false);
+        }
+        added.add(signer);
+    }
+
+    /**
+     * Key pairs for count clients with primes of primeBits: the ones of
+     * that size already in the store, oldest first, then new ones
+     * generated on all cores, which are added to the store.
+     * @param count number of key pairs wanted
+     * @param primeBits size of the primes in bits
+     * @return count signers, the same ones every run once they are stored
+     */
+    public List<SigningClientTCP> keys(int count, int primeBits) throws Exception {
+        List<SigningClientTCP> keys = new ArrayList<>(count);
+        for (int i = 0; i < size() && keys.size() < count; i++) {
+            if (primeBits(i) == primeBits) {
+                keys.add(get(i));
+            }
+        }
+        int missing = count - keys.size();
+        if (missing > 0) {
+            try (KeyPool pool = new KeyPool(primeBits, missing, Runtime.getRuntime().availableProcessors())) {
+                for (int i = 0; i < missing; i++) {
+                    SigningClientTCP signer = pool.take();
+                    add(signer);
+                    keys.add(signer);
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Finds the records of the mapped file. A record the file ends in the
+     * middle of, or zeros after the last record, are what an append cut
+     * short by a crash leaves; they are skipped.
+     */
+    private void index() throws IOException {
+        int limit = mapped.limit();
+        byte[] magic = new byte[Math.min(MAGIC.length, limit)];
+        mapped.get(0, magic);
+        if (!Arrays.equals(magic, Arrays.copyOf(MAGIC, magic.length))) {
+            throw new IOException(file + " is not a keystore");
+        }
+        if (limit < MAGIC.length) {
+            torn(0);
+            return;
+        }
+        int pos = MAGIC.length;
+        while (pos < limit) {
+            int start = pos;
+            for (int prime = 0; prime < 2; prime++) {
+                if (limit - pos < 4) {
+                    torn(start);
+                    return;
+                }
+                int length = mapped.getInt(pos);
+                if (length > MAX_PRIME_BYTES || length < 0 || length == 0 && !zerosFrom(pos)) {
+                    throw new IOException(file + " has a damaged key at byte " + start);
+                }
+                if (length == 0 || limit - pos - 4 < length) {
+                    torn(start);
+                    return;
+                }
+                pos += 4 + length;
+            }
+            if (mappedCount == offsets.length) {
+                offsets = Arrays.copyOf(offsets, mappedCount * 2);
+            }
+            offsets[mappedCount++] = start;
+        }
+    }
+
+    private void torn(int end) {
+        Log.warn("%s ends in the middle of a key at byte %d, the keys before it are kept", file, end);
+        tornAt = end;
+    }
+
+    /**
+     * @return true if the mapped file has only zeros from pos to its end
+     */
+    private boolean zerosFrom(int pos) {
+        for (int i = pos; i < mapped.limit(); i++) {
+            if (mapped.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the prime whose length is at offset in the mapped file
+     */
+    private BigInteger prime(int offset) {
+        byte[] magnitude = new byte[mapped.getInt(offset)];
+        mapped.get(offset + 4, magnitude);
+        return new BigInteger(magnitude);
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ *  FixedExponentVerifier.java verifies signatures made with the public
+ *  exponent every client uses, 65537, for one modulus. It is what the
+ *  server keeps per client in IdentityCache.
+ *
+ *  It accepts exactly the signatures from 1 to n - 1 that
+ *  VerifyingServerTCP.verify with e = 65537 accepts. Unlike that method it
+ *  refuses a signature outside that range without a modPow, as RSAVP1 of
+ *  RFC 8017 does. verify reduces such a signature mod n, so s + n passes
+ *  wherever s does, and 0 would pass for a digest of all zero bytes.
+ *  SigningClientTCP signs with modPow, so its signatures are always below
+ *  n and get the same answer both ways.
+ *
+ *  The work per request is reduced to what the check really needs:
+ *  - the SHA-256 digest comes from a per-thread pool instead of a
+ *    MessageDigest.getInstance lookup on every call;
+ *  - the message is hashed where it was received, never re-encoded;
+ *  - s^65537 mod n is compared with the digest bytes directly, without
+ *    building a padded copy of the digest and a second BigInteger.
+ *
+ *  The exponentiation itself stays on BigInteger.modPow. For an odd modulus
+ *  HotSpot already runs it as a Montgomery exponentiation on intrinsic
+ *  multiply and square kernels, and a plain Java Montgomery ladder with
+ *  the constants kept per modulus came out about three times slower.
+ */
+
+package ethereumcontract;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public final class FixedExponentVerifier {
+
+    // the public exponent of every client key
+    public static final BigInteger E = BigInteger.valueOf(65537);
+
+    // length of a SHA-256 digest
+    private static final int DIGEST_LENGTH = 32;
+
+    // MessageDigest is not thread-safe, each worker thread keeps its own
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final BigInteger n;
+
+    /**
+     * @param n modulus of the client key
+     */
+    public FixedExponentVerifier(BigInteger n) {
+        this.n = n;
+    }
+
+    /**
+     * Same as VerifyingServerTCP.verify(byte[], int, int, BigInteger) with
+     * e = 65537 for a signature from 1 to n - 1, false for any other.
+     * @param message bytes holding the message to check
+     * @param off start of the message
+     * @param len length of the message
+     * @param signature the signature
+     * @return true if the signature is the encrypted hash of the message
+     */
+    public boolean verify(byte[] message, int off, int len, BigInteger signature) {
+        // only a signature from 1 to n - 1 is accepted, see the top of the file
+        if (signature.signum() <= 0 || signature.compareTo(n) >= 0) {
+            return false;
+        }
+        MessageDigest md = SHA256.get();
+        md.update(message, off, len);
+        // digest() also resets md for the next call on this thread
+        byte[] digest = md.digest();
+
+        // Decrypt it
+        BigInteger decryptedHash = signature.modPow(E, n);
+
+        // the hash is compared as a positive number, so it cannot be
+        // longer than the digest
+        if (decryptedHash.bitLength() > DIGEST_LENGTH * 8) {
+            return false;
+        }
+        byte[] decrypted = decryptedHash.toByteArray();
+        // toByteArray() has a leading 0 byte when the top bit is set and
+        // drops leading zero bytes of the digest
+        int skip = decrypted.length > DIGEST_LENGTH ? decrypted.length - DIGEST_LENGTH : 0;
+        int pad = DIGEST_LENGTH - (decrypted.length - skip);
+        for (int i = 0; i < pad; i++) {
+            if (digest[i] != 0) {
+                return false;
+            }
+        }
+        for (int i = pad; i < DIGEST_LENGTH; i++) {
+            if (digest[i] != decrypted[skip + i - pad]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ *  IdentityCache.java remembers client identities the server has already
+ *  verified. An identity is the binding between a client id and its public
+ *  key: the key hashes to the id, so the server does not need to hash the
+ *  key again, and the modulus is already parsed into a verifier, so the
+ *  server does not need to parse the ~1233 digit decimal again.
+ *
+ *  Entries are keyed by the exact bytes of the id and the public key as
+ *  sent by the client, so a cached identity is only used for a request that
+ *  carries exactly the same id and key.
+ *
+ *  The cache is bounded. It is split into segments, each one a small LRU
+ *  map with its own lock, so lookups from many connection threads do not
+ *  all wait on one lock.
+ */
+
+package ethereumcontract;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+public class IdentityCache {
+
+    /**
+     * An id and public key pair that passed the id check.
+     */
+    public static final class Identity {
+        // client id as sent in the request
+        public final String id;
+        // the id as ledger key
+        public final long idHigh, idMiddle;
+        public final int idLow;
+        // public key
+        public final BigInteger e, n;
+        // verifier built once for this key, every client key has e = 65537
+        public final FixedExponentVerifier verifier;
+
+        public Identity(String id, BigInteger e, BigInteger n) {
+            this.id = id;
+            byte[] idBytes = Ledger.idBytes(id);
+            this.idHigh = Ledger.idHigh(idBytes, 0);
+            this.idMiddle = Ledger.idMiddle(idBytes, 0);
+            this.idLow = Ledger.idLow(idBytes, 0);
+            this.e = e;
+            this.n = n;
+            if (!e.equals(FixedExponentVerifier.E)) {
+                throw new IllegalArgumentException("Public exponent must be 65537");
+            }
+            this.verifier = new FixedExponentVerifier(n);
+        }
+    }
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity maximum number of identities kept
+     */
+    public IdentityCache(int capacity) {
+        int perSegment = Math.max(1, capacity / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    /**
+     * Looks up the identity for the id and key bytes buf[off, off + len).
+     * @return the verified identity, or null if it is not cached
+     */
+    public Identity get(byte[] buf, int off, int len) {
+        Key key = new Key(buf, off, len);
+        Segment segment = segmentFor(key);
+        Identity identity;
+        synchronized (segment) {
+            identity = segment.get(key);
+        }
+        if (identity == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return identity;
+    }
+
+    /**
+     * Remembers a verified identity for the id and key bytes
+     * buf[off, off + len). The bytes are copied.
+     */
+    public void put(byte[] buf, int off, int len, Identity identity) {
+        Key key = new Key(Arrays.copyOfRange(buf, off, off + len), 0, len);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, identity);
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return hit/miss statistics, for the server console
+     */
+    public String stats() {
+        long h = hits(), m = misses();
+        double ratio = h + m == 0 ? 0 : 100.0 * h / (h + m);
+        return String.format("identity cache: size=%d hits=%d misses=%d hitRatio=%.1f%% evictions=%d",
+                size(), h, m, ratio, evictions());
+    }
+
+    private Segment segmentFor(Key key) {
+        // spread the hash so ids that differ only in high bits still spread
+        int h = key.hash ^ (key.hash >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    /**
+     * One LRU segment, guarded by its own monitor.
+     */
+    private final class Segment extends LinkedHashMap<Key, Identity> {
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Identity> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A byte range used as a map key. Lookups wrap the caller's buffer
+     * without copying it; stored keys own their bytes.
+     */
+    private static final class Key {
+        final byte[] buf;
+        final int off, len, hash;
+
+        Key(byte[] buf, int off, int len) {
+            this.buf = buf;
+            this.off = off;
+            this.len = len;
+            int h = 1;
+            for (int i = off; i < off + len; i++) {
+                h = 31 * h + buf[i];
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash
+                    && Arrays.equals(buf, off, off + len, k.buf, k.off, k.off + k.len);
+        }
+    }
+}
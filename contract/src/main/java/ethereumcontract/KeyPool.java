@@ -0,0 +1,126 @@
+/**
+ *  KeyPool.java generates RSA key pairs ahead of time, so a client that
+ *  needs one does not wait for the search of its primes.
+ *
+ *  Generator threads, one per core for a big pool, each find key
+ *  pairs with their own SecureRandom and put them in the pool. The pool
+ *  makes the number of keys it was asked for and no more: a generator
+ *  only starts on a key while some are still wanted, and not after the
+ *  pool is closed. Taking a key only waits when the pool has run dry, and
+ *  then only for the rest of the key being generated, not for a whole new
+ *  search. If a generator fails, or the pool is closed, take throws
+ *  instead of waiting for a key that never comes.
+ *
+ *  The prime search cannot be interrupted, so a close only stops a
+ *  generator between its two primes; the key it is on is dropped.
+ */
+
+package ethereumcontract;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class KeyPool implements AutoCloseable {
+
+    // a generated key pair, or why a generator gave up
+    private record Key(SigningClientTCP signer, Exception failure) {}
+
+    // queued by close, for the takes waiting then and after
+    private static final Key CLOSED = new Key(null, null);
+
+    private final int primeBits;
+    private final BlockingQueue<Key> ready = new LinkedBlockingQueue<>();
+    // keys no generator has started on yet
+    private final AtomicInteger unstarted;
+    // keys take may still hand out
+    private final AtomicInteger untaken;
+    private volatile boolean closed;
+
+    /**
+     * Starts generating on daemon threads.
+     * @param primeBits size of p and q in bits
+     * @param keys key pairs to make in all
+     * @param threads number of generator threads, no more than keys are used
+     */
+    public KeyPool(int primeBits, int keys, int threads) {
+        if (keys < 1 || threads < 1) {
+            throw new IllegalArgumentException("A key pool needs a key to make and a generator");
+        }
+        this.primeBits = primeBits;
+        this.unstarted = new AtomicInteger(keys);
+        this.untaken = new AtomicInteger(keys);
+        for (int i = 0; i < Math.min(threads, keys); i++) {
+            Thread generator = new Thread(this::generate, "key-generator-" + i);
+            generator.setDaemon(true);
+            generator.start();
+        }
+    }
+
+    /**
+     * @return size of the primes of the keys in bits
+     */
+    public int primeBits() {
+        return primeBits;
+    }
+
+    /**
+     * @return a key pair, waiting for one if none is ready
+     * @throws IllegalStateException if the pool is closed, all its keys
+     *         were taken, or a generator failed
+     */
+    public SigningClientTCP take() throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Key pool is closed");
+        }
+        if (untaken.getAndDecrement() <= 0) {
+            untaken.incrementAndGet();
+            throw new IllegalStateException("All keys of the pool were taken");
+        }
+        Key key = ready.take();
+        if (key == CLOSED) {
+            ready.add(key);
+            throw new IllegalStateException("Key pool is closed");
+        }
+        if (key.failure() != null) {
+            // left for the next take, which would wait for good otherwise
+            ready.add(key);
+            throw new IllegalStateException("Key generation failed", key.failure());
+        }
+        return key.signer();
+    }
+
+    /**
+     * Stops the generators, the keys still in the pool are dropped. A take
+     * waiting for a key throws.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        ready.clear();
+        ready.add(CLOSED);
+    }
+
+    private void generate() {
+        SecureRandom rnd = new SecureRandom();
+        try {
+            while (!closed && unstarted.getAndDecrement() > 0) {
+                // SigningClientTCP.generateKeys, with a look at closed between the primes
+                BigInteger p = new BigInteger(primeBits, 100, rnd);
+                if (closed) {
+                    return;
+                }
+                BigInteger q = new BigInteger(primeBits, 100, rnd);
+                if (closed) {
+                    return;
+                }
+                ready.add(new Key(SigningClientTCP.fromPrimes(p, q), null));
+            }
+        } catch (Exception e) {
+            Log.warn("Key generation failed: %s", e);
+            ready.add(new Key(null, e));
+        }
+    }
+}
@@ -0,0 +1,451 @@
+/**
+ *  Ledger.java keeps the balance of every account, keyed by the 20 byte
+ *  client id.
+ *
+ *  The id is stored as two longs and an int and the balance as a primitive
+ *  long, in open-addressing tables with linear probing. An update finds the
+ *  slot of the account once and changes the balance in place: no boxing, no
+ *  decimal id strings and no tree nodes per account. Balances are checked
+ *  for overflow instead of wrapping around silently.
+ *
+ *  The ledger is split into 64 segments by the first 6 bits of the id,
+ *  which are hash output and spread the accounts evenly. Each segment has
+ *  its own table and its own lock, so updates of different accounts from
+ *  different connection threads rarely wait on each other.
+ *
+ *  An update may be given a ChangeLog, which records the change under the
+ *  lock of the segment after it is checked and before the balance is
+ *  stored: no reader sees a balance whose change is not recorded yet, and
+ *  a change that cannot be recorded is not made.
+ *
+ *  After trackState() each segment also keeps the StateTree trie of its
+ *  accounts, changed under the same lock as the table, from which
+ *  snapshot() takes the state root and the proofs of balances.
+ *
+ *  Ids are the signed big-endian 20 bytes the client id is made from; the
+ *  decimal form used by the text protocol is new BigInteger(id).toString().
+ */
+
+package ethereumcontract;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+public class Ledger {
+
+    /**
+     * Receives the accounts of the ledger, see forEach().
+     */
+    public interface AccountVisitor {
+        void visit(long idHigh, long idMiddle, int idLow, long balance);
+    }
+
+    /**
+     * Records a change of a balance before it is made, see add().
+     */
+    public interface ChangeLog {
+        /**
+         * Called with the account locked, so it must be quick and must
+         * not use the ledger.
+         * @param change what is added to the balance, wrapping like replay()
+         * @throws IOException if the change cannot be recorded, it is not made then
+         */
+        void log(long idHigh, long idMiddle, int idLow, long change) throws IOException;
+    }
+
+    // length of an id in bytes
+    public static final int ID_LENGTH = 20;
+
+    private static final int SEGMENTS = 1 << StateTree.SEGMENT_BITS;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    // the last snapshot taken, the next one reuses its hashes
+    private volatile StateTree.Snapshot lastSnapshot;
+
+    public Ledger() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Adds delta to the balance of an account, creating it with a
+     * balance of 0 first if it does not exist yet.
+     * @return the new balance
+     * @throws ArithmeticException if the balance would overflow, the
+     *         balance is left unchanged
+     */
+    public long add(long idHigh, long idMiddle, int idLow, long delta) {
+        try {
+            return add(idHigh, idMiddle, idLow, delta, null);
+        } catch (IOException e) {
+            // there is no log to fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Same as add(idHigh, idMiddle, idLow, delta), with the change recorded
+     * before the new balance can be seen.
+     * @param log records the change, null for none
+     * @throws IOException if the log failed, the balance is left unchanged
+     */
+    public long add(long idHigh, long idMiddle, int idLow, long delta, ChangeLog log) throws IOException {
+        int hash = hash(idHigh, idMiddle, idLow);
+        Segment segment = segments[StateTree.segment(idHigh)];
+        synchronized (segment) {
+            return segment.add(idHigh, idMiddle, idLow, hash, delta, log);
+        }
+    }
+
+    /**
+     * Same as addAll with a log, for a ledger that keeps none.
+     */
+    public long addAll(long idHigh, long idMiddle, int idLow, long[] deltas, int count, long[] balances) {
+        try {
+            return addAll(idHigh, idMiddle, idLow, deltas, count, balances, null);
+        } catch (IOException e) {
+            // there is no log to fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds several deltas to the balance of an account as one change:
+     * either all of them are added or, if one would overflow the balance,
+     * none. Other updates of the account wait until all are added.
+     * @param deltas the deltas, in order
+     * @param count number of deltas
+     * @param balances receives the balance after each delta
+     * @param log records the whole change if it is not 0, null for none
+     * @return the whole change of the balance, wrapping like replay()
+     * @throws ArithmeticException if the balance would overflow, the
+     *         balance is left unchanged
+     * @throws IOException if the log failed, the balance is left unchanged
+     */
+    public long addAll(long idHigh, long idMiddle, int idLow, long[] deltas, int count, long[] balances,
+                       ChangeLog log) throws IOException {
+        int hash = hash(idHigh, idMiddle, idLow);
+        Segment segment = segments[StateTree.segment(idHigh)];
+        synchronized (segment) {
+            // the account is only created once no delta overflows
+            int slot = segment.slot(idHigh, idMiddle, idLow, hash, false);
+            long start = slot < 0 ? 0 : segment.balances[slot];
+            long balance = start;
+            for (int i = 0; i < count; i++) {
+                balance = Math.addExact(balance, deltas[i]);
+                balances[i] = balance;
+            }
+            if (log != null && balance != start) {
+                log.log(idHigh, idMiddle, idLow, balance - start);
+            }
+            if (slot < 0) {
+                slot = segment.slot(idHigh, idMiddle, idLow, hash, true);
+            }
+            segment.balances[slot] = balance;
+            segment.track(slot);
+            return balance - start;
+        }
+    }
+
+    /**
+     * @return the balance of an account, 0 if it does not exist
+     */
+    public long get(long idHigh, long idMiddle, int idLow) {
+        int hash = hash(idHigh, idMiddle, idLow);
+        Segment segment = segments[StateTree.segment(idHigh)];
+        synchronized (segment) {
+            return segment.get(idHigh, idMiddle, idLow, hash);
+        }
+    }
+
+    /**
+     * Adds delta to the balance of an account without the overflow check.
+     * Only used to replay logged updates: they were checked when they were
+     * first applied, and wrapping additions give the same final balance in
+     * whatever order the updates of an account are replayed.
+     */
+    public void replay(long idHigh, long idMiddle, int idLow, long delta) {
+        int hash = hash(idHigh, idMiddle, idLow);
+        Segment segment = segments[StateTree.segment(idHigh)];
+        synchronized (segment) {
+            int slot = segment.slot(idHigh, idMiddle, idLow, hash, true);
+            segment.balances[slot] += delta;
+            segment.track(slot);
+        }
+    }
+
+    /**
+     * Sets the balance of an account, used when a ledger is restored.
+     */
+    public void set(long idHigh, long idMiddle, int idLow, long balance) {
+        int hash = hash(idHigh, idMiddle, idLow);
+        Segment segment = segments[StateTree.segment(idHigh)];
+        synchronized (segment) {
+            int slot = segment.slot(idHigh, idMiddle, idLow, hash, true);
+            segment.balances[slot] = balance;
+            segment.track(slot);
+        }
+    }
+
+    /**
+     * @return number of accounts
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Calls the visitor for every account, in no particular order. Each
+     * segment is locked while it is visited, so the visitor must be quick
+     * and must not use the ledger.
+     */
+    public void forEach(AccountVisitor visitor) {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (int i = 0; i < segment.used.length; i++) {
+                    if (segment.used[i]) {
+                        visitor.visit(segment.highs[i], segment.middles[i], segment.lows[i], segment.balances[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts keeping the StateTree of the ledger, built from the accounts
+     * it has now. Every change is then a walk down the trie of its segment.
+     */
+    public void trackState() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                if (!segment.tracked) {
+                    segment.tracked = true;
+                    for (int i = 0; i < segment.used.length; i++) {
+                        if (segment.used[i]) {
+                            segment.track(i);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true after trackState()
+     */
+    public boolean tracksState() {
+        Segment last = segments[SEGMENTS - 1];
+        synchronized (last) {
+            return last.tracked;
+        }
+    }
+
+    /**
+     * Takes the tries of all segments at one moment, with every segment
+     * locked at once: a change of the ledger is in all of them or in none.
+     * Only the 64 roots are copied, the tries are never changed.
+     * @return the state of the ledger now
+     * @throws IllegalStateException if the ledger does not keep its state
+     *         tree, see trackState()
+     */
+    public StateTree.Snapshot snapshot() {
+        if (!tracksState()) {
+            throw new IllegalStateException("The ledger keeps no state tree");
+        }
+        StateTree.Node[] tries = new StateTree.Node[SEGMENTS];
+        lockAndTake(0, tries);
+        StateTree.Snapshot snapshot = new StateTree.Snapshot(tries, lastSnapshot);
+        lastSnapshot = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * Locks the segments from index on in order, the same order everywhere,
+     * and takes their tries once they are all locked.
+     */
+    private void lockAndTake(int index, StateTree.Node[] tries) {
+        if (index == SEGMENTS) {
+            return;
+        }
+        synchronized (segments[index]) {
+            tries[index] = segments[index].state;
+            lockAndTake(index + 1, tries);
+        }
+    }
+
+    /**
+     * @param id a decimal client id, as sent in text requests
+     * @return the 20 id bytes, sign-extended
+     * @throws IllegalArgumentException if the id does not fit in 20 bytes
+     */
+    public static byte[] idBytes(String id) {
+        byte[] bytes = new BigInteger(id).toByteArray();
+        if (bytes.length > ID_LENGTH) {
+            throw new IllegalArgumentException("Id longer than " + ID_LENGTH + " bytes");
+        }
+        byte[] id20 = new byte[ID_LENGTH];
+        Arrays.fill(id20, 0, ID_LENGTH - bytes.length, bytes[0] < 0 ? (byte) -1 : 0);
+        System.arraycopy(bytes, 0, id20, ID_LENGTH - bytes.length, bytes.length);
+        return id20;
+    }
+
+    /**
+     * @return bytes 0 to 7 of a 20 byte id
+     */
+    public static long idHigh(byte[] id, int off) {
+        return readLong(id, off);
+    }
+
+    /**
+     * @return bytes 8 to 15 of a 20 byte id
+     */
+    public static long idMiddle(byte[] id, int off) {
+        return readLong(id, off + 8);
+    }
+
+    /**
+     * @return bytes 16 to 19 of a 20 byte id
+     */
+    public static int idLow(byte[] id, int off) {
+        return (int) (readLong(id, off + 12));
+    }
+
+    /**
+     * @return the decimal form of an id
+     */
+    public static String idString(long idHigh, long idMiddle, int idLow) {
+        return new BigInteger(idBytes(idHigh, idMiddle, idLow)).toString();
+    }
+
+    /**
+     * @return the 20 bytes of an id
+     */
+    public static byte[] idBytes(long idHigh, long idMiddle, int idLow) {
+        byte[] id = new byte[ID_LENGTH];
+        for (int i = 0; i < 8; i++) {
+            id[i] = (byte) (idHigh >>> (56 - 8 * i));
+            id[8 + i] = (byte) (idMiddle >>> (56 - 8 * i));
+        }
+        for (int i = 0; i < 4; i++) {
+            id[16 + i] = (byte) (idLow >>> (24 - 8 * i));
+        }
+        return id;
+    }
+
+    private static long readLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (b[off + i] & 0xff);
+        }
+        return v;
+    }
+
+    private static int hash(long idHigh, long idMiddle, int idLow) {
+        // ids are hash output already, mixing the words is enough
+        long h = idHigh * 0x9E3779B97F4A7C15L ^ idMiddle * 0xC2B2AE3D27D4EB4FL ^ idLow;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * One open-addressing table, guarded by its own monitor.
+     */
+    private static final class Segment {
+        long[] highs = new long[16];
+        long[] middles = new long[16];
+        int[] lows = new int[16];
+        long[] balances = new long[16];
+        boolean[] used = new boolean[16];
+        int size;
+        // the trie of the accounts, kept once tracked, see trackState()
+        boolean tracked;
+        StateTree.Node state;
+
+        long add(long idHigh, long idMiddle, int idLow, int hash, long delta, ChangeLog log) throws IOException {
+            // the account is only created once the delta does not overflow
+            // and is logged
+            int slot = slot(idHigh, idMiddle, idLow, hash, false);
+            long balance = Math.addExact(slot < 0 ? 0 : balances[slot], delta);
+            if (log != null) {
+                log.log(idHigh, idMiddle, idLow, delta);
+            }
+            if (slot < 0) {
+                slot = slot(idHigh, idMiddle, idLow, hash, true);
+            }
+            balances[slot] = balance;
+            track(slot);
+            return balance;
+        }
+
+        /**
+         * Puts the balance of a slot in the trie, if there is one.
+         */
+        void track(int slot) {
+            if (tracked) {
+                state = StateTree.put(state, highs[slot], middles[slot], lows[slot], balances[slot]);
+            }
+        }
+
+        long get(long idHigh, long idMiddle, int idLow, int hash) {
+            int slot = slot(idHigh, idMiddle, idLow, hash, false);
+            return slot < 0 ? 0 : balances[slot];
+        }
+
+        /**
+         * Finds the slot of an id.
+         * @param create true to insert the id with a 0 balance if it is missing
+         * @return the slot, or -1 if the id is missing and create is false
+         */
+        int slot(long idHigh, long idMiddle, int idLow, int hash, boolean create) {
+            int mask = used.length - 1;
+            int i = hash & mask;
+            while (used[i]) {
+                if (highs[i] == idHigh && middles[i] == idMiddle && lows[i] == idLow) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            if (!create) {
+                return -1;
+            }
+            if (size + 1 > used.length * 3 / 4) {
+                grow();
+                return slot(idHigh, idMiddle, idLow, hash, true);
+            }
+            used[i] = true;
+            highs[i] = idHigh;
+            middles[i] = idMiddle;
+            lows[i] = idLow;
+            balances[i] = 0;
+            size++;
+            return i;
+        }
+
+        private void grow() {
+            long[] oldHighs = highs, oldMiddles = middles, oldBalances = balances;
+            int[] oldLows = lows;
+            boolean[] oldUsed = used;
+            int capacity = used.length * 2;
+            highs = new long[capacity];
+            middles = new long[capacity];
+            lows = new int[capacity];
+            balances = new long[capacity];
+            used = new boolean[capacity];
+            size = 0;
+            for (int j = 0; j < oldUsed.length; j++) {
+                if (oldUsed[j]) {
+                    int slot = slot(oldHighs[j], oldMiddles[j], oldLows[j],
+                            hash(oldHighs[j], oldMiddles[j], oldLows[j]), true);
+                    balances[slot] = oldBalances[j];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ *  LedgerAdmin.java lets operators read the whole ledger of a running
+ *  server over HTTP, without stopping it:
+ *
+ *      GET /ledger/accounts?limit=N&cursor=C
+ *          the accounts in the order of their ids, one "id,balance" line
+ *          each, at most N of them (1000 by default). The page ends with a
+ *          line "next CURSOR" when there are more, "end" when not; the
+ *          cursor given back resumes after the last account of the page.
+ *      GET /ledger/total
+ *          lines "accounts N" and "total T", T the sum of all balances
+ *      GET /ledger/top?n=N
+ *          the N accounts with the largest balances, largest first
+ *
+ *  Every answer is read from a snapshot of the StateTree of the ledger:
+ *  taking one locks the segments only for as long as it takes to copy the
+ *  64 roots, and scanning it locks nothing, so a scan of any size neither
+ *  holds up add and min nor copies the ledger. The first page of a scan
+ *  takes the snapshot and the cursor names it, so all the pages of a scan
+ *  see the ledger as it was when the scan started. A snapshot is kept for
+ *  CURSOR_IDLE_SECONDS after its last page, MAX_SCANS of them at most; a
+ *  cursor of one that is gone gets 410 and the scan starts over. The
+ *  X-State-Root header of every answer is the root of its snapshot.
+ *
+ *  With --ledger-admin-port=N the server serves these on 127.0.0.1:N and
+ *  keeps the StateTree for them, as --state-root does.
+ */
+
+package ethereumcontract;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+public final class LedgerAdmin {
+
+    static final int DEFAULT_LIMIT = 1000;
+    // a page or a top list longer than this is cut to it
+    static final int MAX_LIMIT = 100_000;
+    static final int MAX_SCANS = 64;
+    static final long CURSOR_IDLE_SECONDS = 300;
+
+    /**
+     * A snapshot scans are reading from.
+     */
+    private static final class Scan {
+        final StateTree.Snapshot snapshot;
+        long used = System.nanoTime();
+
+        Scan(StateTree.Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+    }
+
+    private final Ledger ledger;
+    // the scans by number, least recently used first, guarded by this
+    private final LinkedHashMap<Long, Scan> scans = new LinkedHashMap<>(16, 0.75f, true);
+    private long nextScan;
+
+    private LedgerAdmin(Ledger ledger) {
+        this.ledger = ledger;
+    }
+
+    /**
+     * Starts keeping the state tree of the ledger and serving it on the
+     * loopback interface.
+     * @param ledger the ledger
+     * @param port port of the endpoint
+     */
+    public static void serve(Ledger ledger, int port) throws IOException {
+        ledger.trackState();
+        LedgerAdmin admin = new LedgerAdmin(ledger);
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/ledger/accounts", exchange -> admin.handle(exchange, admin::accounts));
+        http.createContext("/ledger/total", exchange -> admin.handle(exchange, admin::total));
+        http.createContext("/ledger/top", exchange -> admin.handle(exchange, admin::top));
+        // requests are served one at a time, a long scan holds up only other scans
+        http.start();
+    }
+
+    /**
+     * One kind of request. It answers with a text body, streamed, or fails
+     * with an IllegalArgumentException (400) or a QueryException.
+     */
+    private interface Query {
+        void answer(Map<String, String> params, Response response) throws IOException;
+    }
+
+    /**
+     * The answer to a request, begun once its snapshot is known.
+     */
+    private static final class Response {
+        final HttpExchange exchange;
+        final Writer body;
+
+        Response(HttpExchange exchange) {
+            this.exchange = exchange;
+            this.body = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Sends the headers, with the state root of the snapshot; this
+         * hashes what changed since the last root was taken.
+         */
+        void begin(StateTree.Snapshot snapshot) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.getResponseHeaders().set("X-State-Root", HexFormat.of().formatHex(snapshot.root()));
+            // the length is not known, the body is streamed
+            exchange.sendResponseHeaders(200, 0);
+        }
+
+        void line(StateTree.Leaf leaf) throws IOException {
+            body.write(Ledger.idString(leaf.idHigh, leaf.idMiddle, leaf.idLow));
+            body.write(',');
+            body.write(Long.toString(leaf.balance));
+            body.write('\n');
+        }
+    }
+
+    /**
+     * Thrown for a request that cannot be answered, with its HTTP status.
+     */
+    private static final class QueryException extends RuntimeException {
+        final int status;
+
+        QueryException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private void handle(HttpExchange exchange, Query query) {
+        try (exchange) {
+            Response response = new Response(exchange);
+            try {
+                query.answer(params(exchange.getRequestURI()), response);
+            } catch (QueryException | IllegalArgumentException e) {
+                // failed before begin(), nothing is sent yet
+                int status = e instanceof QueryException q ? q.status : 400;
+                byte[] message = (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(status, message.length);
+                exchange.getResponseBody().write(message);
+                return;
+            }
+            response.body.flush();
+        } catch (IOException | UncheckedIOException e) {
+            // the operator went away in the middle of a scan
+            Log.debug("Ledger admin request failed: " + e);
+        }
+    }
+
+    /**
+     * A page of the accounts in id order.
+     */
+    private void accounts(Map<String, String> params, Response response) throws IOException {
+        int limit = limit(params.get("limit"), DEFAULT_LIMIT);
+        String cursor = params.get("cursor");
+        long number;
+        Scan scan;
+        byte[] after = null;
+        if (cursor == null) {
+            synchronized (this) {
+                number = nextScan++;
+                scan = new Scan(ledger.snapshot());
+                scans.put(number, scan);
+                expire();
+            }
+        } else {
+            // "scan.id", the id in hex
+            int dot = cursor.indexOf('.');
+            if (dot < 0) {
+                throw new IllegalArgumentException("Bad cursor " + cursor);
+            }
+            number = Long.parseLong(cursor.substring(0, dot));
+            after = HexFormat.of().parseHex(cursor, dot + 1, cursor.length());
+            if (after.length != Ledger.ID_LENGTH) {
+                throw new IllegalArgumentException("Bad cursor " + cursor);
+            }
+            synchronized (this) {
+                expire();
+                scan = scans.get(number);
+                if (scan == null) {
+                    throw new QueryException(410, "The snapshot of cursor " + cursor + " is gone, start the scan again");
+                }
+                scan.used = System.nanoTime();
+            }
+        }
+
+        response.begin(scan.snapshot);
+        // the scan only ends early if an account is left after the page
+        StateTree.Leaf[] last = new StateTree.Leaf[1];
+        int[] count = {0};
+        boolean more = !scan.snapshot.scan(after != null,
+                after != null ? Ledger.idHigh(after, 0) : 0, after != null ? Ledger.idMiddle(after, 0) : 0,
+                after != null ? Ledger.idLow(after, 0) : 0, leaf -> {
+                    if (count[0] == limit) {
+                        return false;
+                    }
+                    count[0]++;
+                    last[0] = leaf;
+                    try {
+                        response.line(leaf);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return true;
+                });
+        if (more) {
+            response.body.write("next " + number + "." + HexFormat.of().formatHex(Ledger.idBytes(last[0].idHigh, last[0].idMiddle, last[0].idLow)) + "\n");
+        } else {
+            response.body.write("end\n");
+            synchronized (this) {
+                scans.remove(number);
+            }
+        }
+    }
+
+    /**
+     * The number of accounts and the sum of their balances.
+     */
+    private void total(Map<String, String> params, Response response) throws IOException {
+        StateTree.Snapshot snapshot = ledger.snapshot();
+        long[] sum = new long[2];
+        // the sum can pass a long, the part that does is carried over
+        BigInteger[] carried = {BigInteger.ZERO};
+        snapshot.scan(false, 0, 0, 0, leaf -> {
+            sum[0]++;
+            try {
+                sum[1] = Math.addExact(sum[1], leaf.balance);
+            } catch (ArithmeticException e) {
+                carried[0] = carried[0].add(BigInteger.valueOf(sum[1]));
+                sum[1] = leaf.balance;
+            }
+            return true;
+        });
+        response.begin(snapshot);
+        response.body.write("accounts " + sum[0] + "\n");
+        response.body.write("total " + carried[0].add(BigInteger.valueOf(sum[1])) + "\n");
+    }
+
+    /**
+     * The accounts with the largest balances.
+     */
+    private void top(Map<String, String> params, Response response) throws IOException {
+        int n = limit(params.get("n"), 10);
+        StateTree.Snapshot snapshot = ledger.snapshot();
+        // the n largest so far, smallest on top
+        PriorityQueue<StateTree.Leaf> largest = new PriorityQueue<>(n + 1,
+                (a, b) -> Long.compare(a.balance, b.balance));
+        snapshot.scan(false, 0, 0, 0, leaf -> {
+            if (largest.size() < n) {
+                largest.add(leaf);
+            } else if (leaf.balance > largest.peek().balance) {
+                largest.poll();
+                largest.add(leaf);
+            }
+            return true;
+        });
+        List<StateTree.Leaf> sorted = new ArrayList<>(largest);
+        sorted.sort((a, b) -> Long.compare(b.balance, a.balance));
+        response.begin(snapshot);
+        for (StateTree.Leaf leaf : sorted) {
+            response.line(leaf);
+        }
+    }
+
+    /**
+     * Drops the snapshots of scans idle for too long, and the least
+     * recently used ones past MAX_SCANS. Called holding this.
+     */
+    private void expire() {
+        long idle = TimeUnit.SECONDS.toNanos(CURSOR_IDLE_SECONDS);
+        long now = System.nanoTime();
+        scans.values().removeIf(scan -> now - scan.used > idle);
+        while (scans.size() > MAX_SCANS) {
+            scans.remove(scans.keySet().iterator().next());
+        }
+    }
+
+    private static int limit(String value, int def) {
+        int limit = value == null ? def : Integer.parseInt(value);
+        if (limit < 1) {
+            throw new IllegalArgumentException("The limit must be positive");
+        }
+        return Math.min(limit, MAX_LIMIT);
+    }
+
+    private static Map<String, String> params(URI uri) {
+        Map<String, String> params = new HashMap<>();
+        String query = uri.getQuery();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    params.put(pair.substring(0, eq), pair.substring(eq + 1));
+                }
+            }
+        }
+        return params;
+    }
+}
@@ -0,0 +1,445 @@
+/**
+ *  LedgerPipeline.java runs text requests through three stages, in the
+ *  manner of a Disruptor, instead of doing all the work of a request on
+ *  the thread that read it:
+ *
+ *      I/O threads   claim a slot of the ring, copy the line into it and
+ *                    parse it
+ *      verifiers     check the id and the RSA signature, one thread per
+ *                    core, each taking the next slot in turn
+ *      ledger writer one thread that applies the verified requests to the
+ *                    ledger in the order of the ring and hands out the
+ *                    replies
+ *
+ *  The ring is preallocated: every slot keeps its line buffer and its
+ *  Request view for the life of the server, so a request allocates nothing
+ *  on the way through but its reply. A slot moves on through volatile
+ *  sequence numbers only, without locks or queues: claimed by an I/O
+ *  thread with one atomic increment, then marked parsed, verified and,
+ *  once its reply is out, applied, after which it can be claimed again.
+ *  An I/O thread that finds the ring full waits for the writer, which is
+ *  the backpressure of the pipeline. A selector thread, which must never
+ *  wait, uses trySubmit instead and asks with whenFree to be called back
+ *  once the writer has freed slots.
+ *
+ *  Since the ring order is the order in which lines were read, and only the
+ *  writer changes the ledger, the updates are applied strictly in arrival
+ *  order and never wait for each other. The lines of one connection keep
+ *  their order too, which is what lets session lines (see Session) be
+ *  checked by the writer, in order, after the handshake before them. The
+ *  writer applies everything that is verified before it waits once for the
+ *  write-ahead log and hands out the replies of the group.
+ *
+ *  A stage with nothing to do spins for a moment, then yields, then sleeps
+ *  until another stage wakes it, so an idle server does not burn a core.
+ *
+ *  Binary frames do not go through the pipeline.
+ */
+
+package ethereumcontract;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LedgerPipeline {
+
+    /**
+     * Where the writer hands the reply of a request, on the writer thread.
+     * The replies of a connection arrive in the order its lines were submitted.
+     */
+    public interface Replies {
+        void reply(byte[] reply);
+    }
+
+    /**
+     * The replies of a connection served by its own thread: the writer, or
+     * the batch dispatcher, collects them, the thread writes them out
+     * together with one flush. Only the connection thread touches the socket.
+     */
+    public static final class ReplyBuffer implements Replies {
+        private byte[] buf = new byte[1024];
+        private int length;
+        // the buffer being written out, swapped with buf so replies can be
+        // collected while it is; only the connection thread uses it
+        private byte[] spare = new byte[1024];
+        // lines submitted and replies received, guarded by this
+        private long submitted, received;
+
+        /**
+         * Counts a line submitted with this buffer.
+         */
+        public synchronized void submitted() {
+            submitted++;
+        }
+
+        @Override
+        public synchronized void reply(byte[] reply) {
+            if (length + reply.length > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + reply.length));
+            }
+            System.arraycopy(reply, 0, buf, length, reply.length);
+            length += reply.length;
+            if (++received >= submitted) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits for the replies of every line submitted so far and writes
+         * them to out, without flushing it.
+         */
+        public void drainTo(OutputStream out) throws IOException, InterruptedException {
+            byte[] full;
+            int fullLength;
+            synchronized (this) {
+                while (received < submitted) {
+                    wait();
+                }
+                full = buf;
+                fullLength = length;
+                buf = spare;
+                length = 0;
+            }
+            // written without the lock, a slow client holds up no collector
+            out.write(full, 0, fullLength);
+            spare = full;
+        }
+    }
+
+    /**
+     * One entry of the ring, reused for every request that lands on it.
+     */
+    private static final class Slot {
+        byte[] line = new byte[512];
+        final VerifyingServerTCP.Request request = new VerifyingServerTCP.Request();
+        // the connection of the request
+        Session session;
+        Replies replies;
+        // set by the verifier when the request passed its checks
+        IdentityCache.Identity identity;
+        // set by a stage that already decided the reply, "error" or "busy"
+        byte[] reply;
+        long submitted;
+        // sequence of the request once it reached each stage
+        volatile long parsed = -1, verified = -1;
+    }
+
+    private static final int PARSED = 0, VERIFIED = 1, FREE = 2;
+    // turns a waiting stage spins, and then yields, before it sleeps
+    private static final int SPINS = 100, YIELDS = 100;
+    // requests the writer applies before it waits for the log
+    private static final int MAX_GROUP = 1024;
+
+    private final Slot[] ring;
+    private final int mask;
+    // next sequence to hand to an I/O thread
+    private final AtomicLong claimed = new AtomicLong();
+    // next sequence to verify, taken by the verifiers in turn
+    private final AtomicLong verifying = new AtomicLong();
+    // highest sequence whose reply is out, its slot may be claimed again
+    private volatile long applied = -1;
+    // run once by the writer after it frees slots, see whenFree
+    private final AtomicReference<Runnable> onFree = new AtomicReference<>();
+
+    // stages sleep on signal when there is nothing to do, counted in sleepers
+    private final Object signal = new Object();
+    private volatile int sleepers;
+
+    private final LongAdder groups = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+
+    /**
+     * Starts the verifier threads and the ledger writer.
+     * @param size number of slots of the ring, rounded up to a power of two
+     * @param verifiers number of threads verifying signatures
+     */
+    public LedgerPipeline(int size, int verifiers) {
+        if (size < 2 || verifiers < 1) {
+            throw new IllegalArgumentException("The ring needs at least 2 slots and one verifier");
+        }
+        ring = new Slot[Integer.highestOneBit(size - 1) << 1];
+        mask = ring.length - 1;
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = new Slot();
+        }
+        for (int i = 0; i < verifiers; i++) {
+            Thread verifier = new Thread(this::verify, "pipeline-verifier-" + i);
+            verifier.setDaemon(true);
+            verifier.start();
+        }
+        Thread writer = new Thread(this::write, "ledger-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return number of slots of the ring
+     */
+    public int size() {
+        return ring.length;
+    }
+
+    /**
+     * @return average number of requests the writer applied per log wait
+     */
+    public double averageGroupSize() {
+        long g = groups.sum();
+        return g == 0 ? 0 : (double) requests.sum() / g;
+    }
+
+    /**
+     * I/O stage: queues a request line of a connection, waiting for a free
+     * slot if the ring is full. Its reply goes to replies, on the writer.
+     * @param buf bytes holding the line, copied before this returns
+     * @param off start of the line
+     * @param len length of the line, without its terminator
+     * @param admitted false if the line is over the limit of its
+     *                 connection, it is answered "busy" without being parsed
+     * @param session session of the connection
+     * @param replies receives the reply
+     */
+    public void submit(byte[] buf, int off, int len, boolean admitted, Session session, Replies replies) {
+        long start = System.nanoTime();
+        long sequence = claimed.getAndIncrement();
+        Slot slot = ring[(int) sequence & mask];
+        for (int turn = 0; !reached(slot, FREE, sequence); turn++) {
+            idle(slot, FREE, sequence, turn);
+        }
+        fill(slot, sequence, start, buf, off, len, admitted, session, replies);
+    }
+
+    /**
+     * Same as submit, but never waits: if the ring is full nothing is
+     * queued and the caller keeps the line, see whenFree.
+     * @return false if the ring is full
+     */
+    public boolean trySubmit(byte[] buf, int off, int len, boolean admitted, Session session, Replies replies) {
+        long start = System.nanoTime();
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - ring.length > applied) {
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        fill(ring[(int) sequence & mask], sequence, start, buf, off, len, admitted, session, replies);
+        return true;
+    }
+
+    /**
+     * Runs the callback once, on the writer thread, after the writer next
+     * frees slots, or right away if a slot is free already. Only the last
+     * callback given before that runs. It must be quick, the writer waits.
+     */
+    public void whenFree(Runnable callback) {
+        onFree.set(callback);
+        // the writer may have freed the slots before it could see the callback
+        if (claimed.get() - ring.length <= applied) {
+            Runnable free = onFree.getAndSet(null);
+            if (free != null) {
+                free.run();
+            }
+        }
+    }
+
+    /**
+     * Copies and parses a line into the slot claimed for it, and passes
+     * the slot on to the verifiers.
+     */
+    private void fill(Slot slot, long sequence, long start, byte[] buf, int off, int len,
+                      boolean admitted, Session session, Replies replies) {
+        slot.submitted = start;
+        slot.session = session;
+        slot.replies = replies;
+        slot.identity = null;
+        slot.reply = null;
+        try {
+            if (!admitted) {
+                slot.reply = Admission.BUSY_REPLY;
+                return;
+            }
+            if (len > slot.line.length) {
+                slot.line = new byte[Math.max(len, slot.line.length * 2)];
+            }
+            System.arraycopy(buf, off, slot.line, 0, len);
+            slot.request.parse(slot.line, 0, len);
+            ServerMetrics.parse.recordSince(start);
+        } catch (IllegalArgumentException e) {
+            ServerMetrics.malformedRequests.increment();
+            Log.debug("Error in request: " + e);
+            slot.reply = VerifyingServerTCP.ERROR_REPLY;
+        } finally {
+            // a claimed slot is always passed on, or the writer would stop at it
+            slot.parsed = sequence;
+            wake();
+        }
+    }
+
+    /**
+     * Verifier stage: checks the signed requests, each thread taking the
+     * next sequence in turn. Session lines and requests that already have
+     * a reply are passed on as they are.
+     */
+    private void verify() {
+        while (true) {
+            long sequence = verifying.getAndIncrement();
+            Slot slot = ring[(int) sequence & mask];
+            for (int turn = 0; !reached(slot, PARSED, sequence); turn++) {
+                idle(slot, PARSED, sequence, turn);
+            }
+            if (slot.reply == null && slot.request.sequence < 0) {
+                try {
+                    slot.identity = VerifyingServerTCP.checkRequest(slot.request);
+                    if (slot.identity == null) {
+                        Log.debug("Error in request");
+                        slot.reply = VerifyingServerTCP.ERROR_REPLY;
+                    } else {
+                        Admission.admit(slot.identity);
+                    }
+                } catch (Admission.BusyException e) {
+                    slot.reply = Admission.BUSY_REPLY;
+                } catch (Exception e) {
+                    ServerMetrics.malformedRequests.increment();
+                    Log.debug("Error in request: " + e);
+                    slot.reply = VerifyingServerTCP.ERROR_REPLY;
+                }
+            }
+            slot.verified = sequence;
+            wake();
+        }
+    }
+
+    /**
+     * Writer stage: applies the verified requests in ring order, waits once
+     * for the log of each group and hands out its replies.
+     */
+    private void write() {
+        long next = 0;
+        while (true) {
+            Slot first = ring[(int) next & mask];
+            for (int turn = 0; !reached(first, VERIFIED, next); turn++) {
+                idle(first, VERIFIED, next, turn);
+            }
+            // everything verified by now makes up the group
+            long t = System.nanoTime();
+            long end = next;
+            do {
+                apply(ring[(int) end & mask]);
+                end++;
+            } while (end - next < MAX_GROUP && reached(ring[(int) end & mask], VERIFIED, end));
+            t = ServerMetrics.ledger.recordSince(t);
+
+            // one wait for the log of the whole group
+            boolean durable = true;
+            try {
+                VerifyingServerTCP.awaitDurable();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                durable = false;
+            }
+            ServerMetrics.commit.recordSince(t);
+            for (long s = next; s < end; s++) {
+                Slot slot = ring[(int) s & mask];
+                ServerMetrics.request.recordSince(slot.submitted);
+                slot.replies.reply(durable ? slot.reply : VerifyingServerTCP.ERROR_REPLY);
+                slot.replies = null;
+                slot.session = null;
+            }
+            groups.increment();
+            requests.add(end - next);
+            applied = end - 1;
+            wake();
+            if (onFree.get() != null) {
+                Runnable free = onFree.getAndSet(null);
+                if (free != null) {
+                    free.run();
+                }
+            }
+            next = end;
+        }
+    }
+
+    /**
+     * Carries out one verified request on the writer thread.
+     */
+    private static void apply(Slot slot) {
+        if (slot.reply != null) {
+            return;
+        }
+        VerifyingServerTCP.Request request = slot.request;
+        try {
+            IdentityCache.Identity identity = slot.identity;
+            if (request.sequence >= 0) {
+                // checked here, after the lines before it of its connection
+                identity = slot.session.check(request);
+                if (identity == null) {
+                    Log.debug("Error in request");
+                    slot.reply = VerifyingServerTCP.ERROR_REPLY;
+                    return;
+                }
+                Admission.admit(identity);
+            }
+            slot.reply = request.operation == Operation.SESSION
+                    ? slot.session.start(identity)
+                    : VerifyingServerTCP.execute(request, identity);
+        } catch (Admission.BusyException e) {
+            slot.reply = Admission.BUSY_REPLY;
+        } catch (Exception e) {
+            Log.debug("Error in request: " + e);
+            slot.reply = VerifyingServerTCP.ERROR_REPLY;
+        }
+    }
+
+    /**
+     * @return true once the slot reached the stage for the sequence
+     */
+    private boolean reached(Slot slot, int stage, long sequence) {
+        return switch (stage) {
+            case PARSED -> slot.parsed == sequence;
+            case VERIFIED -> slot.verified == sequence;
+            default -> sequence - ring.length <= applied;
+        };
+    }
+
+    /**
+     * One turn of waiting for a slot to reach a stage: spin, then yield,
+     * then sleep until wake().
+     */
+    private void idle(Slot slot, int stage, long sequence, int turn) {
+        if (turn < SPINS) {
+            Thread.onSpinWait();
+        } else if (turn < SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            synchronized (signal) {
+                sleepers++;
+                try {
+                    // checked again under the lock, after counting as a
+                    // sleeper, so a wake() in between is not missed
+                    if (!reached(slot, stage, sequence)) {
+                        signal.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    sleepers--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wakes the sleeping stages after a slot moved on.
+     */
+    private void wake() {
+        if (sleepers > 0) {
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+        }
+    }
+}
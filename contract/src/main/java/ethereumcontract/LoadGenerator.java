@@ -0,0 +1,306 @@
+/**
+ *  LoadGenerator.java is the headless load mode of SigningClientTCP, used to
+ *  find out how much a server deployment can take. It is started with
+ *  SigningClientTCP --mode=load and never reads the console.
+ *
+ *  It simulates --clients=N independent clients. Each one has its own key
+ *  pair, id and connection (a PipelinedClient) and its own thread, which
+ *  sends a random mix of add, min and get requests. The mix is given as
+ *  --mix=add:45,min:45,get:10 (weights, not necessarily summing to 100).
+ *  The run stops after --duration=SECONDS (30 by default) or after
+ *  --requests=N requests in total, whichever is given or comes first.
+ *
+ *  Closed loop (the default): a client keeps --window=N requests in flight
+ *  and sends the next one when a reply comes back, so the server sets the
+ *  pace. Open loop (--rate=R): the clients together send R requests per
+ *  second on a fixed schedule whatever the server does, and a latency is
+ *  counted from the time the request was due, not from when it was sent.
+ *  A server that falls behind then shows in the latencies instead of
+ *  silently slowing the load down (coordinated omission).
+ *
+ *  Latencies include signing the request on the client, like for a real
+ *  client. At the end it prints throughput, error rate and p50/p99/p999.
+ *  Requests the server turned away as "busy" are counted apart from the
+ *  errors and left out of the latencies, which are those of the requests
+ *  that were served.
+ *
+ *  Other options: --host, --port, --protocol=binary, --key-bits=N (size of
+ *  the primes, 2048 by default; smaller keys start faster but sign and
+ *  verify faster too). With --keystore=FILE the clients take their keys
+ *  from that ClientKeyStore, the same ids every run, and the keys the
+ *  store is missing are generated once and added to it.
+ *
+ *  With --replicas=HOST:PORT,... each client also connects to one of the
+ *  read replicas, round robin, and sends its gets there; add and min still
+ *  go to --host and --port, the primary.
+ *
+ *  With --ops-per-request=N (text protocol) each request is a batch of N
+ *  operations from the mix under one signature, sent to the primary.
+ *  With --session (text protocol) every connection starts a Session and
+ *  its requests carry an HMAC instead of a signature.
+ */
+
+package ethereumcontract;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class LoadGenerator {
+
+    private static final String[] OPERATIONS = {"add", "min", "get"};
+
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final int window;
+    private final boolean binary;
+    private final int keyBits;
+    // file the keys of the clients are kept in, null to generate them every run
+    private final String keyStore;
+    // host:port of the read replicas, empty if gets go to the primary too
+    private final List<String> replicas;
+    // operations per request, more than 1 sends batch requests
+    private final int opsPerRequest;
+    // true to authenticate the requests with a Session per connection
+    private final boolean session;
+    // cumulative weights of add, min and get
+    private final int[] mix;
+    // requests per second of all clients together, 0 for closed loop
+    private final double rate;
+    private final long durationNanos;
+    // requests left to send, Long.MAX_VALUE when the run is timed
+    private final AtomicLong remaining;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder busy = new LongAdder();
+    private volatile boolean stopped;
+
+    LoadGenerator(String[] args) {
+        host = VerifyingServerTCP.option(args, "host", "localhost");
+        port = Integer.parseInt(VerifyingServerTCP.option(args, "port", "7777"));
+        clients = Integer.parseInt(VerifyingServerTCP.option(args, "clients", "16"));
+        rate = Double.parseDouble(VerifyingServerTCP.option(args, "rate", "0"));
+        // in open loop the window only needs to be large enough not to get in the way
+        window = Integer.parseInt(VerifyingServerTCP.option(args, "window", rate > 0 ? "1024" : "1"));
+        binary = VerifyingServerTCP.option(args, "protocol", "text").equals("binary");
+        keyBits = Integer.parseInt(VerifyingServerTCP.option(args, "key-bits", "2048"));
+        keyStore = VerifyingServerTCP.option(args, "keystore", null);
+        String replicaList = VerifyingServerTCP.option(args, "replicas", "");
+        replicas = replicaList.isEmpty() ? List.of() : List.of(replicaList.split(","));
+        session = List.of(args).contains("--session");
+        opsPerRequest = Integer.parseInt(VerifyingServerTCP.option(args, "ops-per-request", "1"));
+        mix = parseMix(VerifyingServerTCP.option(args, "mix", "add:45,min:45,get:10"));
+        String requests = VerifyingServerTCP.option(args, "requests", null);
+        // a run given a request count is not timed unless asked to
+        String duration = VerifyingServerTCP.option(args, "duration", requests == null ? "30" : null);
+        durationNanos = duration == null ? Long.MAX_VALUE : TimeUnit.SECONDS.toNanos(Long.parseLong(duration));
+        remaining = new AtomicLong(requests == null ? Long.MAX_VALUE : Long.parseLong(requests));
+        if (clients < 1 || window < 1 || rate < 0 || opsPerRequest < 1) {
+            throw new IllegalArgumentException("--clients, --window and --ops-per-request must be positive, --rate must not be negative");
+        }
+        if (binary && (opsPerRequest > 1 || session)) {
+            throw new IllegalArgumentException("--ops-per-request and --session need the text protocol");
+        }
+    }
+
+    /**
+     * Turns "add:45,min:45,get:10" into cumulative weights {45, 90, 100}.
+     * Operations left out get weight 0.
+     */
+    static int[] parseMix(String spec) {
+        int[] weights = new int[OPERATIONS.length];
+        for (String part : spec.split(",")) {
+            String[] kv = part.split(":");
+            int op = List.of(OPERATIONS).indexOf(kv[0].trim());
+            if (op < 0 || kv.length != 2) {
+                throw new IllegalArgumentException("Bad --mix entry: " + part);
+            }
+            weights[op] = Integer.parseInt(kv[1].trim());
+        }
+        for (int i = 1; i < weights.length; i++) {
+            weights[i] += weights[i - 1];
+        }
+        if (weights[weights.length - 1] <= 0) {
+            throw new IllegalArgumentException("--mix has no positive weight");
+        }
+        return weights;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator(args).run();
+    }
+
+    /**
+     * Generates the keys, connects the clients, runs the load and prints the report.
+     */
+    void run() throws Exception {
+        // key generation is the slow part of starting, done on all cores
+        // for the keys the store does not have
+        List<SigningClientTCP> signers;
+        if (keyStore != null) {
+            System.out.printf("Loading %d key pairs of %d bit primes from %s%n", clients, keyBits, keyStore);
+            signers = ClientKeyStore.open(Paths.get(keyStore)).keys(clients, keyBits);
+        } else {
+            System.out.printf("Generating %d key pairs of %d bit primes%n", clients, keyBits);
+            signers = new ArrayList<>(clients);
+            try (KeyPool pool = new KeyPool(keyBits, clients, Runtime.getRuntime().availableProcessors())) {
+                for (int i = 0; i < clients; i++) {
+                    signers.add(pool.take());
+                }
+            }
+        }
+
+        List<PipelinedClient> connections = new ArrayList<>();
+        // connection the gets of each client go to, its only one without replicas
+        List<PipelinedClient> readConnections = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            PipelinedClient client = new PipelinedClient(host, port, signers.get(i), window, binary, session);
+            connections.add(client);
+            if (replicas.isEmpty()) {
+                readConnections.add(client);
+            } else {
+                String replica = replicas.get(i % replicas.size());
+                int colon = replica.lastIndexOf(':');
+                PipelinedClient reader = new PipelinedClient(replica.substring(0, colon),
+                        Integer.parseInt(replica.substring(colon + 1)), signers.get(i), window, binary, session);
+                connections.add(reader);
+                readConnections.add(reader);
+            }
+        }
+
+        System.out.printf("Running %d %s loop clients against %s:%d%s%n",
+                clients, rate > 0 ? "open" : "closed", host, port,
+                replicas.isEmpty() ? "" : ", gets against " + String.join(",", replicas));
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            PipelinedClient client = connections.get(replicas.isEmpty() ? i : 2 * i);
+            PipelinedClient reader = readConnections.get(i);
+            Thread t = new Thread(() -> drive(client, reader, start), "load-client-" + i);
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        for (PipelinedClient client : connections) {
+            client.close();
+        }
+        report(elapsed);
+    }
+
+    /**
+     * Body of a client thread: sends requests until the run is over,
+     * then waits for the replies still in flight.
+     * @param client connection for the changes
+     * @param reader connection for the gets, may be client
+     */
+    private void drive(PipelinedClient client, PipelinedClient reader, long start) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        // each client sends its share of the rate
+        long interval = rate > 0 ? (long) (1e9 * clients / rate) : 0;
+        // the first requests of the clients are spread over one interval
+        long due = start + (interval > 0 ? rnd.nextLong(interval) : 0);
+        CompletableFuture<?> last = CompletableFuture.completedFuture(0L);
+        CompletableFuture<?> lastRead = last;
+
+        while (!stopped) {
+            if (System.nanoTime() - start >= durationNanos || remaining.getAndDecrement() <= 0) {
+                stopped = true;
+                break;
+            }
+            long sent;
+            if (interval > 0) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                // measured from when it was due, even if it is sent late
+                sent = due;
+                due += interval;
+            } else {
+                sent = System.nanoTime();
+            }
+            // in closed loop this waits for a free place in the window
+            PipelinedClient connection;
+            CompletableFuture<?> reply;
+            if (opsPerRequest > 1) {
+                int[] operands = new int[opsPerRequest];
+                String[] operations = new String[opsPerRequest];
+                for (int k = 0; k < opsPerRequest; k++) {
+                    operands[k] = rnd.nextInt(1, 101);
+                    operations[k] = OPERATIONS[pickOperation(rnd)];
+                }
+                connection = client;
+                reply = client.submitBatch(operands, operations);
+            } else {
+                String operation = OPERATIONS[pickOperation(rnd)];
+                connection = operation.equals("get") ? reader : client;
+                reply = connection.submit(rnd.nextInt(1, 101), operation);
+            }
+            reply = reply.whenComplete((value, error) -> {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                if (cause instanceof PipelinedClient.ServerBusyException) {
+                    busy.increment();
+                    return;
+                }
+                latency.recordSince(sent);
+                if (error == null) {
+                    succeeded.increment();
+                } else {
+                    failed.increment();
+                }
+            });
+            if (connection == client) {
+                last = reply;
+            } else {
+                lastRead = reply;
+            }
+        }
+        // the replies of a connection come back in order, so the last one is the end
+        last.handle((value, error) -> null).join();
+        lastRead.handle((value, error) -> null).join();
+    }
+
+    /**
+     * @return the index in OPERATIONS of an operation drawn from the mix
+     */
+    private int pickOperation(ThreadLocalRandom rnd) {
+        int pick = rnd.nextInt(mix[mix.length - 1]);
+        int op = 0;
+        while (pick >= mix[op]) {
+            op++;
+        }
+        return op;
+    }
+
+    private void report(long elapsedNanos) {
+        long ok = succeeded.sum();
+        long errors = failed.sum();
+        long turnedAway = busy.sum();
+        long total = ok + errors + turnedAway;
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf(Locale.ROOT, "requests=%d errors=%d busy=%d errorRate=%.3f%% elapsed=%.1fs throughput=%.0f/s%n",
+                total, errors, turnedAway, total == 0 ? 0 : 100.0 * errors / total, seconds, (ok + errors) / seconds);
+        System.out.printf(Locale.ROOT, "latency p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms mean=%.2fms%n",
+                latency.quantileNanos(0.5) / 1e6, latency.quantileNanos(0.99) / 1e6,
+                latency.quantileNanos(0.999) / 1e6, latency.maxNanos() / 1e6, latency.meanNanos() / 1e6);
+        if (opsPerRequest > 1) {
+            System.out.printf(Locale.ROOT, "operations=%d throughput=%.0f ops/s%n",
+                    ok * opsPerRequest, ok * opsPerRequest / seconds);
+        }
+    }
+}
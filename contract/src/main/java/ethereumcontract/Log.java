@@ -0,0 +1,103 @@
+/**
+ *  Log.java is the server's console logger.
+ *
+ *  Messages below the configured level are dropped before they are
+ *  formatted. The others are put on a bounded queue and printed by a
+ *  background thread, so a request thread never waits for the console.
+ *  When the queue is full the message is dropped and counted instead of
+ *  slowing the server down.
+ *
+ *  The per-request messages are at DEBUG, so the default INFO level only
+ *  prints startup and periodic statistics. Run with --log-level=DEBUG to
+ *  see every request like before.
+ */
+
+package ethereumcontract;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class Log {
+
+    public enum Level { ERROR, WARN, INFO, DEBUG }
+
+    private static volatile Level level = Level.INFO;
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(64 * 1024);
+    private static final LongAdder dropped = new LongAdder();
+    private static final PrintStream out = System.out;
+
+    static {
+        Thread writer = new Thread(Log::write, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // print what is still queued when the server stops
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-drain"));
+    }
+
+    private Log() {
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean isDebug() {
+        return level == Level.DEBUG;
+    }
+
+    /**
+     * @return number of messages dropped because the queue was full
+     */
+    public static long dropped() {
+        return dropped.sum();
+    }
+
+    public static void error(String format, Object... args) {
+        log(Level.ERROR, format, args);
+    }
+
+    public static void warn(String format, Object... args) {
+        log(Level.WARN, format, args);
+    }
+
+    public static void info(String format, Object... args) {
+        log(Level.INFO, format, args);
+    }
+
+    public static void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args);
+    }
+
+    /**
+     * @param format a String.format() pattern, used as is without arguments
+     */
+    private static void log(Level messageLevel, String format, Object... args) {
+        if (messageLevel.compareTo(level) > 0) {
+            return;
+        }
+        String message = args.length == 0 ? format : String.format(format, args);
+        if (!queue.offer(message)) {
+            dropped.increment();
+        }
+    }
+
+    private static void write() {
+        try {
+            while (true) {
+                out.println(queue.take());
+            }
+        } catch (InterruptedException e) {
+            // stopping
+        }
+    }
+
+    private static void drain() {
+        String message;
+        while ((message = queue.poll()) != null) {
+            out.println(message);
+        }
+        out.flush();
+    }
+}
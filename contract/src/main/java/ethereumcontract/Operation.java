@@ -0,0 +1,56 @@
+/**
+ *  Operation.java lists the operations a client can ask the server for.
+ *  A request is parsed into one of them once, text and binary alike, and
+ *  the server dispatches on it with a single switch.
+ *
+ *  BATCH is a text request carrying a list of the other operations under
+ *  one signature, see VerifyingServerTCP.applyBatch. SESSION starts a
+ *  Session on the connection and touches no account.
+ */
+
+package ethereumcontract;
+
+public enum Operation {
+    ADD("add"),
+    MIN("min"),
+    GET("get"),
+    BATCH("batch"),
+    SESSION("session");
+
+    // the operation as it is written in a text request
+    public final String text;
+
+    Operation(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Matches the operation field of a text request without making a String.
+     * @param buf bytes of the request
+     * @param off start of the field
+     * @param len length of the field
+     * @return the operation, or null if the field is none of them
+     */
+    public static Operation parse(byte[] buf, int off, int len) {
+        for (Operation op : VALUES) {
+            if (op.matches(buf, off, len)) {
+                return op;
+            }
+        }
+        return null;
+    }
+
+    private boolean matches(byte[] buf, int off, int len) {
+        if (len != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (buf[off + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final Operation[] VALUES = values();
+}
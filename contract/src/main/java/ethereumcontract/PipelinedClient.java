@@ -0,0 +1,327 @@
+/**
+ *  PipelinedClient.java is the programmatic, non-interactive way to use the
+ *  verifying server. Unlike the menu of SigningClientTCP it does not wait for
+ *  a reply before sending the next request: every call signs the request,
+ *  writes it to the one connection and returns a CompletableFuture right away.
+ *
+ *  The server answers the requests of a connection in the order it received
+ *  them, so a reader thread completes the outstanding futures in the order
+ *  their requests were written. At most "window" requests are in flight at
+ *  once; a call made while the window is full waits for a reply first.
+ *
+ *  A request the server refuses completes its future exceptionally with a
+ *  RequestFailedException, or with a ServerBusyException when the server
+ *  turned it away under load without carrying it out; that one may be
+ *  sent again.
+ *
+ *  submitBatch() sends several operations as one signed request (text
+ *  protocol only) and gets back the value after each of them.
+ *
+ *  A client made with session = true starts a Session when it connects
+ *  (text protocol only) and authenticates every request with the session
+ *  key instead of signing it.
+ *
+ *  Example:
+ *
+ *      SigningClientTCP keys = SigningClientTCP.generateKeys(new SecureRandom());
+ *      try (PipelinedClient client = new PipelinedClient("localhost", 7777, keys, 64, false)) {
+ *          client.add(5);
+ *          client.min(2);
+ *          long sum = client.get().join();
+ *      }
+ */
+
+package ethereumcontract;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+public class PipelinedClient implements AutoCloseable {
+
+    /**
+     * Thrown (through the future) when the server answers "error".
+     */
+    public static class RequestFailedException extends RuntimeException {
+        public RequestFailedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown (through the future) when the server answers "busy": the
+     * request was not carried out and may be sent again later.
+     */
+    public static class ServerBusyException extends RequestFailedException {
+        public ServerBusyException() {
+            super("Server busy");
+        }
+    }
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final SigningClientTCP signer;
+    private final boolean binary;
+    // the session of the connection, null if requests are signed
+    private final Session session;
+    // futures of the requests on the wire, in the order they were written,
+    // with one value per operation of the request
+    private final Queue<CompletableFuture<long[]>> inFlight = new ConcurrentLinkedQueue<>();
+    // free places in the in-flight window
+    private final Semaphore window;
+    private volatile boolean closed;
+
+    /**
+     * Connects to the server and starts the reader thread.
+     * @param host server host
+     * @param port server port
+     * @param signer keys used to sign every request
+     * @param window largest number of requests in flight
+     * @param binary true to speak BinaryProtocol instead of text lines
+     */
+    public PipelinedClient(String host, int port, SigningClientTCP signer, int window, boolean binary) throws IOException {
+        this(host, port, signer, window, binary, false);
+    }
+
+    /**
+     * Connects to the server, starts a session if asked to and starts the reader thread.
+     * @param session true to start a Session and send every request with it
+     * @throws IOException also if the server refuses the session
+     */
+    public PipelinedClient(String host, int port, SigningClientTCP signer, int window, boolean binary,
+                           boolean session) throws IOException {
+        if (binary && session) {
+            throw new IllegalArgumentException("Sessions need the text protocol");
+        }
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true);
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.signer = signer;
+        this.binary = binary;
+        this.window = new Semaphore(window);
+        if (binary) {
+            out.write(BinaryProtocol.MAGIC);
+        }
+        this.session = session ? handshake() : null;
+        Thread reader = new Thread(this::readReplies, "pipelined-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Adds i to the sum kept by the server.
+     * @return the sum after the addition
+     */
+    public CompletableFuture<Long> add(int i) {
+        return submit(i, "add");
+    }
+
+    /**
+     * Subtracts i from the sum kept by the server.
+     * @return the sum after the subtraction
+     */
+    public CompletableFuture<Long> min(int i) {
+        return submit(i, "min");
+    }
+
+    /**
+     * @return the sum kept by the server
+     */
+    public CompletableFuture<Long> get() {
+        return submit(0, "get");
+    }
+
+    /**
+     * Signs and sends one request. Waits only if the window is full.
+     * @param i the operand
+     * @param operation "add", "min" or "get"
+     * @return the reply of the server
+     */
+    public CompletableFuture<Long> submit(int i, String operation) {
+        return send(() -> binary
+                ? signer.binaryRequest(i, operation)
+                : line(session != null ? session.request(i, operation) : signer.request(i, operation)))
+                .thenApply(values -> values[0]);
+    }
+
+    /**
+     * Signs several operations as one batch request and sends it. The
+     * server carries them out in order as one change, or none of them.
+     * @param operands the operand of each operation
+     * @param operations "add", "min" or "get" for each operation
+     * @return the sum after each operation
+     */
+    public CompletableFuture<long[]> submitBatch(int[] operands, String[] operations) {
+        if (binary) {
+            return CompletableFuture.failedFuture(new UnsupportedOperationException("Batches need the text protocol"));
+        }
+        return send(() -> line(session != null
+                ? session.batchRequest(operands, operations)
+                : signer.batchRequest(operands, operations)));
+    }
+
+    /**
+     * Makes and sends one request. Waits only if the window is full.
+     * @param request makes the bytes of the request
+     */
+    private CompletableFuture<long[]> send(Callable<byte[]> request) {
+        CompletableFuture<long[]> reply = new CompletableFuture<>();
+        try {
+            // sign before taking a place in the window, signing is the slow part;
+            // a session line is cheap and must take its sequence number in wire
+            // order, so it is made under the lock
+            byte[] bytes = session == null ? request.call() : null;
+            window.acquire();
+            synchronized (out) {
+                if (closed) {
+                    window.release();
+                    throw new IOException("Client is closed");
+                }
+                if (bytes == null) {
+                    try {
+                        bytes = request.call();
+                    } catch (Exception e) {
+                        window.release();
+                        throw e;
+                    }
+                }
+                // queued and written under one lock, so the queue order is the wire order
+                inFlight.add(reply);
+                out.write(bytes);
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reply.completeExceptionally(e);
+        } catch (Exception e) {
+            reply.completeExceptionally(e);
+        }
+        return reply;
+    }
+
+    private static byte[] line(String request) {
+        return (request + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Starts the session before anything else is on the wire.
+     */
+    private Session handshake() throws IOException {
+        String hello;
+        try {
+            hello = signer.request(0, "session");
+        } catch (Exception e) {
+            throw new IOException("Cannot sign the session request", e);
+        }
+        out.write(line(hello));
+        out.flush();
+        // read unbuffered, the reader thread takes the stream from here
+        InputStream in = socket.getInputStream();
+        StringBuilder reply = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed during the session handshake");
+            }
+            reply.append((char) b);
+        }
+        try {
+            return Session.open(signer, reply.toString());
+        } catch (NumberFormatException e) {
+            socket.close();
+            throw new IOException("Server refused the session: " + reply);
+        }
+    }
+
+    /**
+     * @return number of requests sent and not answered yet
+     */
+    public int inFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * Closes the connection. Requests still in flight fail.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (out) {
+            closed = true;
+        }
+        socket.close();
+    }
+
+    /**
+     * Reader thread: completes the futures in order as the replies arrive.
+     */
+    private void readReplies() {
+        try {
+            if (binary) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                while (true) {
+                    byte status = in.readByte();
+                    long value = in.readLong();
+                    complete(status == BinaryProtocol.STATUS_OK ? Long.toString(value)
+                            : status == BinaryProtocol.STATUS_BUSY ? "busy" : "error");
+                }
+            } else {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    complete(line);
+                }
+            }
+        } catch (IOException e) {
+            // connection closed, fail what is left below
+        } finally {
+            synchronized (out) {
+                closed = true;
+            }
+            CompletableFuture<long[]> reply;
+            while ((reply = inFlight.poll()) != null) {
+                reply.completeExceptionally(new IOException("Connection closed"));
+                window.release();
+            }
+        }
+    }
+
+    private void complete(String line) {
+        CompletableFuture<long[]> reply = inFlight.poll();
+        if (reply == null) {
+            // the server never answers unasked, the stream is out of sync
+            throw new IllegalStateException("Reply without a request: " + line);
+        }
+        window.release();
+        if (line.equals("error")) {
+            reply.completeExceptionally(new RequestFailedException("Error in request"));
+        } else if (line.equals("busy")) {
+            reply.completeExceptionally(new ServerBusyException());
+        } else {
+            try {
+                // a batch has one value per operation, the proof after a
+                // balance from a server with --state-root is left out
+                int proof = line.indexOf(';');
+                String[] fields = (proof < 0 ? line : line.substring(0, proof)).split(",");
+                long[] values = new long[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                    values[i] = Long.parseLong(fields[i]);
+                }
+                reply.complete(values);
+            } catch (NumberFormatException e) {
+                reply.completeExceptionally(new RequestFailedException("Unexpected reply: " + line));
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ *  ReplicationFollower.java keeps the ledger of a read replica in step with
+ *  its primary (see ReplicationPrimary).
+ *
+ *  A server run with --replica-of=host:port connects to the replication
+ *  port of the primary, loads the snapshot it sends and then applies every
+ *  change of the stream, on a daemon thread. The server itself only
+ *  answers "get" requests, checked like on the primary; "add" and "min"
+ *  get "error" and must go to the primary.
+ *
+ *  Changes of one account are applied as additions without the overflow
+ *  check, like a log replay: the primary checked them, and the balance
+ *  ends up the same in whatever order they arrive. A get on a replica sees
+ *  the account as it was on the primary some time ago, the lag. It is the
+ *  age of the newest record or heartbeat applied, measured against the
+ *  clock of the primary, so the two clocks are assumed to agree (the same
+ *  host, or NTP). Until the first snapshot is loaded every request gets
+ *  "error". When the connection drops the replica keeps answering from
+ *  what it has, with a growing lag, and reconnects every second, loading a
+ *  new snapshot over the accounts it has; while that one is loaded the
+ *  replica answers "error" again rather than mix the two.
+ */
+
+package ethereumcontract;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+public class ReplicationFollower {
+
+    private static final int RECONNECT_MILLIS = 1000;
+
+    private final String host;
+    private final int port;
+    private final Ledger ledger;
+
+    // true once a snapshot was loaded, the ledger can be read from then on
+    private volatile boolean synced;
+    // time on the primary of the newest change this ledger reflects
+    private volatile long caughtUpMillis;
+    private volatile boolean connected;
+
+    /**
+     * Starts following on a daemon thread.
+     * @param primary host:port of the replication port of the primary
+     * @param ledger the ledger of this server, only changed by the follower
+     */
+    public ReplicationFollower(String primary, Ledger ledger) {
+        int colon = primary.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Bad primary " + primary + ", expected host:port");
+        }
+        this.host = primary.substring(0, colon);
+        this.port = Integer.parseInt(primary.substring(colon + 1));
+        this.ledger = ledger;
+        Thread follower = new Thread(this::run, "replication-follower");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    /**
+     * @return true once the ledger holds a snapshot of the primary
+     */
+    public boolean synced() {
+        return synced;
+    }
+
+    /**
+     * @return true while the stream of the primary is connected
+     */
+    public boolean connected() {
+        return connected;
+    }
+
+    /**
+     * @return how far behind the primary the ledger is, in milliseconds
+     */
+    public long lagMillis() {
+        return Math.max(0, System.currentTimeMillis() - caughtUpMillis);
+    }
+
+    private void run() {
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port));
+                follow(new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16)));
+            } catch (EOFException e) {
+                Log.warn("The primary " + host + ":" + port + " closed the replication stream");
+            } catch (IOException e) {
+                if (connected) {
+                    Log.warn("Lost the primary " + host + ":" + port + ": " + e.getMessage());
+                } else {
+                    Log.debug("Cannot reach the primary " + host + ":" + port + ": " + e.getMessage());
+                }
+            }
+            connected = false;
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Loads the snapshot and applies the stream until the connection ends.
+     */
+    private void follow(DataInputStream in) throws IOException {
+        if (in.readByte() != ReplicationPrimary.SNAPSHOT) {
+            throw new IOException("Replication stream does not start with a snapshot");
+        }
+        connected = true;
+        // the accounts are a mix of the old and the new snapshot until it is loaded
+        synced = false;
+        long count = in.readLong();
+        for (long i = 0; i < count; i++) {
+            ledger.set(in.readLong(), in.readLong(), in.readInt(), in.readLong());
+        }
+        caughtUpMillis = in.readLong();
+        // accounts are never removed, so only a primary that lost its
+        // ledger has fewer of them than the replica
+        if (ledger.size() > count) {
+            Log.warn("Replica has " + (ledger.size() - count) + " accounts the primary does not, restart it to drop them");
+        }
+        synced = true;
+        Log.info("Loaded a snapshot of " + count + " accounts from " + host + ":" + port);
+
+        while (true) {
+            byte type = in.readByte();
+            switch (type) {
+                case ReplicationPrimary.DELTA -> {
+                    ledger.replay(in.readLong(), in.readLong(), in.readInt(), in.readLong());
+                    caughtUpMillis = in.readLong();
+                }
+                case ReplicationPrimary.HEARTBEAT -> caughtUpMillis = in.readLong();
+                default -> throw new IOException("Unknown replication record " + type);
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ *  ReplicationPrimary.java streams the ledger of a primary server to its
+ *  read replicas (see ReplicationFollower).
+ *
+ *  A server run with --replication-port=N accepts followers on that port.
+ *  A new follower first gets a snapshot, the balance of every account, and
+ *  then every change applied after it, as (account, delta) records in the
+ *  order they were published. Each record also carries the time it was
+ *  published, from which the follower works out its lag; when there is
+ *  nothing to send the follower gets a heartbeat every HEARTBEAT_MILLIS.
+ *
+ *  The cut between snapshot and stream is exact: every update holds the
+ *  read side of the updates() lock from changing the ledger until its record
+ *  is queued to the followers, and a snapshot is taken under the write side.
+ *  A change is therefore either in the snapshot or in the stream, never in
+ *  both or neither. Updates only wait for each other while a snapshot of a
+ *  new follower is copied.
+ *
+ *  Nothing reaches a follower before it is durable: with a write-ahead log
+ *  the sender of a follower waits until the changes it took from the queue,
+ *  or the balances of the snapshot, are on disk before it sends them, so a
+ *  replica never shows a balance a crash of the primary would lose.
+ *
+ *  Each follower has a bounded queue. One that falls too far behind is
+ *  disconnected instead of holding memory; it reconnects and starts from a
+ *  new snapshot.
+ *
+ *  Wire format, all integers big-endian:
+ *      'S' int64 count, then count times: int64 idHigh, int64 idMiddle,
+ *          int32 idLow, int64 balance; then int64 millis of the copy
+ *      'D' int64 idHigh, int64 idMiddle, int32 idLow, int64 delta, int64 millis
+ *      'H' int64 millis
+ */
+
+package ethereumcontract;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class ReplicationPrimary {
+
+    static final byte SNAPSHOT = 'S', DELTA = 'D', HEARTBEAT = 'H';
+    static final int HEARTBEAT_MILLIS = 250;
+    // records a follower may be behind before it is dropped
+    static final int MAX_BACKLOG = 1 << 20;
+
+    /**
+     * One change queued to a follower.
+     */
+    private record Change(long idHigh, long idMiddle, int idLow, long delta, long millis) {
+    }
+
+    /**
+     * A connected follower.
+     */
+    private static final class Follower {
+        final Socket socket;
+        final BlockingQueue<Change> backlog = new LinkedBlockingQueue<>(MAX_BACKLOG);
+        // set when the backlog overflowed, the sender then disconnects
+        volatile boolean lagging;
+
+        Follower(Socket socket) {
+            this.socket = socket;
+        }
+    }
+
+    /**
+     * Copy of the ledger, four longs per account.
+     */
+    private static final class Snapshot implements Ledger.AccountVisitor {
+        long[] accounts;
+        int count;
+
+        Snapshot(int expected) {
+            accounts = new long[4 * Math.max(16, expected)];
+        }
+
+        @Override
+        public void visit(long idHigh, long idMiddle, int idLow, long balance) {
+            if (4 * count + 4 > accounts.length) {
+                accounts = Arrays.copyOf(accounts, accounts.length * 2);
+            }
+            int i = 4 * count++;
+            accounts[i] = idHigh;
+            accounts[i + 1] = idMiddle;
+            accounts[i + 2] = idLow;
+            accounts[i + 3] = balance;
+        }
+    }
+
+    private final ReentrantReadWriteLock cut = new ReentrantReadWriteLock();
+    private final List<Follower> followers = new CopyOnWriteArrayList<>();
+    private final Ledger ledger;
+
+    /**
+     * Accepts followers on a daemon thread.
+     * @param ledger the ledger of this server
+     * @param bind address the port is bound to
+     * @param port replication port
+     */
+    public ReplicationPrimary(Ledger ledger, InetAddress bind, int port) throws IOException {
+        this.ledger = ledger;
+        ServerSocket listenSocket = new ServerSocket();
+        listenSocket.bind(new InetSocketAddress(bind, port));
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = listenSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    Thread sender = new Thread(() -> serve(new Follower(socket)), "replication-" + socket.getRemoteSocketAddress());
+                    sender.setDaemon(true);
+                    sender.start();
+                } catch (IOException e) {
+                    Log.warn("IO: " + e.getMessage());
+                }
+            }
+        }, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Held by every ledger update until its change is published.
+     */
+    public Lock updates() {
+        return cut.readLock();
+    }
+
+    /**
+     * Queues a change to every follower. The caller holds updates().
+     */
+    public void publish(long idHigh, long idMiddle, int idLow, long delta) {
+        if (followers.isEmpty()) {
+            return;
+        }
+        Change change = new Change(idHigh, idMiddle, idLow, delta, System.currentTimeMillis());
+        for (Follower follower : followers) {
+            if (!follower.backlog.offer(change)) {
+                follower.lagging = true;
+            }
+        }
+    }
+
+    /**
+     * @return number of connected followers
+     */
+    public int followers() {
+        return followers.size();
+    }
+
+    /**
+     * Copies the ledger and registers the follower with no update in
+     * between, then sends the copy.
+     * @return number of accounts sent
+     */
+    private int sendSnapshot(Follower follower, DataOutputStream out) throws IOException, InterruptedException {
+        Snapshot snapshot = new Snapshot(ledger.size());
+        long millis;
+        cut.writeLock().lock();
+        try {
+            ledger.forEach(snapshot);
+            followers.add(follower);
+            millis = System.currentTimeMillis();
+        } finally {
+            cut.writeLock().unlock();
+        }
+        // the changes in the copy were logged before they could be read
+        VerifyingServerTCP.awaitDurable();
+        out.writeByte(SNAPSHOT);
+        out.writeLong(snapshot.count);
+        long[] accounts = snapshot.accounts;
+        for (int i = 0; i < 4 * snapshot.count; i += 4) {
+            out.writeLong(accounts[i]);
+            out.writeLong(accounts[i + 1]);
+            out.writeInt((int) accounts[i + 2]);
+            out.writeLong(accounts[i + 3]);
+        }
+        // the time of the copy, the lag of the follower once it is loaded
+        out.writeLong(millis);
+        out.flush();
+        return snapshot.count;
+    }
+
+    /**
+     * Sender thread of one follower: the snapshot, then the stream.
+     */
+    private void serve(Follower follower) {
+        try (Socket socket = follower.socket) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+
+            int count = sendSnapshot(follower, out);
+            Log.info("Replica " + socket.getRemoteSocketAddress() + " connected, sent " + count + " accounts");
+
+            List<Change> batch = new ArrayList<>();
+            while (!follower.lagging) {
+                Change change = follower.backlog.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                if (change == null) {
+                    out.writeByte(HEARTBEAT);
+                    out.writeLong(System.currentTimeMillis());
+                    out.flush();
+                    continue;
+                }
+                batch.add(change);
+                follower.backlog.drainTo(batch);
+                // every change taken was logged before it was queued
+                VerifyingServerTCP.awaitDurable();
+                for (Change queued : batch) {
+                    out.writeByte(DELTA);
+                    out.writeLong(queued.idHigh());
+                    out.writeLong(queued.idMiddle());
+                    out.writeInt(queued.idLow());
+                    out.writeLong(queued.delta());
+                    out.writeLong(queued.millis());
+                }
+                batch.clear();
+                // one flush for everything that was queued
+                out.flush();
+            }
+            Log.warn("Replica " + socket.getRemoteSocketAddress() + " fell " + MAX_BACKLOG
+                    + " changes behind, disconnecting it");
+        } catch (IOException e) {
+            Log.info("Replica disconnected: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            followers.remove(follower);
+        }
+    }
+}
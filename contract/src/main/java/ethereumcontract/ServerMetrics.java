@@ -0,0 +1,161 @@
+/**
+ *  ServerMetrics.java holds the counters and the per-stage latency
+ *  histograms of the verifying server and serves them over HTTP.
+ *
+ *  Stages of a request:
+ *      parse   breaking the line or frame into its fields
+ *      idCheck finding the identity in the cache, or hashing the key to the id
+ *      verify  the RSA signature check (modPow and SHA-256)
+ *      ledger  the balance update, including the log append
+ *      commit  waiting for the write-ahead log fsync
+ *      request the whole request, from parse to reply
+ *
+ *  With --metrics-port=N the server answers GET http://127.0.0.1:N/metrics
+ *  with all of them in the Prometheus text format. Only the loopback
+ *  interface is bound.
+ */
+
+package ethereumcontract;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class ServerMetrics {
+
+    public static final LatencyHistogram parse = new LatencyHistogram();
+    public static final LatencyHistogram idCheck = new LatencyHistogram();
+    public static final LatencyHistogram verify = new LatencyHistogram();
+    public static final LatencyHistogram ledger = new LatencyHistogram();
+    public static final LatencyHistogram commit = new LatencyHistogram();
+    public static final LatencyHistogram request = new LatencyHistogram();
+
+    public static final LongAdder validSignatures = new LongAdder();
+    public static final LongAdder invalidSignatures = new LongAdder();
+    // the public key does not hash to the id
+    public static final LongAdder idMismatches = new LongAdder();
+    // lines or frames that could not be parsed or applied
+    public static final LongAdder malformedRequests = new LongAdder();
+    // operations carried out as part of batch requests
+    public static final LongAdder batchOperations = new LongAdder();
+    // sessions started by a handshake, see Session
+    public static final LongAdder sessions = new LongAdder();
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private ServerMetrics() {
+    }
+
+    /**
+     * Starts the HTTP endpoint on the loopback interface.
+     * @param port port of the endpoint
+     */
+    public static void serve(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start();
+    }
+
+    /**
+     * @return every metric in the Prometheus text format
+     */
+    public static String render() {
+        StringBuilder sb = new StringBuilder();
+        counter(sb, "ledger_signatures_valid_total", validSignatures.sum());
+        counter(sb, "ledger_signatures_invalid_total", invalidSignatures.sum());
+        counter(sb, "ledger_id_mismatch_total", idMismatches.sum());
+        counter(sb, "ledger_malformed_requests_total", malformedRequests.sum());
+        counter(sb, "ledger_batch_operations_total", batchOperations.sum());
+        counter(sb, "ledger_sessions_started_total", sessions.sum());
+        counter(sb, "ledger_shed_total", Admission.shed.sum());
+        counter(sb, "ledger_rate_limited_connection_total", Admission.connectionLimited.sum());
+        counter(sb, "ledger_rate_limited_id_total", Admission.idLimited.sum());
+        gauge(sb, "ledger_rate_limited_id_buckets", Admission.idBuckets());
+        counter(sb, "ledger_log_messages_dropped_total", Log.dropped());
+        gauge(sb, "ledger_accounts", VerifyingServerTCP.ledger.size());
+
+        IdentityCache cache = VerifyingServerTCP.identityCache;
+        counter(sb, "ledger_identity_cache_hits_total", cache.hits());
+        counter(sb, "ledger_identity_cache_misses_total", cache.misses());
+        counter(sb, "ledger_identity_cache_evictions_total", cache.evictions());
+        gauge(sb, "ledger_identity_cache_size", cache.size());
+
+        if (VerifyingServerTCP.pipeline != null) {
+            gauge(sb, "ledger_pipeline_group_average", VerifyingServerTCP.pipeline.averageGroupSize());
+        }
+        if (VerifyingServerTCP.batchVerifier != null) {
+            gauge(sb, "ledger_batch_size_average", VerifyingServerTCP.batchVerifier.averageBatchSize());
+        }
+        WriteAheadLog wal = VerifyingServerTCP.wal;
+        if (wal != null) {
+            counter(sb, "ledger_wal_fsyncs_total", wal.fsyncs());
+            gauge(sb, "ledger_wal_fsync_average_seconds", wal.averageFsyncMicros() / 1e6);
+            gauge(sb, "ledger_wal_fsync_max_seconds", wal.maxFsyncMicros() / 1e6);
+            gauge(sb, "ledger_wal_records_per_fsync", wal.recordsPerFsync());
+            gauge(sb, "ledger_wal_recovery_seconds", wal.recoveryMillis() / 1e3);
+        }
+        if (VerifyingServerTCP.replicationPrimary != null) {
+            gauge(sb, "ledger_replication_followers", VerifyingServerTCP.replicationPrimary.followers());
+        }
+        ReplicationFollower follower = VerifyingServerTCP.replicationFollower;
+        if (follower != null) {
+            gauge(sb, "ledger_replication_connected", follower.connected() ? 1 : 0);
+            gauge(sb, "ledger_replication_lag_seconds", follower.lagMillis() / 1e3);
+        }
+
+        sb.append("# TYPE ledger_stage_latency_seconds summary\n");
+        stage(sb, "parse", parse);
+        stage(sb, "idCheck", idCheck);
+        stage(sb, "verify", verify);
+        stage(sb, "ledger", ledger);
+        stage(sb, "commit", commit);
+        stage(sb, "request", request);
+        return sb.toString();
+    }
+
+    private static void stage(StringBuilder sb, String stage, LatencyHistogram h) {
+        for (double q : QUANTILES) {
+            sb.append(String.format(Locale.ROOT, "ledger_stage_latency_seconds{stage=\"%s\",quantile=\"%s\"} %.9f%n",
+                    stage, q, h.quantileNanos(q) / 1e9));
+        }
+        sb.append(String.format(Locale.ROOT, "ledger_stage_latency_seconds_count{stage=\"%s\"} %d%n", stage, h.count()));
+        sb.append(String.format(Locale.ROOT, "ledger_stage_latency_seconds_sum{stage=\"%s\"} %.9f%n",
+                stage, h.meanNanos() * h.count() / 1e9));
+        sb.append(String.format(Locale.ROOT, "ledger_stage_latency_seconds_max{stage=\"%s\"} %.9f%n",
+                stage, h.maxNanos() / 1e9));
+    }
+
+    private static void counter(StringBuilder sb, String name, long value) {
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, double value) {
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(String.format(Locale.ROOT, "%s", value)).append('\n');
+    }
+
+    /**
+     * @return a one line summary of the main latencies, for the console
+     */
+    public static String summary() {
+        return String.format(Locale.ROOT,
+                "requests=%d valid=%d invalid=%d p50=%.0fus p99=%.0fus p999=%.0fus verifyP99=%.0fus",
+                request.count(), validSignatures.sum(), invalidSignatures.sum(),
+                request.quantileNanos(0.5) / 1e3, request.quantileNanos(0.99) / 1e3,
+                request.quantileNanos(0.999) / 1e3, verify.quantileNanos(0.99) / 1e3);
+    }
+}
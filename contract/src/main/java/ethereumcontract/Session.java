@@ -0,0 +1,199 @@
+/**
+ *  Session.java lets a text client that keeps its connection open pay for
+ *  one RSA signature check per connection instead of one per request.
+ *
+ *  The client starts a session with a signed request whose operation is
+ *  "session", id,key,session,0;signature, checked like any other request.
+ *  The server picks a random secret k below the modulus n of the client and
+ *  replies with k^65537 mod n, which only the holder of the private key can
+ *  turn back into k. Both sides then use SHA-256(k) as an HMAC-SHA256 key,
+ *  and the next requests of the connection are
+ *
+ *      @sequence,operation,operand;mac
+ *
+ *  where mac is the HMAC of everything before the ';', in hex, and the
+ *  operand may be a batch like in a signed request. A line is accepted only
+ *  if its sequence number is above that of the last accepted line, so it
+ *  cannot be replayed or moved. Checking it costs one HMAC instead of a
+ *  modPow. Replaying a recorded handshake gives nothing away, the reply is
+ *  encrypted to the key of the client.
+ *
+ *  A session belongs to its connection and ends with it; a new handshake
+ *  replaces it. Signed requests keep working next to it. Session lines
+ *  carry no id, so the ShardRouter cannot route them: a session needs a
+ *  direct connection to a server.
+ */
+
+package ethereumcontract;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public final class Session {
+
+    // first byte of a session line, a signed line starts with a digit or '-'
+    public static final byte PREFIX = '@';
+    // length of the mac of a session line, HMAC-SHA256 in hex
+    public static final int MAC_HEX_LENGTH = 64;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    // null until a handshake, on the server
+    private Mac mac;
+    // the client the session was started for, only on the server
+    private IdentityCache.Identity identity;
+    // highest sequence number accepted on the server, last one sent on the client
+    private long sequence;
+
+    /**
+     * A connection without a session yet, on the server.
+     */
+    public Session() {
+    }
+
+    private Session(BigInteger secret) {
+        mac = newMac(secret);
+    }
+
+    /**
+     * Server side of the handshake, for a client whose "session" request
+     * passed the checks. Replaces any session the connection had.
+     * @param identity the verified client
+     * @return the reply line, the secret encrypted with the public key of the client
+     */
+    public byte[] start(IdentityCache.Identity identity) {
+        BigInteger n = identity.n;
+        BigInteger secret;
+        do {
+            secret = new BigInteger(n.bitLength() - 1, RANDOM);
+        } while (secret.compareTo(BigInteger.TWO) < 0);
+        this.mac = newMac(secret);
+        this.identity = identity;
+        this.sequence = 0;
+        ServerMetrics.sessions.increment();
+        return (secret.modPow(identity.e, n) + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Server side: checks the mac and the sequence number of a parsed session line.
+     * @param request a request parsed from a session line
+     * @return the identity of the session, or null if the line is not authentic
+     */
+    public IdentityCache.Identity check(VerifyingServerTCP.Request request) {
+        long t = System.nanoTime();
+        if (mac == null || request.sequence <= sequence) {
+            ServerMetrics.invalidSignatures.increment();
+            Log.debug("No session or sequence number reused");
+            return null;
+        }
+        mac.update(request.buf, request.messageOffset, request.messageLength);
+        byte[] expected = mac.doFinal();
+        // every byte is compared, the time does not tell where they differ
+        byte[] buf = request.buf;
+        int diff = 0;
+        for (int i = 0; i < expected.length; i++) {
+            int pos = request.signatureOffset + 2 * i;
+            diff |= buf[pos] ^ HEX[(expected[i] >> 4) & 0xf];
+            diff |= buf[pos + 1] ^ HEX[expected[i] & 0xf];
+        }
+        ServerMetrics.verify.recordSince(t);
+        if (diff != 0) {
+            ServerMetrics.invalidSignatures.increment();
+            Log.debug("Invalid session mac");
+            return null;
+        }
+        ServerMetrics.validSignatures.increment();
+        sequence = request.sequence;
+        return identity;
+    }
+
+    /**
+     * Client side of the handshake.
+     * @param signer keys of the client, the ones the "session" request was signed with
+     * @param reply the reply of the server to that request
+     * @return the session, ready to make lines
+     * @throws NumberFormatException if the reply is not a number, e.g. "error"
+     */
+    public static Session open(SigningClientTCP signer, String reply) {
+        return new Session(signer.decrypt(new BigInteger(reply.trim())));
+    }
+
+    /**
+     * Client side: makes a session line for one operation.
+     * Lines must be sent in the order they are made.
+     */
+    public synchronized String request(int i, String operation) {
+        return line(operation + "," + i);
+    }
+
+    /**
+     * Client side: makes a session line for a batch of operations,
+     * see SigningClientTCP.batchRequest.
+     */
+    public synchronized String batchRequest(int[] operands, String[] operations) {
+        if (operands.length != operations.length || operands.length == 0) {
+            throw new IllegalArgumentException("A batch needs one operand per operation, and at least one");
+        }
+        StringBuilder message = new StringBuilder("batch,");
+        for (int k = 0; k < operations.length; k++) {
+            if (k > 0) {
+                message.append('|');
+            }
+            message.append(operations[k]).append(':').append(operands[k]);
+        }
+        return line(message.toString());
+    }
+
+    private String line(String operationAndOperand) {
+        String message = (char) PREFIX + String.valueOf(++sequence) + "," + operationAndOperand;
+        byte[] digest = mac.doFinal(message.getBytes(StandardCharsets.US_ASCII));
+        byte[] hex = new byte[MAC_HEX_LENGTH];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[digest[i] & 0xf];
+        }
+        return message + ";" + new String(hex, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return true if the line is a session line or a handshake, the lines
+     *         that must be checked in order on their connection
+     */
+    static boolean isSessionLine(byte[] buf, int off, int len) {
+        if (len > 0 && buf[off] == PREFIX) {
+            return true;
+        }
+        // the operation is the third field
+        int end = off + len;
+        int field = 0;
+        for (int i = off; i < end; i++) {
+            if (buf[i] == ',' && ++field == 2) {
+                int start = i + 1;
+                int stop = start;
+                while (stop < end && buf[stop] != ',') {
+                    stop++;
+                }
+                return Operation.parse(buf, start, stop - start) == Operation.SESSION;
+            }
+        }
+        return false;
+    }
+
+    private static Mac newMac(BigInteger secret) {
+        try {
+            byte[] key = MessageDigest.getInstance("SHA-256").digest(secret.toByteArray());
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            // every Java platform has SHA-256 and HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ *  ShardAdmin.java serves the admin port of a shard, the commands the
+ *  ShardRouter uses to hand accounts over when a shard is added.
+ *
+ *  A shard is a VerifyingServerTCP run with --shard=NAME --admin-port=N. It
+ *  only changes or reads the accounts its ShardMap gives to NAME, every
+ *  other request gets "error", and until the router sends it a map it owns
+ *  nothing. The admin port is bound to the loopback interface only and is
+ *  a line protocol, one command per connection:
+ *
+ *      ring SPEC           use the map SPEC from now on
+ *      export NAME SPEC    list the accounts that shard NAME owns in SPEC,
+ *                          one "id balance" line each
+ *      import              set the balances of the "id balance" lines that
+ *                          follow, up to a line "end"
+ *      drop NAME SPEC      set to 0 the accounts that shard NAME owns in SPEC
+ *
+ *  Every command ends its reply with a line "ok ..." or "error ...". Changes
+ *  made by import and drop go through the write-ahead log and to the read
+ *  replicas like requests.
+ *  The router stops forwarding while it runs the commands of a handoff, so
+ *  the accounts cannot change between export and drop.
+ */
+
+package ethereumcontract;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class ShardAdmin {
+
+    private ShardAdmin() {
+    }
+
+    /**
+     * Starts serving the admin port on a daemon thread.
+     * @param port admin port, bound on 127.0.0.1
+     */
+    public static void serve(int port) throws IOException {
+        ServerSocket listenSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread admin = new Thread(() -> {
+            while (true) {
+                // commands are rare and short, one at a time is enough
+                try (Socket socket = listenSocket.accept()) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)));
+                    String command = in.readLine();
+                    if (command != null) {
+                        try {
+                            execute(command, in, out);
+                        } catch (Exception e) {
+                            Log.warn("Admin command failed: " + e);
+                            out.println("error " + e.getMessage());
+                        }
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    Log.warn("IO: " + e.getMessage());
+                }
+            }
+        }, "shard-admin");
+        admin.setDaemon(true);
+        admin.start();
+    }
+
+    private static void execute(String command, BufferedReader in, PrintWriter out) throws Exception {
+        String[] words = command.trim().split(" ");
+        switch (words[0]) {
+            case "ring" -> {
+                ShardMap map = ShardMap.parse(words[1]);
+                if (map.shard(VerifyingServerTCP.shardName) == null) {
+                    throw new IllegalArgumentException("Shard " + VerifyingServerTCP.shardName + " is not in the map");
+                }
+                VerifyingServerTCP.shardMap = map;
+                Log.info("Shard map is now " + map);
+                out.println("ok");
+            }
+            case "export" -> {
+                List<long[]> accounts = accountsOf(words[1], ShardMap.parse(words[2]));
+                for (long[] account : accounts) {
+                    out.println(Ledger.idString(account[0], account[1], (int) account[2]) + " " + account[3]);
+                }
+                out.println("ok " + accounts.size());
+            }
+            case "import" -> {
+                int count = 0;
+                String line;
+                while ((line = in.readLine()) != null && !line.equals("end")) {
+                    String[] idBalance = line.split(" ");
+                    byte[] id = Ledger.idBytes(idBalance[0]);
+                    set(Ledger.idHigh(id, 0), Ledger.idMiddle(id, 0), Ledger.idLow(id, 0), Long.parseLong(idBalance[1]));
+                    count++;
+                }
+                VerifyingServerTCP.awaitDurable();
+                Log.info("Imported " + count + " accounts");
+                out.println("ok " + count);
+            }
+            case "drop" -> {
+                List<long[]> accounts = accountsOf(words[1], ShardMap.parse(words[2]));
+                for (long[] account : accounts) {
+                    set(account[0], account[1], (int) account[2], 0);
+                }
+                VerifyingServerTCP.awaitDurable();
+                Log.info("Handed " + accounts.size() + " accounts to shard " + words[1]);
+                out.println("ok " + accounts.size());
+            }
+            default -> out.println("error unknown command " + words[0]);
+        }
+    }
+
+    /**
+     * @return the accounts with a balance that shard name owns in the map,
+     *         as {idHigh, idMiddle, idLow, balance}
+     */
+    private static List<long[]> accountsOf(String name, ShardMap map) {
+        List<long[]> accounts = new ArrayList<>();
+        VerifyingServerTCP.ledger.forEach((idHigh, idMiddle, idLow, balance) -> {
+            if (balance != 0 && map.owner(idHigh).name.equals(name)) {
+                accounts.add(new long[]{idHigh, idMiddle, idLow, balance});
+            }
+        });
+        return accounts;
+    }
+
+    /**
+     * Sets a balance, as the change from the current one. The router
+     * forwards nothing during a handoff, so the balance cannot change
+     * in between.
+     */
+    private static void set(long idHigh, long idMiddle, int idLow, long balance) throws IOException {
+        long delta = balance - VerifyingServerTCP.ledger.get(idHigh, idMiddle, idLow);
+        if (delta != 0) {
+            VerifyingServerTCP.update(idHigh, idMiddle, idLow, delta);
+        }
+    }
+
+    /**
+     * Client side: runs one command on the admin port of a shard.
+     * @param shard the shard
+     * @param command the command line
+     * @param body lines sent after the command and a final "end", or null
+     * @return the lines of the reply before the "ok" line
+     * @throws IOException if the shard cannot be reached or answers "error"
+     */
+    static List<String> command(ShardMap.Shard shard, String command, List<String> body) throws IOException {
+        try (Socket socket = new Socket(shard.host, shard.adminPort)) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            out.write(command + "\n");
+            if (body != null) {
+                for (String line : body) {
+                    out.write(line + "\n");
+                }
+                out.write("end\n");
+            }
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            List<String> lines = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("ok")) {
+                    return lines;
+                }
+                if (line.startsWith("error")) {
+                    throw new IOException("Shard " + shard.name + ": " + line);
+                }
+                lines.add(line);
+            }
+            throw new IOException("Shard " + shard.name + " closed the admin connection");
+        }
+    }
+}
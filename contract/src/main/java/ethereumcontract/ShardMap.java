@@ -0,0 +1,176 @@
+/**
+ *  ShardMap.java assigns every account to one shard of a sharded ledger
+ *  (see ShardRouter) with consistent hashing.
+ *
+ *  Each shard is placed on a ring of 64 bit positions at VIRTUAL_NODES
+ *  points, the first 8 bytes of SHA-256(name + "#" + i). An account lives
+ *  on the shard of the first point at or after the position of its id,
+ *  wrapping around. Ids are already the low bytes of a SHA-256 hash, so the
+ *  first 8 bytes of the id (Ledger.idHigh) are used as its position as is.
+ *  Adding a shard only moves the accounts between its new points and the
+ *  points before them, about 1/N of all accounts, and all of them move to
+ *  the new shard.
+ *
+ *  A map is written as a spec, name=host:port:adminPort entries separated
+ *  by commas, e.g. a=127.0.0.1:7001:9001,b=127.0.0.1:7002:9002. The port
+ *  serves clients, the admin port the handoff commands of ShardAdmin. Two
+ *  maps made from the same shards place every account the same way, so the
+ *  router and the shards agree without talking about more than the spec.
+ */
+
+package ethereumcontract;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public final class ShardMap {
+
+    // points per shard, enough to keep the shards within a few percent of each other
+    static final int VIRTUAL_NODES = 128;
+
+    /**
+     * One shard of the ledger: a VerifyingServerTCP run with --shard=name.
+     */
+    public static final class Shard {
+        public final String name;
+        public final String host;
+        public final int port;
+        public final int adminPort;
+
+        Shard(String name, String host, int port, int adminPort) {
+            this.name = name;
+            this.host = host;
+            this.port = port;
+            this.adminPort = adminPort;
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + host + ":" + port + ":" + adminPort;
+        }
+    }
+
+    private final List<Shard> shards;
+    // ring points in increasing order, and the shard of each point
+    private final long[] points;
+    private final Shard[] owners;
+
+    private ShardMap(List<Shard> shards) {
+        this.shards = Collections.unmodifiableList(shards);
+        int count = shards.size() * VIRTUAL_NODES;
+        long[][] ring = new long[count][];
+        int k = 0;
+        for (int s = 0; s < shards.size(); s++) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring[k++] = new long[]{point(shards.get(s).name + "#" + i), s};
+            }
+        }
+        // ties, which SHA-256 makes very unlikely, go to the shard listed first
+        Arrays.sort(ring, (x, y) -> x[0] != y[0] ? Long.compare(x[0], y[0]) : Long.compare(x[1], y[1]));
+        points = new long[count];
+        owners = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = ring[i][0];
+            owners[i] = shards.get((int) ring[i][1]);
+        }
+    }
+
+    /**
+     * @param spec shards as name=host:port:adminPort, separated by commas
+     * @return the map of those shards
+     * @throws IllegalArgumentException if the spec is malformed or names a shard twice
+     */
+    public static ShardMap parse(String spec) {
+        List<Shard> shards = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            String[] nameAddress = entry.trim().split("=");
+            String[] address = nameAddress.length == 2 ? nameAddress[1].split(":") : new String[0];
+            if (address.length != 3 || nameAddress[0].isEmpty()) {
+                throw new IllegalArgumentException("Bad shard " + entry + ", expected name=host:port:adminPort");
+            }
+            for (Shard shard : shards) {
+                if (shard.name.equals(nameAddress[0])) {
+                    throw new IllegalArgumentException("Shard " + shard.name + " is listed twice");
+                }
+            }
+            shards.add(new Shard(nameAddress[0], address[0], Integer.parseInt(address[1]), Integer.parseInt(address[2])));
+        }
+        return new ShardMap(shards);
+    }
+
+    /**
+     * @return a map with the shards of this one and the given one
+     */
+    public ShardMap with(Shard shard) {
+        List<Shard> more = new ArrayList<>(shards);
+        more.add(shard);
+        return parse(toString(more));
+    }
+
+    /**
+     * @param idHigh the first 8 bytes of an account id
+     * @return the shard that owns the account
+     */
+    public Shard owner(long idHigh) {
+        // first point at or after the id, the ring wraps around to point 0
+        int i = Arrays.binarySearch(points, idHigh);
+        if (i < 0) {
+            i = -i - 1;
+        } else {
+            // several shards could share the point, take the first one
+            while (i > 0 && points[i - 1] == idHigh) {
+                i--;
+            }
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    /**
+     * @return the shard with that name, or null
+     */
+    public Shard shard(String name) {
+        for (Shard shard : shards) {
+            if (shard.name.equals(name)) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    public List<Shard> shards() {
+        return shards;
+    }
+
+    /**
+     * @return the spec of this map, parse() gives it back
+     */
+    @Override
+    public String toString() {
+        return toString(shards);
+    }
+
+    private static String toString(List<Shard> shards) {
+        StringBuilder sb = new StringBuilder();
+        for (Shard shard : shards) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(shard);
+        }
+        return sb.toString();
+    }
+
+    private static long point(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return Ledger.idHigh(hash, 0);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,467 @@
+/**
+ *  ShardRouter.java is the front end of a sharded ledger. Clients connect
+ *  to it exactly as to a single VerifyingServerTCP, text or binary, and it
+ *  forwards each request unchanged to the shard that owns the account of
+ *  the request (see ShardMap). It does not verify anything, the shard does
+ *  that as usual, so the router only reads the client id of a request.
+ *  Session lines carry no id and get "error"; a Session needs a direct
+ *  connection to a server.
+ *
+ *  Every client connection gets its own connection to each shard it uses.
+ *  Requests are forwarded as they arrive, so a pipelining client keeps its
+ *  requests in flight on all the shards at once, and the replies are sent
+ *  back in the order of the requests.
+ *
+ *  Options:
+ *      --port=N                  port the clients connect to
+ *      --shards=SPEC             the shards, name=host:port:adminPort,...
+ *      --admin-port=N            loopback port of the router's own commands
+ *
+ *  Shards are added while the router runs with the command
+ *  "add name=host:port:adminPort" on its admin port. The router stops
+ *  forwarding, waits for the replies in flight, moves the accounts the new
+ *  shard takes over with ShardAdmin export, import and drop, sends every
+ *  shard the new map and starts forwarding again. If the replies in flight
+ *  do not all come back within HANDOFF_WAIT_SECONDS, for example because a
+ *  client stopped reading them, the shard is not added and forwarding goes
+ *  on with the old map. "map" prints the current map. Everything can run as separate processes on one machine, see the
+ *  README.
+ */
+
+package ethereumcontract;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+
+public class ShardRouter {
+
+    // the current map, replaced as a whole when a shard is added
+    private volatile ShardMap map;
+
+    // how long a handoff waits for the requests in flight
+    static final long HANDOFF_WAIT_SECONDS = 30;
+
+    // held for reading while a request is matched to its shard and written
+    // to it, and for writing by a handoff, so no request is forwarded with
+    // the old map once the accounts move
+    private final StampedLock forwarding = new StampedLock();
+    // the requests forwarded whose reply is not read yet: a handoff waits
+    // for them, their shard may still be carrying them out
+    private final InFlight inFlight = new InFlight();
+
+    private final ExecutorService threads = Executors.newCachedThreadPool();
+
+    public ShardRouter(ShardMap map) {
+        this.map = map;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Log.setLevel(Log.Level.valueOf(VerifyingServerTCP.option(args, "log-level", "INFO").toUpperCase()));
+        int port = Integer.parseInt(VerifyingServerTCP.option(args, "port", "7777"));
+        String spec = VerifyingServerTCP.option(args, "shards", null);
+        if (spec == null) {
+            throw new IllegalArgumentException("--shards=name=host:port:adminPort,... is required");
+        }
+        ShardRouter router = new ShardRouter(ShardMap.parse(spec));
+        router.sendMap();
+        router.serveAdmin(Integer.parseInt(VerifyingServerTCP.option(args, "admin-port", String.valueOf(port + 2000))));
+        router.serve(port);
+    }
+
+    /**
+     * Accepts client connections until the process is stopped.
+     */
+    public void serve(int port) throws IOException {
+        try (ServerSocket listenSocket = new ServerSocket(port)) {
+            Log.info("Router on port " + port + " for shards " + map);
+            while (true) {
+                Socket clientSocket = listenSocket.accept();
+                clientSocket.setTcpNoDelay(true);
+                threads.execute(() -> new ClientConnection(clientSocket).run());
+            }
+        }
+    }
+
+    /**
+     * Tells every shard the current map.
+     */
+    private void sendMap() throws IOException {
+        for (ShardMap.Shard shard : map.shards()) {
+            ShardAdmin.command(shard, "ring " + map, null);
+        }
+    }
+
+    /**
+     * Adds a shard and hands it the accounts it owns in the new map.
+     * @return number of accounts moved
+     */
+    synchronized int addShard(ShardMap.Shard added) throws IOException, InterruptedException {
+        if (map.shard(added.name) != null) {
+            throw new IllegalArgumentException("Shard " + added.name + " is already in the map");
+        }
+        ShardMap next = map.with(added);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(HANDOFF_WAIT_SECONDS);
+        // a request being written to a shard that stopped reading holds this up
+        long stamp = forwarding.tryWriteLock(HANDOFF_WAIT_SECONDS, TimeUnit.SECONDS);
+        if (stamp == 0) {
+            throw new IOException("Requests still being forwarded after " + HANDOFF_WAIT_SECONDS + "s, shard not added");
+        }
+        try {
+            if (!inFlight.awaitNone(deadline)) {
+                throw new IOException("Replies still in flight after " + HANDOFF_WAIT_SECONDS + "s, shard not added");
+            }
+            int moved = 0;
+            for (ShardMap.Shard shard : map.shards()) {
+                List<String> accounts = ShardAdmin.command(shard, "export " + added.name + " " + next, null);
+                ShardAdmin.command(added, "import", accounts);
+                // only dropped once the new shard has them
+                ShardAdmin.command(shard, "drop " + added.name + " " + next, null);
+                moved += accounts.size();
+                Log.info("Moved " + accounts.size() + " accounts from shard " + shard.name + " to " + added.name);
+            }
+            map = next;
+            sendMap();
+            return moved;
+        } finally {
+            forwarding.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Serves the router commands on the loopback interface.
+     */
+    private void serveAdmin(int port) throws IOException {
+        ServerSocket listenSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread admin = new Thread(() -> {
+            while (true) {
+                try (Socket socket = listenSocket.accept()) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+                    String command = in.readLine();
+                    if (command == null) {
+                        continue;
+                    }
+                    String[] words = command.trim().split(" ");
+                    try {
+                        if (words[0].equals("add") && words.length == 2) {
+                            ShardMap.Shard added = ShardMap.parse(words[1]).shards().get(0);
+                            out.println("ok moved " + addShard(added) + " accounts");
+                        } else if (words[0].equals("map")) {
+                            out.println("ok " + map);
+                        } else {
+                            out.println("error unknown command " + command);
+                        }
+                    } catch (Exception e) {
+                        Log.warn("Router command failed: " + e);
+                        out.println("error " + e.getMessage());
+                    }
+                } catch (IOException e) {
+                    Log.warn("IO: " + e.getMessage());
+                }
+            }
+        }, "router-admin");
+        admin.setDaemon(true);
+        admin.start();
+        Log.info("Router admin on 127.0.0.1:" + port);
+    }
+
+    /**
+     * Counts the requests forwarded whose reply is not read yet, over all
+     * client connections.
+     */
+    private static final class InFlight {
+        private long count;
+
+        synchronized void started() {
+            count++;
+        }
+
+        synchronized void finished() {
+            if (--count == 0) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * @param deadline System.nanoTime() to give up at
+         * @return true once no request is in flight, false at the deadline
+         */
+        synchronized boolean awaitNone(long deadline) throws InterruptedException {
+            while (count > 0) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A request forwarded to a shard, or answered by the router itself,
+     * waiting for its reply to be relayed.
+     */
+    private static final class Pending {
+        // the shard connection the reply comes from, null for a local reply
+        final Backend backend;
+        final byte[] localReply;
+
+        Pending(Backend backend, byte[] localReply) {
+            this.backend = backend;
+            this.localReply = localReply;
+        }
+    }
+
+    // marks the end of the requests of a connection
+    private static final Pending END = new Pending(null, null);
+
+    /**
+     * A connection of one client connection to one shard.
+     */
+    private static final class Backend {
+        final Socket socket;
+        final OutputStream out;
+        final InputStream in;
+        // reads text replies, unused for binary
+        final VerifyingServerTCP.LineReader lines;
+
+        Backend(ShardMap.Shard shard, boolean binary) throws IOException {
+            socket = new Socket(shard.host, shard.port);
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new BufferedInputStream(socket.getInputStream());
+            lines = new VerifyingServerTCP.LineReader(in);
+            if (binary) {
+                out.write(BinaryProtocol.MAGIC);
+            }
+        }
+
+        /**
+         * @return the next reply of the shard, as it goes to the client
+         */
+        byte[] reply(boolean binary) throws IOException {
+            if (binary) {
+                byte[] reply = new byte[BinaryProtocol.REPLY_LENGTH];
+                new DataInputStream(in).readFully(reply);
+                return reply;
+            }
+            if (!lines.next()) {
+                throw new EOFException("Shard closed the connection");
+            }
+            byte[] reply = new byte[lines.lineLength + 1];
+            System.arraycopy(lines.buf, lines.lineStart, reply, 0, lines.lineLength);
+            reply[lines.lineLength] = '\n';
+            return reply;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.warn("IO: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * One client connection: this thread reads and forwards the requests,
+     * a second one relays the replies in order.
+     */
+    private final class ClientConnection {
+        final Socket socket;
+        boolean binary;
+        // connections to the shards, opened on first use, only used by the reading thread
+        final Map<String, Backend> backends = new HashMap<>();
+        final BlockingQueue<Pending> pending = new LinkedBlockingQueue<>();
+
+        ClientConnection(Socket socket) {
+            this.socket = socket;
+        }
+
+        void run() {
+            try {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                in.mark(1);
+                binary = in.read() == BinaryProtocol.MAGIC;
+                if (!binary) {
+                    in.reset();
+                }
+                threads.execute(this::relay);
+                if (binary) {
+                    forwardFrames(new DataInputStream(in));
+                } else {
+                    forwardLines(new VerifyingServerTCP.LineReader(in));
+                }
+            } catch (IOException e) {
+                Log.debug("IO: " + e.getMessage());
+            } finally {
+                pending.add(END);
+            }
+        }
+
+        private void forwardLines(VerifyingServerTCP.LineReader in) throws IOException {
+            while (in.next()) {
+                long idHigh;
+                try {
+                    // only the id is read, the first field of the line
+                    int comma = 0;
+                    while (comma < in.lineLength && in.buf[in.lineStart + comma] != ',') {
+                        comma++;
+                    }
+                    String id = new String(in.buf, in.lineStart, comma, StandardCharsets.US_ASCII);
+                    idHigh = Ledger.idHigh(Ledger.idBytes(id), 0);
+                } catch (RuntimeException e) {
+                    pending.add(new Pending(null, VerifyingServerTCP.ERROR_REPLY));
+                    continue;
+                }
+                forward(idHigh, in.buf, in.lineStart, in.lineLength, true);
+            }
+        }
+
+        private void forwardFrames(DataInputStream in) throws IOException {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (length <= 1 + BinaryProtocol.ID_LENGTH || length > BinaryProtocol.MAX_FRAME) {
+                    Log.warn("Binary frame of " + length + " bytes, closing connection");
+                    return;
+                }
+                byte[] frame = new byte[4 + length];
+                frame[0] = (byte) (length >>> 24);
+                frame[1] = (byte) (length >>> 16);
+                frame[2] = (byte) (length >>> 8);
+                frame[3] = (byte) length;
+                in.readFully(frame, 4, length);
+                // the id follows the length and the opcode
+                forward(Ledger.idHigh(frame, 5), frame, 0, frame.length, false);
+            }
+        }
+
+        /**
+         * Writes a request to the shard of its account.
+         */
+        private void forward(long idHigh, byte[] buf, int off, int len, boolean newline) {
+            // the owner stays the owner until the request is written to it,
+            // the reply is waited for through inFlight
+            long stamp = forwarding.readLock();
+            ShardMap.Shard shard = map.owner(idHigh);
+            Backend backend = backends.get(shard.name);
+            try {
+                if (backend == null) {
+                    backend = new Backend(shard, binary);
+                    backends.put(shard.name, backend);
+                }
+                backend.out.write(buf, off, len);
+                if (newline) {
+                    backend.out.write('\n');
+                }
+                backend.out.flush();
+                inFlight.started();
+                pending.add(new Pending(backend, null));
+            } catch (IOException e) {
+                Log.warn("Shard " + shard.name + ": " + e.getMessage());
+                backends.remove(shard.name);
+                if (backend != null) {
+                    // the replies still expected from it come back as errors
+                    backend.close();
+                }
+                pending.add(new Pending(null, errorReply()));
+            } finally {
+                forwarding.unlockRead(stamp);
+            }
+        }
+
+        private byte[] errorReply() {
+            return binary ? BinaryProtocol.reply(BinaryProtocol.STATUS_ERROR, 0) : VerifyingServerTCP.ERROR_REPLY;
+        }
+
+        /**
+         * Second thread of the connection: sends the replies back in the
+         * order of the requests, then closes everything.
+         */
+        private void relay() {
+            try {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                // once the client is gone the replies are still taken, so a
+                // handoff does not wait for them
+                boolean clientGone = false;
+                while (true) {
+                    Pending next = pending.take();
+                    if (next == END) {
+                        break;
+                    }
+                    byte[] reply;
+                    if (next.backend == null) {
+                        reply = next.localReply;
+                    } else {
+                        try {
+                            reply = next.backend.reply(binary);
+                        } catch (IOException e) {
+                            Log.warn("Shard reply: " + e.getMessage());
+                            reply = errorReply();
+                        } finally {
+                            inFlight.finished();
+                        }
+                    }
+                    if (clientGone) {
+                        continue;
+                    }
+                    try {
+                        out.write(reply);
+                        // one flush for all the replies that are ready
+                        if (pending.isEmpty()) {
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        Log.debug("IO: " + e.getMessage());
+                        clientGone = true;
+                        // stops the reading thread too
+                        socket.close();
+                    }
+                }
+                if (!clientGone) {
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                Log.debug("IO: " + e.getMessage());
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    Log.warn("IO: " + e.getMessage());
+                }
+                for (Backend backend : backends.values()) {
+                    backend.close();
+                }
+            }
+        }
+    }
+}
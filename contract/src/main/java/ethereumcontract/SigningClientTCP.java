@@ -0,0 +1,650 @@
+/**
+ *  Author: Lawrence Li
+ *  Last Modified: Feb 23rd, 2022
+ *
+ *  SigningClientTCP.java provides capabilities to sign messages.
+ *  SigningClientTCP has three private members: RSA e,d and n.
+ *  These are java BigIntegers. It also keeps the public key and the
+ *  client id derived from them.
+ *
+ *  For signing: the SigningClientTCP object is constructed with RSA
+ *  keys (e,d,n). These keys are not created here but are passed in by the caller.
+ *  Then, a caller can sign a message - the string returned by the sign
+ *  method is evidence that the signer has the associated private key.
+ *  After a message is signed, the message and the string may be transmitted
+ *  or stored.
+ *
+ *  Run with --protocol=binary to send requests as BinaryProtocol frames
+ *  instead of decimal text lines. With --session the client starts a
+ *  Session on its connection with its first request and then sends its
+ *  requests with an HMAC instead of a signature. With --mode=load it runs no menu but
+ *  the load generator described in LoadGenerator.
+ *
+ *  The keys are generated by a KeyPool in the background from the start,
+ *  so they are usually ready by the first request. With --keystore=FILE
+ *  the client takes its keys from that ClientKeyStore instead, and keeps
+ *  its id across runs; the first run stores the keys it generated there.
+ */
+
+package ethereumcontract;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.Scanner;
+
+public class SigningClientTCP {
+
+    BigInteger e; // e is the exponent of the public key
+    BigInteger d; // d is the exponent of the private key
+    BigInteger n; // n is the modulus for both the private and public keys
+    // id of the client, derived from the public key
+    String idStr;
+    // public key, e and n concatenated as decimal
+    String publicKey;
+    // raw 20 bytes of the id, sent by the binary protocol
+    byte[] idBytes;
+    // private key in CRT form: the primes, d mod (p-1), d mod (q-1) and q^-1 mod p.
+    // null when the signer was only given d and n.
+    BigInteger p, q, dP, dQ, qInv;
+
+    // keys of the interactive session, created by its first request
+    static SigningClientTCP signer;
+    // serverPort variable
+    static int serverPort;
+    // create a client socket
+    static Socket clientSocket = null;
+    // reads and writes the lines of clientSocket, made once per connection
+    // so no reply read ahead is lost between requests
+    static BufferedReader socketIn;
+    static PrintWriter socketOut;
+    // To check to see if client from the same session
+    static int session = 0;
+    // true when the client talks to the server with BinaryProtocol frames
+    static boolean binary = false;
+    // true to start a Session on the connection, see --session
+    static boolean useSession = false;
+    // the session of the connection once it is started
+    static Session connectionSession;
+    // generates the keys of the interactive session while the user types
+    static KeyPool keyPool;
+    // where the keys of the interactive session are kept, null without --keystore
+    static ClientKeyStore keyStore;
+
+    /** A SigningClientTCP object may be constructed with RSA's e, d, and n.
+     *  The holder of the private key (the signer) would call this
+     *  constructor. Only d and n are used for signing.
+     *  The public key and the client id are derived from e and n here.
+     */
+    public SigningClientTCP(BigInteger e, BigInteger d, BigInteger n) throws Exception {
+        this.e = e;
+        this.d = d;
+        this.n = n;
+
+        // convert the e and n to string and concatenate them
+        // to get the public key
+        publicKey = String.valueOf(e) + String.valueOf(n);
+        // hash the public key using SHA-256
+        byte[] publicKeyBytes = publicKey.getBytes();
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(publicKeyBytes);
+        byte[] publicKeyDigest = md.digest();
+
+        // takes the least significant 20 bytes of the hash
+        int len = publicKeyDigest.length;
+        idBytes = Arrays.copyOfRange(publicKeyDigest,len - 20, len);
+
+        // client id created
+        idStr = new BigInteger(idBytes).toString();
+    }
+
+    /** A signer that also keeps the primes p and q signs through the
+     *  Chinese Remainder Theorem: two exponentiations with half size
+     *  exponents modulo half size primes instead of one modulo n.
+     *  The signatures are the same as with d and n alone.
+     */
+    public SigningClientTCP(BigInteger e, BigInteger d, BigInteger n, BigInteger p, BigInteger q) throws Exception {
+        this(e, d, n);
+        this.p = p;
+        this.q = q;
+        this.dP = d.mod(p.subtract(BigInteger.ONE));
+        this.dQ = d.mod(q.subtract(BigInteger.ONE));
+        this.qInv = q.modInverse(p);
+    }
+
+    public static void main(String args[]) throws Exception {
+        // headless load test of a server, see LoadGenerator
+        if(VerifyingServerTCP.option(args, "mode", "").equals("load")) {
+            LoadGenerator.main(args);
+            return;
+        }
+        System.out.println("The client is running");
+
+        // a stored key pair is used as it is, otherwise the search for the
+        // primes starts now instead of at the first request
+        String keyStoreFile = VerifyingServerTCP.option(args, "keystore", null);
+        if(keyStoreFile != null) {
+            keyStore = ClientKeyStore.open(Paths.get(keyStoreFile));
+        }
+        if(keyStore == null || keyStore.size() == 0) {
+            keyPool = new KeyPool(KEY_PRIME_BITS, 1, 1);
+        }
+
+        // Let user enter port number
+        Scanner reader = new Scanner(System.in);
+
+        // --protocol=binary uses the compact binary frames instead of text lines
+        for(String arg : args) {
+            if(arg.equals("--protocol=binary")) {
+                binary = true;
+            }
+            if(arg.equals("--session")) {
+                useSession = true;
+            }
+        }
+
+        System.out.println("Please enter server port: ");
+        serverPort = reader.nextInt();
+        clientSocket = new Socket("localhost", serverPort);
+        if(binary) {
+            // tell the server this connection uses the binary protocol
+            clientSocket.getOutputStream().write(BinaryProtocol.MAGIC);
+        } else {
+            socketIn = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            socketOut = new PrintWriter(new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream())));
+        }
+        System.out.println(" ");
+
+        // user's action choice
+        int choice;
+        // user input value
+        int value;
+        // operation result after user's choice of operation
+        String res;
+        while(true) {
+            // list of actions user can choose
+            System.out.println("1. Add a value to your sum.");
+            System.out.println("2. Subtract a value from your sum.");
+            System.out.println("3. Get your sum.");
+            System.out.println("4. Exit client");
+
+            // get user's choice of action
+            choice = reader.nextInt();
+            switch (choice) {
+                // if user choose to add
+                case 1 -> {
+                    System.out.println("Enter value to add: ");
+                    // the value entered by the user
+                    value = reader.nextInt();
+                    // use add helper function to get the result from server
+                    res = add(value);
+                    if(res.equals("error")) {
+                        break;
+                    }
+                    System.out.println("The result is " + res);
+                    System.out.println(" ");
+                }
+                // if user choose to subtract
+                case 2 -> {
+                    System.out.println("Enter value to subtract: ");
+                    // the value entered by the user
+                    value = reader.nextInt();
+                    //use min helper function to get the result from server
+                    res = min(value);
+                    if(res.equals("error")) {
+                        break;
+                    }
+                    System.out.println("The result is " + res);
+                    System.out.println(" ");
+                }
+                // if user choose to get result by a user id
+                case 3 -> {
+                    //use get helper function to get the result from server
+                    res = get();
+                    if(res.equals("error")) {
+                        break;
+                    }
+                    System.out.println("The result is " + res);
+                    System.out.println(" ");
+                }
+            }
+            // exits the client, but server is still running
+            if(choice == 4) {
+                System.out.println("Client side quitting. The remote variable server is still running.");
+                // Make the session back to 0
+                session = 0;
+                connectionSession = null;
+                // close the client socket
+                if (clientSocket != null) {
+                    clientSocket.close();
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Add helper function
+     * @param i value enter by user
+     * @return result from server after adding i to the value
+     */
+    public static String add(int i) throws Exception {
+        String res = useServer(i,"add");
+        return res;
+    }
+
+    /**
+     * min helper function
+     * @param i value enter by user
+     * @return result from server after subtracting i from value
+     */
+    public static String min(int i) throws Exception {
+        String res = useServer(i,"min");
+        return res;
+    }
+
+    /**
+     * get helper function
+     * @return user with id's current value from server
+     */
+
+    public static String get() throws Exception {
+        String res = useServer(0,"get");
+        // a server with --state-root proves the balance, see StateTree
+        String[] fields = res.split(";");
+        if(fields.length == 3) {
+            boolean proven;
+            try {
+                HexFormat hex = HexFormat.of();
+                proven = StateTree.verify(hex.parseHex(fields[1]), Ledger.idHigh(signer.idBytes, 0),
+                        Ledger.idMiddle(signer.idBytes, 0), Ledger.idLow(signer.idBytes, 0),
+                        Long.parseLong(fields[0]), hex.parseHex(fields[2]));
+            } catch (IllegalArgumentException e) {
+                proven = false;
+            }
+            System.out.println(proven ? "Balance proven under state root " + fields[1]
+                    : "The proof of the balance does not check out!");
+            res = fields[0];
+        }
+        return res;
+    }
+
+    /**
+     * use this function to connect to server passes in
+     * value entered by the user, user's id and types of operation.
+     * It also uses RSA to generate the public key and client id
+     * @param i value enter by user
+     * @param operation type of operation
+     * @return the operation result done by the server
+     */
+
+    public static String useServer(int i, String operation) throws Exception {
+        if(binary) {
+            return useServerBinary(i, operation);
+        }
+        // initialize value to zero
+        String value = "";
+
+        try {
+            // reads and writes data of clientSocket
+            BufferedReader in = socketIn;
+            PrintWriter out = socketOut;
+
+            // the first request with --session starts the session of the connection
+            if(useSession && connectionSession == null) {
+                out.println(RSA(0, "session"));
+                out.flush();
+                String reply = in.readLine();
+                if(reply == null || reply.equals("error") || reply.equals("busy")) {
+                    System.out.println("The server refused the session: " + reply);
+                    return "error";
+                }
+                connectionSession = Session.open(signer, reply);
+            }
+
+            // Use RSA to sign the data, or the session key once there is a session
+            String m = connectionSession != null ? connectionSession.request(i, operation) : RSA(i,operation);
+            // send the data to server
+            out.println(m);
+            out.flush();
+
+            // receive data from server
+            String data = in.readLine(); // read a line of data from the stream
+            if(data.equals("error")) {
+                System.out.println("Error in request!");
+            }
+            // the server did not carry it out, it may be tried again later
+            if(data.equals("busy")) {
+                System.out.println("Server busy, try again later");
+                return "error";
+            }
+            // parse the data to integer
+            value = data;
+            return value;
+        }
+        // handle socket exceptions
+        catch (SocketException e) {
+            System.out.println("Socket: " + e.getMessage());
+        }
+        // handle general I/O exceptions
+        catch (IOException e) {
+            System.out.println("IO: " + e.getMessage());
+        }
+        return value;
+    }
+
+    /**
+     * Binary protocol version of useServer: sends one signed request
+     * frame and reads the reply frame.
+     * @param i value enter by user
+     * @param operation type of operation
+     * @return the operation result done by the server, or "error"
+     */
+    public static String useServerBinary(int i, String operation) throws Exception {
+        try {
+            DataInputStream in = new DataInputStream(clientSocket.getInputStream());
+            OutputStream out = clientSocket.getOutputStream();
+
+            // send the signed frame to server
+            out.write(RSABinary(i, operation));
+            out.flush();
+
+            // receive the status and the value
+            byte status = in.readByte();
+            long value = in.readLong();
+            if(status == BinaryProtocol.STATUS_BUSY) {
+                System.out.println("Server busy, try again later");
+                return "error";
+            }
+            if(status != BinaryProtocol.STATUS_OK) {
+                System.out.println("Error in request!");
+                return "error";
+            }
+            return String.valueOf(value);
+        }
+        // handle socket exceptions
+        catch (SocketException e) {
+            System.out.println("Socket: " + e.getMessage());
+        }
+        // handle general I/O exceptions
+        catch (IOException e) {
+            System.out.println("IO: " + e.getMessage());
+        }
+        return "error";
+    }
+
+    /**
+     * Reference: DS Project2 Task 5 RSAExample.java
+     *
+     *  1. Select at random two large prime numbers p and q.
+     *  2. Compute n by the equation n = p * q.
+     *  3. Compute phi(n)=  (p - 1) * ( q - 1)
+     *  4. Select a small odd integer e that is relatively prime to phi(n).
+     *  5. Compute d as the multiplicative inverse of e modulo phi(n). A theorem in
+     *      number theory asserts that d exists and is uniquely defined.
+     *  6. Publish the pair P = (e,n) as the RSA public key.
+     *  7. Keep secret the pair S = (d,n) as the RSA private key.
+     *  8. Generate client id
+     *  9. Create message = id, the public key (e and n), the operation, the operand.
+     *  10. Sign the message: signature = E(h(message),d).
+     *  11. Return the combination of message + signature
+     *
+     * @param i
+     * @param operation
+     * @return the combination of clear message and signature
+     * @throws Exception
+     */
+
+    public static String RSA(int i,String operation) throws Exception {
+
+        // create public key and client id once the same session
+        if(session == 0) {
+            newSession();
+        }
+
+        return signer.request(i, operation);
+    }
+
+    /**
+     * Creates the keys of the interactive session and shows them to the user.
+     * @throws Exception
+     */
+    static void newSession() throws Exception {
+        if(keyStore != null && keyStore.size() > 0) {
+            // the same keys, and id, as the runs before
+            signer = keyStore.get(0);
+        } else {
+            // usually ready already, generated since the client started
+            if(keyPool == null) {
+                keyPool = new KeyPool(KEY_PRIME_BITS, 1, 1);
+            }
+            signer = keyPool.take();
+            keyPool.close();
+            if(keyStore != null) {
+                keyStore.add(signer);
+            }
+        }
+
+        // Print the public key to console
+        System.out.println("The public key is: ");// Step 6: (e,n) is the RSA public key
+        System.out.println("e: " + signer.e);
+        System.out.println("n: " + signer.n);
+        // line break
+        System.out.println(" ");
+        // Print the private key to console
+        System.out.println("The private key is: ");// Step 7: (d,n) is the RSA private key
+        System.out.println("d: " + signer.d);
+        System.out.println("n: " + signer.n);
+
+        // increase the session so the program knows if it is the same client
+        session++;
+    }
+
+    /**
+     * Steps 1 to 8 of RSA(): creates a new key pair, the returned
+     * signer also holds the public key and the client id.
+     * @param rnd source of randomness for the primes
+     * @return a signer for the new keys
+     * @throws Exception
+     */
+    public static SigningClientTCP generateKeys(Random rnd) throws Exception {
+        return generateKeys(rnd, KEY_PRIME_BITS);
+    }
+
+    // We use 2048 bits primes here, the best practice for security is 2048 bits.
+    static final int KEY_PRIME_BITS = 2048;
+
+    /**
+     * Same as generateKeys(Random) with primes of the given size,
+     * the modulus is twice as long. Used by the benchmarks.
+     * @param rnd source of randomness for the primes
+     * @param primeBits size of p and q in bits
+     * @return a signer for the new keys
+     * @throws Exception
+     */
+    public static SigningClientTCP generateKeys(Random rnd, int primeBits) throws Exception {
+        // Used the code from RSAExample.java for Project2Task5
+        // Each public and private key consists of an exponent and a modulus
+
+        // Step 1: Generate two large random primes.
+        BigInteger p = new BigInteger(primeBits, 100, rnd);
+        BigInteger q = new BigInteger(primeBits, 100, rnd);
+
+        return fromPrimes(p, q);
+    }
+
+    /**
+     * Steps 2 to 8 of RSA(): the key pair made from two primes, such as
+     * the ones kept by a ClientKeyStore.
+     * @param p a large prime
+     * @param q another large prime
+     * @return a signer for the keys
+     * @throws Exception
+     */
+    public static SigningClientTCP fromPrimes(BigInteger p, BigInteger q) throws Exception {
+        // Step 2: Compute n by the equation n = p * q.
+        BigInteger n = p.multiply(q);
+
+        // Step 3: Compute phi(n) = (p-1) * (q-1)
+        BigInteger phi = (p.subtract(BigInteger.ONE)).multiply(q.subtract(BigInteger.ONE));
+
+        // Step 4: Select a small odd integer e that is relatively prime to phi(n).
+        // By convention the prime 65537 is used as the public exponent.
+        BigInteger e = new BigInteger("65537");
+
+        // Step 5: Compute d as the multiplicative inverse of e modulo phi(n).
+        BigInteger d = e.modInverse(phi);
+
+        // Steps 6 to 8 are done by the constructor,
+        // which also keeps p and q for CRT signing
+        return new SigningClientTCP(e, d, n, p, q);
+    }
+
+    /**
+     * Steps 9 to 11 of RSA(): builds a signed text request line with these keys.
+     * @param i the operand
+     * @param operation type of operation
+     * @return the combination of clear message and signature
+     * @throws Exception
+     */
+    public String request(int i, String operation) throws Exception {
+        // make the operand from user's input as a string
+        String operand = String.valueOf(i);
+
+        // Combine id, the public key, the operation, and the operand for signature
+        String message = idStr  + "," + publicKey + "," + operation + "," + operand;
+        String signedVal = sign(message);
+
+        return message + ";" + signedVal;
+    }
+
+    /**
+     * Builds one signed text request line for several operations, carried
+     * out in order as one change by the server.
+     * @param operands the operand of each operation
+     * @param operations the operations, "add", "min" or "get"
+     * @return the combination of clear message and signature
+     * @throws Exception
+     */
+    public String batchRequest(int[] operands, String[] operations) throws Exception {
+        if(operands.length != operations.length || operands.length == 0) {
+            throw new IllegalArgumentException("A batch needs one operand per operation, and at least one");
+        }
+        StringBuilder message = new StringBuilder(idStr).append(',').append(publicKey).append(",batch,");
+        for(int k = 0; k < operations.length; k++) {
+            if(k > 0) {
+                message.append('|');
+            }
+            message.append(operations[k]).append(':').append(operands[k]);
+        }
+        // one signature for all of them
+        return message + ";" + sign(message.toString());
+    }
+
+    /**
+     * Builds a signed binary request frame with the keys of the
+     * interactive session, see BinaryProtocol.
+     * @param i the operand
+     * @param operation type of operation
+     * @return the whole frame, ready to send
+     * @throws Exception
+     */
+    public static byte[] RSABinary(int i, String operation) throws Exception {
+        // make sure the keys and the id exist
+        if(session == 0) {
+            newSession();
+        }
+        return signer.binaryRequest(i, operation);
+    }
+
+    /**
+     * Builds a signed binary request frame with these keys.
+     * @param i the operand
+     * @param operation type of operation
+     * @return the whole frame, ready to send
+     * @throws Exception
+     */
+    public byte[] binaryRequest(int i, String operation) throws Exception {
+        byte[] signedPart = BinaryProtocol.signedPart(BinaryProtocol.opcode(operation), idBytes, n.toByteArray(), i);
+        byte[] signature = sign(signedPart, 0, signedPart.length).toByteArray();
+        return BinaryProtocol.frame(signedPart, signature);
+    }
+
+    /**
+     * Signing proceeds as follows:
+     * 1) Get the bytes from the string to be signed.
+     * 2) Compute a SHA-1 digest of these bytes.
+     * 3) Copy these bytes into a byte array that is one byte longer than needed.
+     *    The resulting byte array has its extra byte set to zero. This is because
+     *    RSA works only on positive numbers. The most significant byte (in the
+     *    new byte array) is the 0'th byte. It must be set to zero.
+     * 4) Create a BigInteger from the byte array.
+     * 5) Encrypt the BigInteger with RSA d and n (through the CRT when
+     *    the signer knows p and q).
+     * 6) Return to the caller a String representation of this BigInteger.
+     * @param message a string to be signed
+     * @return a string representing a big integer - the encrypted hash.
+     * @throws Exception
+     */
+    public String sign(String message) throws Exception {
+
+        byte[] bytesOfMessage = message.getBytes("UTF-8");
+
+        // return this as a big integer string
+        return sign(bytesOfMessage, 0, bytesOfMessage.length).toString();
+    }
+
+    /**
+     * Same as sign(String) for a message given as bytes message[off, off + len).
+     * @return the encrypted hash
+     * @throws Exception
+     */
+    public BigInteger sign(byte[] message, int off, int len) throws Exception {
+
+        // compute the digest with SHA-256
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(message, off, len);
+        byte[] bigDigest = md.digest();
+
+        // we only want two bytes of the hash for SigningClientTCP
+        // we add a 0 byte as the most significant byte to keep
+        // the value to be signed non-negative.
+        byte[] messageDigest = new byte[bigDigest.length + 1];
+        messageDigest[0] = 0;   // most significant set to 0
+        System.arraycopy(bigDigest,0,messageDigest,1,bigDigest.length);
+
+        // From the digest, create a BigInteger
+        BigInteger m = new BigInteger(messageDigest);
+
+        // encrypt the digest with the private key
+        return decrypt(m);
+    }
+
+    /**
+     * The private key operation, m^d mod n. Signs a digest, and opens a
+     * value encrypted with the public key such as the secret of a Session.
+     * @param m a number below n
+     * @return m^d mod n
+     */
+    public BigInteger decrypt(BigInteger m) {
+        if(p == null) {
+            return m.modPow(d, n);
+        }
+
+        // same result as m^d mod n, computed as m^dP mod p and m^dQ mod q
+        // and recombined with Garner's formula
+        BigInteger m1 = m.modPow(dP, p);
+        BigInteger m2 = m.modPow(dQ, q);
+        BigInteger h = qInv.multiply(m1.subtract(m2)).mod(p);
+        BigInteger c = m2.add(h.multiply(q));
+
+        return c;
+    }
+}
+
@@ -0,0 +1,505 @@
+/**
+ *  StateTree.java commits to the whole ledger with one SHA-256 hash, the
+ *  state root, and proves the balance of an account against it.
+ *
+ *  The accounts are the leaves of a binary Patricia trie keyed by the bits
+ *  of the 20 byte id, most significant first. A branch splits its accounts
+ *  on the first bit in which they differ, so there is exactly one trie for
+ *  a set of accounts, whatever the order they were added in, and a path is
+ *  about log2(accounts) branches long rather than 160. The first 6 bits of
+ *  the id pick the segment of the Ledger, which holds the trie of its
+ *  accounts; the roots of the 64 tries are joined by a full binary tree of
+ *  6 levels on those bits.
+ *
+ *      empty     32 zero bytes
+ *      leaf      SHA-256(0x00, id, balance as 8 bytes big-endian)
+ *      branch    SHA-256(0x01, bit, hash of the 0 side, hash of the 1 side)
+ *
+ *  where bit is the position in the id the branch splits on, 0 to 159. The
+ *  6 levels over the segments are branches on bits 0 to 5 as well, with
+ *  empty sides where a segment has no account.
+ *
+ *  Nodes are never changed: an update copies the path from the root to the
+ *  account, leaving the old trie as it was, so a ledger snapshot is just
+ *  the 64 roots taken at one moment (see Ledger.snapshot). Hashes are only
+ *  computed when a root or a proof is asked for, and then only for the
+ *  nodes created since, which makes the cost of an update a walk down its
+ *  path, and lets the hashing of the paths of many updates be shared.
+ *
+ *  A proof walks from the leaf up to the root: one byte for what ends the
+ *  path of the id,
+ *
+ *      0  the leaf of the account
+ *      1  the leaf of another account, followed by its id and balance,
+ *         which proves the account does not exist: its balance is 0
+ *      2  an empty segment, the account does not exist either
+ *
+ *  then the number of steps and, for each, the bit of the branch and the
+ *  hash of the other side. verify() checks one.
+ */
+
+package ethereumcontract;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+public final class StateTree {
+
+    // length of a hash
+    public static final int HASH_LENGTH = 32;
+    // bits of the id that pick the segment of a Ledger
+    public static final int SEGMENT_BITS = 6;
+
+    private static final byte[] EMPTY = new byte[HASH_LENGTH];
+    private static final byte LEAF = 0, BRANCH = 1;
+    // what ends the path of an id in a proof
+    private static final byte ACCOUNT = 0, OTHER_ACCOUNT = 1, EMPTY_SEGMENT = 2;
+
+    // MessageDigest is not thread-safe, each thread keeps its own
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /**
+     * A node of a trie, immutable but for its hash, which is filled in
+     * the first time it is needed.
+     */
+    public abstract static sealed class Node permits Leaf, Branch {
+        // volatile, the hash of a node of a snapshot may be computed by
+        // another thread than the one that reads it
+        private volatile byte[] hash;
+    }
+
+    /**
+     * One account.
+     */
+    public static final class Leaf extends Node {
+        public final long idHigh;
+        public final long idMiddle;
+        public final int idLow;
+        public final long balance;
+
+        Leaf(long idHigh, long idMiddle, int idLow, long balance) {
+            this.idHigh = idHigh;
+            this.idMiddle = idMiddle;
+            this.idLow = idLow;
+            this.balance = balance;
+        }
+    }
+
+    /**
+     * Accounts whose ids agree before bit and differ in it.
+     */
+    public static final class Branch extends Node {
+        public final int bit;
+        // the accounts with a 0 and a 1 at bit
+        public final Node zero;
+        public final Node one;
+
+        Branch(int bit, Node zero, Node one) {
+            this.bit = bit;
+            this.zero = zero;
+            this.one = one;
+        }
+    }
+
+    /**
+     * Receives the accounts of a scan, see Snapshot.scan().
+     */
+    public interface LeafVisitor {
+        /**
+         * @return false to end the scan after this account
+         */
+        boolean visit(Leaf leaf);
+    }
+
+    /**
+     * A balance with the root it belongs to and the proof that joins them.
+     */
+    public record Proof(long balance, byte[] root, byte[] path) {
+    }
+
+    private StateTree() {
+    }
+
+    /**
+     * @param root a trie, null if it is empty
+     * @return the trie with the balance of the account set, the same trie
+     *         if it already has that balance
+     */
+    public static Node put(Node root, long idHigh, long idMiddle, int idLow, long balance) {
+        Leaf leaf = new Leaf(idHigh, idMiddle, idLow, balance);
+        if (root == null) {
+            return leaf;
+        }
+        Leaf found = find(root, idHigh, idMiddle, idLow);
+        int differs = firstDifference(found, idHigh, idMiddle, idLow);
+        if (differs < 0) {
+            return found.balance == balance ? root : replace(root, leaf);
+        }
+        return insert(root, leaf, differs);
+    }
+
+    /**
+     * @return the leaf the bits of the id lead to in a trie that is not
+     *         empty: the account, or the closest one if it does not exist
+     */
+    public static Leaf find(Node root, long idHigh, long idMiddle, int idLow) {
+        Node node = root;
+        while (node instanceof Branch branch) {
+            node = bit(idHigh, idMiddle, idLow, branch.bit) == 0 ? branch.zero : branch.one;
+        }
+        return (Leaf) node;
+    }
+
+    private static Node replace(Node node, Leaf leaf) {
+        if (node instanceof Branch branch) {
+            return bit(leaf, branch.bit) == 0
+                    ? new Branch(branch.bit, replace(branch.zero, leaf), branch.one)
+                    : new Branch(branch.bit, branch.zero, replace(branch.one, leaf));
+        }
+        return leaf;
+    }
+
+    /**
+     * Adds a new account below the branches on bits before differs, the
+     * first bit in which it differs from the accounts on its path.
+     */
+    private static Node insert(Node node, Leaf leaf, int differs) {
+        if (node instanceof Branch branch && branch.bit < differs) {
+            return bit(leaf, branch.bit) == 0
+                    ? new Branch(branch.bit, insert(branch.zero, leaf, differs), branch.one)
+                    : new Branch(branch.bit, branch.zero, insert(branch.one, leaf, differs));
+        }
+        return bit(leaf, differs) == 0 ? new Branch(differs, leaf, node) : new Branch(differs, node, leaf);
+    }
+
+    /**
+     * @param root a trie, null if it is empty
+     * @return the hash of the trie, computing the missing hashes
+     */
+    public static byte[] hash(Node root) {
+        if (root == null) {
+            return EMPTY;
+        }
+        byte[] hash = root.hash;
+        if (hash != null) {
+            return hash;
+        }
+        if (root instanceof Branch branch) {
+            hash = branchHash(branch.bit, hash(branch.zero), hash(branch.one));
+        } else {
+            Leaf leaf = (Leaf) root;
+            hash = leafHash(leaf.idHigh, leaf.idMiddle, leaf.idLow, leaf.balance);
+        }
+        root.hash = hash;
+        return hash;
+    }
+
+    /**
+     * The tries of the segments of a Ledger at one moment, see
+     * Ledger.snapshot(). It stays as it was while the ledger changes.
+     */
+    public static final class Snapshot {
+        private final Node[] segments;
+        // the snapshot hashed before this one was taken, until this one is hashed
+        private Snapshot previous;
+        // hashes of the levels over the segments, [0] those of the segments
+        // and [SEGMENT_BITS] the root, once computed
+        private byte[][][] levels;
+
+        Snapshot(Node[] segments, Snapshot previous) {
+            this.segments = segments;
+            // a hashed one, so no chain of snapshots builds up
+            this.previous = previous == null ? null : previous.hashedBase();
+        }
+
+        /**
+         * @return the trie of a segment, null if it is empty
+         */
+        public Node trie(int index) {
+            return segments[index];
+        }
+
+        /**
+         * @return the state root
+         */
+        public byte[] root() {
+            return levels()[SEGMENT_BITS][0];
+        }
+
+        /**
+         * @return the balance of the account in the snapshot, 0 if it
+         *         does not exist, with the state root and the proof of it
+         */
+        public Proof prove(long idHigh, long idMiddle, int idLow) {
+            int segment = segment(idHigh);
+            byte[][][] levels = levels();
+
+            // the branches on the path down, then the leaf at its end
+            Branch[] path = new Branch[Ledger.ID_LENGTH * 8];
+            int depth = 0;
+            Node node = segments[segment];
+            while (node instanceof Branch branch) {
+                path[depth++] = branch;
+                node = bit(idHigh, idMiddle, idLow, branch.bit) == 0 ? branch.zero : branch.one;
+            }
+            Leaf leaf = (Leaf) node;
+            boolean found = leaf != null && firstDifference(leaf, idHigh, idMiddle, idLow) < 0;
+
+            ByteBuffer out = ByteBuffer.allocate(2 + Ledger.ID_LENGTH + 8 + (depth + SEGMENT_BITS) * (1 + HASH_LENGTH));
+            if (leaf == null) {
+                out.put(EMPTY_SEGMENT);
+            } else if (found) {
+                out.put(ACCOUNT);
+            } else {
+                out.put(OTHER_ACCOUNT).putLong(leaf.idHigh).putLong(leaf.idMiddle).putInt(leaf.idLow).putLong(leaf.balance);
+            }
+            out.put((byte) (depth + SEGMENT_BITS));
+            for (int i = depth - 1; i >= 0; i--) {
+                Branch branch = path[i];
+                out.put((byte) branch.bit);
+                out.put(hash(bit(idHigh, idMiddle, idLow, branch.bit) == 0 ? branch.one : branch.zero));
+            }
+            // then the levels over the segments
+            for (int level = 0, index = segment; level < SEGMENT_BITS; level++, index >>= 1) {
+                out.put((byte) (SEGMENT_BITS - 1 - level)).put(levels[level][index ^ 1]);
+            }
+            return new Proof(found ? leaf.balance : 0, levels[SEGMENT_BITS][0], Arrays.copyOf(out.array(), out.position()));
+        }
+
+        /**
+         * Visits the accounts of the snapshot in the order of their ids as
+         * numbers, the order of the decimal form: negative ids, whose first
+         * bit is 1, before the others. Nothing is locked or copied, the
+         * ledger goes on changing meanwhile.
+         * @param from true to start after the id given, false to start
+         *             with the first account
+         * @param visitor receives the accounts until it returns false
+         * @return false if the visitor ended the scan
+         */
+        public boolean scan(boolean from, long idHigh, long idMiddle, int idLow, LeafVisitor visitor) {
+            int half = segments.length / 2;
+            int start = from ? (segment(idHigh) + half) % segments.length : 0;
+            for (int i = start; i < segments.length; i++) {
+                // the segments of negative ids come first
+                Node trie = segments[(i + half) % segments.length];
+                boolean more = from && i == start
+                        ? scanAfter(trie, idHigh, idMiddle, idLow, visitor)
+                        : scanAll(trie, visitor);
+                if (!more) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Hashes the snapshot once. A hash of a level is taken from the
+         * previous snapshot when the two hashes below it are the same
+         * arrays there, which they are for the tries that did not change.
+         */
+        private synchronized byte[][][] levels() {
+            if (levels != null) {
+                return levels;
+            }
+            byte[][][] hashed = new byte[SEGMENT_BITS + 1][][];
+            hashed[0] = new byte[segments.length][];
+            for (int i = 0; i < segments.length; i++) {
+                hashed[0][i] = hash(segments[i]);
+            }
+            byte[][][] old = previous != null ? previous.hashedLevels() : null;
+            for (int level = 1; level <= SEGMENT_BITS; level++) {
+                byte[][] below = hashed[level - 1];
+                byte[][] up = new byte[below.length / 2][];
+                for (int i = 0; i < up.length; i++) {
+                    if (old != null && old[level - 1][2 * i] == below[2 * i] && old[level - 1][2 * i + 1] == below[2 * i + 1]) {
+                        up[i] = old[level][i];
+                    } else {
+                        // pairs of the lowest level differ in the last segment bit
+                        up[i] = branchHash(SEGMENT_BITS - level, below[2 * i], below[2 * i + 1]);
+                    }
+                }
+                hashed[level] = up;
+            }
+            levels = hashed;
+            // the snapshots must not hold on to each other
+            previous = null;
+            return levels;
+        }
+
+        private synchronized byte[][][] hashedLevels() {
+            return levels;
+        }
+
+        /**
+         * @return this snapshot if it is hashed, else the one it will take
+         *         hashes from
+         */
+        private synchronized Snapshot hashedBase() {
+            return levels != null ? this : previous;
+        }
+    }
+
+    /**
+     * Checks a proof of a balance, as a client does with a "get" reply.
+     * @param root the state root
+     * @param balance the balance the proof is for
+     * @param path the proof, see prove()
+     * @return true if the account has that balance under that root
+     */
+    public static boolean verify(byte[] root, long idHigh, long idMiddle, int idLow, long balance, byte[] path) {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(path);
+            byte end = in.get();
+            byte[] hash;
+            // the other account the path ends at, if it is another
+            Leaf other = null;
+            // bits of the steps go up strictly, they must stay below this
+            int below = Ledger.ID_LENGTH * 8;
+            switch (end) {
+                case ACCOUNT -> hash = leafHash(idHigh, idMiddle, idLow, balance);
+                case OTHER_ACCOUNT -> {
+                    other = new Leaf(in.getLong(), in.getLong(), in.getInt(), in.getLong());
+                    if (balance != 0 || firstDifference(other, idHigh, idMiddle, idLow) < 0) {
+                        return false;
+                    }
+                    hash = leafHash(other.idHigh, other.idMiddle, other.idLow, other.balance);
+                }
+                case EMPTY_SEGMENT -> {
+                    if (balance != 0) {
+                        return false;
+                    }
+                    below = SEGMENT_BITS;
+                    hash = EMPTY;
+                }
+                default -> {
+                    return false;
+                }
+            }
+            int steps = in.get() & 0xff;
+            byte[] sibling = new byte[HASH_LENGTH];
+            for (int i = 0; i < steps; i++) {
+                int bit = in.get() & 0xff;
+                // bits go up strictly, to the 6 segment levels at the top,
+                // and another account is on the path of the id at all of them
+                if (bit >= below || steps - i <= SEGMENT_BITS && bit != steps - i - 1
+                        || steps - i > SEGMENT_BITS && bit < SEGMENT_BITS
+                        || other != null && bit(other, bit) != bit(idHigh, idMiddle, idLow, bit)) {
+                    return false;
+                }
+                below = bit;
+                in.get(sibling);
+                hash = bit(idHigh, idMiddle, idLow, bit) == 0
+                        ? branchHash(bit, hash, sibling)
+                        : branchHash(bit, sibling, hash);
+            }
+            return !in.hasRemaining() && steps >= SEGMENT_BITS && Arrays.equals(hash, root);
+        } catch (RuntimeException e) {
+            // a proof that ends too soon
+            return false;
+        }
+    }
+
+    /**
+     * Visits the accounts of a trie in order, see Snapshot.scan().
+     */
+    private static boolean scanAll(Node node, LeafVisitor visitor) {
+        if (node instanceof Branch branch) {
+            return scanAll(branch.zero, visitor) && scanAll(branch.one, visitor);
+        }
+        return node == null || visitor.visit((Leaf) node);
+    }
+
+    /**
+     * Visits the accounts of a trie after an id in order. A branch only
+     * says where its accounts differ, not the bits they share, so the
+     * first account below it tells on which side of the id they all are.
+     */
+    private static boolean scanAfter(Node node, long idHigh, long idMiddle, int idLow, LeafVisitor visitor) {
+        if (node == null) {
+            return true;
+        }
+        Node first = node;
+        while (first instanceof Branch branch) {
+            first = branch.zero;
+        }
+        Leaf leaf = (Leaf) first;
+        int differs = firstDifference(leaf, idHigh, idMiddle, idLow);
+        if (node instanceof Branch branch && (differs < 0 || differs >= branch.bit)) {
+            // the id shares the bits before the branch, it splits the accounts
+            if (bit(idHigh, idMiddle, idLow, branch.bit) == 0) {
+                return scanAfter(branch.zero, idHigh, idMiddle, idLow, visitor) && scanAll(branch.one, visitor);
+            }
+            return scanAfter(branch.one, idHigh, idMiddle, idLow, visitor);
+        }
+        // all the accounts are after the id, or none is
+        if (differs >= 0 && bit(leaf, differs) == 1) {
+            return scanAll(node, visitor);
+        }
+        return true;
+    }
+
+    /**
+     * @return the segment of a Ledger that holds an id, from its first bits
+     */
+    public static int segment(long idHigh) {
+        return (int) (idHigh >>> (64 - SEGMENT_BITS));
+    }
+
+    private static byte[] leafHash(long idHigh, long idMiddle, int idLow, long balance) {
+        byte[] buf = ByteBuffer.allocate(1 + Ledger.ID_LENGTH + 8)
+                .put(LEAF).putLong(idHigh).putLong(idMiddle).putInt(idLow).putLong(balance).array();
+        return SHA256.get().digest(buf);
+    }
+
+    private static byte[] branchHash(int bit, byte[] zero, byte[] one) {
+        MessageDigest md = SHA256.get();
+        md.update(BRANCH);
+        md.update((byte) bit);
+        md.update(zero);
+        md.update(one);
+        return md.digest();
+    }
+
+    /**
+     * @return bit i of an id, 0 being the most significant
+     */
+    private static int bit(long idHigh, long idMiddle, int idLow, int i) {
+        if (i < 64) {
+            return (int) (idHigh >>> (63 - i)) & 1;
+        }
+        if (i < 128) {
+            return (int) (idMiddle >>> (127 - i)) & 1;
+        }
+        return (idLow >>> (159 - i)) & 1;
+    }
+
+    private static int bit(Leaf leaf, int i) {
+        return bit(leaf.idHigh, leaf.idMiddle, leaf.idLow, i);
+    }
+
+    /**
+     * @return the first bit in which the id of the leaf differs from the
+     *         id, -1 if they are the same
+     */
+    private static int firstDifference(Leaf leaf, long idHigh, long idMiddle, int idLow) {
+        if (leaf.idHigh != idHigh) {
+            return Long.numberOfLeadingZeros(leaf.idHigh ^ idHigh);
+        }
+        if (leaf.idMiddle != idMiddle) {
+            return 64 + Long.numberOfLeadingZeros(leaf.idMiddle ^ idMiddle);
+        }
+        if (leaf.idLow != idLow) {
+            return 128 + Integer.numberOfLeadingZeros(leaf.idLow ^ idLow);
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,514 @@
+/**
+ *  VerifyingServerNIO.java is the event-driven front end of the verifying
+ *  server. One selector thread owns every client connection: it accepts,
+ *  reads bytes into a direct buffer, cuts them into requests and writes
+ *  the replies back. Each request line is then checked and serviced by
+ *  VerifyingServerTCP.service() on a small pool of worker threads, so the
+ *  RSA verification never blocks the selector.
+ *
+ *  An idle connection only costs its channel and a small Connection object,
+ *  there is no thread, Scanner or stream buffer behind it. This is what lets
+ *  one server keep tens of thousands of mostly idle clients connected.
+ *
+ *  Text clients send request lines, binary clients (see BinaryProtocol)
+ *  send length-prefixed frames; the first byte of a connection tells which.
+ *
+ *  Requests of one connection are serviced one after another in the order
+ *  they were received, and their replies are written back in that order.
+ *  A connection with MAX_IN_FLIGHT requests waiting for their replies is
+ *  not read from until half of them are written, so a client that sends
+ *  faster than it is served fills its own socket buffer instead of the
+ *  memory of the server. Lines over the --conn-rate of the connection are
+ *  answered "busy" without being parsed (see Admission).
+ *
+ *  With --pipeline the text lines go into the ring of the LedgerPipeline.
+ *  When the ring is full the selector does not wait for it: the lines of
+ *  the connection stay queued on it, it is not read from, and the queued
+ *  lines go in, connection by connection in the order they stopped, once
+ *  the ledger writer frees slots.
+ */
+
+package ethereumcontract;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class VerifyingServerNIO {
+
+    // a request line longer than this is not a valid request,
+    // the connection is closed instead of buffering it forever
+    static final int MAX_LINE_LENGTH = 64 * 1024;
+    // requests of one connection waiting for their replies before it is
+    // no longer read from
+    static final int MAX_IN_FLIGHT = 1024;
+    // requests a worker services for one connection before it lets the
+    // other connections have a turn
+    static final int MAX_PER_TURN = 16;
+    // full read buffers taken from one connection before the selector
+    // goes on to the others, the rest is read on its next turn
+    static final int MAX_READS_PER_TURN = 4;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    // workers run the signature checks and the ledger updates
+    private final ExecutorService workers;
+    // one direct buffer for every read, only the selector thread uses it
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    // connections that got new replies from a worker since the last select
+    private final Queue<Connection> replied = new ConcurrentLinkedQueue<>();
+    // connections with lines waiting for the pipeline ring, in the order
+    // they had to stop; only the selector thread uses it
+    private final Queue<Connection> ringWaiters = new ArrayDeque<>();
+    // set by the ledger writer once it has freed slots of the ring
+    private final AtomicBoolean ringFreed = new AtomicBoolean();
+
+    /**
+     * Opens the listening channel, nothing is served until run() is called.
+     * @param port port the server listens on
+     * @param threads number of worker threads servicing requests
+     */
+    public VerifyingServerNIO(int port, int threads) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        workers = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * The selector loop, runs forever on the calling thread.
+     */
+    public void run() throws IOException {
+        try {
+            while (true) {
+                selector.select();
+
+                // flush replies produced by the workers
+                Connection c;
+                while ((c = replied.poll()) != null) {
+                    write(c);
+                }
+                if (ringFreed.getAndSet(false)) {
+                    submitWaiting();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        read(conn);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(conn);
+                    }
+                }
+            }
+        } finally {
+            workers.shutdown();
+            selector.close();
+            serverChannel.close();
+        }
+    }
+
+    /**
+     * Accepts every pending connection and registers it for reading.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection conn = new Connection(channel);
+            conn.sink = bytes -> reply(conn, bytes);
+            if (VerifyingServerTCP.batchVerifier != null) {
+                conn.batchLines = VerifyingServerTCP.batchVerifier.lines(conn.session, conn.sink);
+            }
+            conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        }
+    }
+
+    /**
+     * Reads what is available on the connection and queues every
+     * complete request. A request cut by the end of the read is kept
+     * in the connection until the rest of it arrives.
+     */
+    private void read(Connection conn) {
+        try {
+            for (int reads = 1; ; reads++) {
+                readBuffer.clear();
+                int n = conn.channel.read(readBuffer);
+                if (n < 0) {
+                    close(conn);
+                    return;
+                }
+                if (n == 0) {
+                    return;
+                }
+                readBuffer.flip();
+                int start = 0;
+                if (conn.protocol == Connection.UNKNOWN) {
+                    // a binary client announces itself with its first byte
+                    if ((readBuffer.get(0) & 0xff) == BinaryProtocol.MAGIC) {
+                        conn.protocol = Connection.BINARY;
+                        start = 1;
+                    } else {
+                        conn.protocol = Connection.TEXT;
+                    }
+                }
+                boolean framed = conn.protocol == Connection.TEXT
+                        ? readLines(conn, start, n)
+                        : readFrames(conn, start, n);
+                if (!framed) {
+                    close(conn);
+                    return;
+                }
+                if (conn.partialLength == 0) {
+                    // nothing pending, an idle connection keeps no buffer
+                    conn.partial = null;
+                }
+                if (n < readBuffer.capacity() || conn.paused || conn.ringBlocked || reads == MAX_READS_PER_TURN) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("IO: " + e.getMessage());
+            close(conn);
+        }
+    }
+
+    /**
+     * Cuts readBuffer[start, n) into text lines.
+     * @return false if the connection sent a line that is too long
+     */
+    private boolean readLines(Connection conn, int start, int n) {
+        int lineStart = start;
+        for (int i = start; i < n; i++) {
+            if (readBuffer.get(i) == '\n') {
+                conn.append(readBuffer, lineStart, i);
+                request(conn, conn.takeLine());
+                lineStart = i + 1;
+            }
+        }
+        conn.append(readBuffer, lineStart, n);
+        if (conn.partialLength > MAX_LINE_LENGTH) {
+            Log.warn("Request line too long, closing connection");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Cuts readBuffer[start, n) into binary frames.
+     * @return false if the connection sent a frame with a bad length
+     */
+    private boolean readFrames(Connection conn, int start, int n) {
+        conn.append(readBuffer, start, n);
+        byte[] buf = conn.partial;
+        int pos = 0;
+        while (conn.partialLength - pos >= 4) {
+            int length = ((buf[pos] & 0xff) << 24) | ((buf[pos + 1] & 0xff) << 16)
+                    | ((buf[pos + 2] & 0xff) << 8) | (buf[pos + 3] & 0xff);
+            if (length <= 0 || length > BinaryProtocol.MAX_FRAME) {
+                Log.warn("Binary frame of " + length + " bytes, closing connection");
+                return false;
+            }
+            if (conn.partialLength - pos - 4 < length) {
+                break;
+            }
+            request(conn, Arrays.copyOfRange(buf, pos + 4, pos + 4 + length));
+            pos += 4 + length;
+        }
+        conn.consume(pos);
+        return true;
+    }
+
+    /**
+     * Queues a request of the connection, a text line or a binary frame,
+     * and makes sure a worker is servicing that connection.
+     */
+    private void request(Connection conn, byte[] line) {
+        synchronized (conn) {
+            if (++conn.unanswered >= MAX_IN_FLIGHT && !conn.paused) {
+                // stop reading until the client takes its replies
+                conn.paused = true;
+                conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+        boolean admitted = Admission.admitLine(conn.bucket);
+        if (VerifyingServerTCP.pipeline != null && conn.protocol == Connection.TEXT) {
+            // behind lines already waiting for the ring, or waiting itself
+            // when it is full, the selector never blocks on it
+            if (!conn.ringWaiting.isEmpty()
+                    || !VerifyingServerTCP.pipeline.trySubmit(line, 0, line.length, admitted, conn.session, conn.sink)) {
+                conn.ringWaiting.add(admitted ? line : BUSY);
+                if (!conn.ringBlocked) {
+                    conn.ringBlocked = true;
+                    synchronized (conn) {
+                        conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+                    }
+                    ringWaiters.add(conn);
+                    VerifyingServerTCP.pipeline.whenFree(this::ringFreed);
+                }
+            }
+            return;
+        }
+        if (conn.batchLines != null && conn.protocol == Connection.TEXT) {
+            conn.batchLines.submit(line, admitted);
+            return;
+        }
+        boolean schedule;
+        synchronized (conn) {
+            // a line over the limit waits for the ones before it, which
+            // keeps the replies in order, but is not parsed
+            conn.requests.add(admitted ? line : BUSY);
+            schedule = !conn.servicing;
+            conn.servicing = true;
+        }
+        if (schedule) {
+            workers.execute(() -> service(conn));
+        }
+    }
+
+    /**
+     * Ledger writer side: the ring has free slots again.
+     */
+    private void ringFreed() {
+        ringFreed.set(true);
+        selector.wakeup();
+    }
+
+    /**
+     * Submits the lines waiting for the ring, connection by connection,
+     * until the ring is full again. A connection whose lines are all in
+     * is read from again.
+     */
+    private void submitWaiting() {
+        Connection conn;
+        while ((conn = ringWaiters.peek()) != null) {
+            if (conn.key.isValid()) {
+                byte[] line;
+                while ((line = conn.ringWaiting.peek()) != null) {
+                    if (!VerifyingServerTCP.pipeline.trySubmit(line, 0, line.length, line != BUSY, conn.session, conn.sink)) {
+                        VerifyingServerTCP.pipeline.whenFree(this::ringFreed);
+                        return;
+                    }
+                    conn.ringWaiting.poll();
+                }
+                conn.ringBlocked = false;
+                synchronized (conn) {
+                    conn.key.interestOps(conn.key.interestOps() | conn.readInterest());
+                }
+            } else {
+                conn.ringWaiting.clear();
+            }
+            ringWaiters.poll();
+        }
+    }
+
+    /**
+     * Worker side: services the queued lines of one connection in order
+     * and hands each reply to the selector thread. After MAX_PER_TURN lines
+     * the connection goes to the back of the queue of the workers, so one
+     * that never runs dry cannot keep a worker from the others.
+     */
+    private void service(Connection conn) {
+        // view for the text lines, reused while this worker drains the queue
+        VerifyingServerTCP.Request request = null;
+        for (int served = 0; ; served++) {
+            byte[] line;
+            synchronized (conn) {
+                if (conn.requests.isEmpty()) {
+                    conn.servicing = false;
+                    return;
+                }
+                if (served == MAX_PER_TURN) {
+                    // still servicing, the next turn goes on from here
+                    workers.execute(() -> service(conn));
+                    return;
+                }
+                line = conn.requests.poll();
+            }
+            if (line == BUSY) {
+                reply(conn, conn.protocol == Connection.TEXT ? Admission.BUSY_REPLY
+                        : BinaryProtocol.reply(BinaryProtocol.STATUS_BUSY, 0));
+            } else if (conn.protocol == Connection.TEXT) {
+                if (request == null) {
+                    request = new VerifyingServerTCP.Request();
+                }
+                reply(conn, VerifyingServerTCP.service(request, conn.session, line, 0, line.length));
+            } else {
+                reply(conn, VerifyingServerTCP.serviceBinary(line));
+            }
+        }
+    }
+
+    /**
+     * Queues reply bytes and wakes the selector thread to write them.
+     */
+    private void reply(Connection conn, byte[] bytes) {
+        synchronized (conn) {
+            conn.replies.add(ByteBuffer.wrap(bytes));
+            conn.unanswered--;
+        }
+        replied.add(conn);
+        selector.wakeup();
+    }
+
+    /**
+     * Writes as many queued replies as the socket takes. Whatever is left
+     * is written when the channel becomes writable again.
+     */
+    private void write(Connection conn) {
+        if (!conn.key.isValid()) {
+            return;
+        }
+        try {
+            synchronized (conn) {
+                ByteBuffer buf;
+                while ((buf = conn.replies.peek()) != null) {
+                    conn.channel.write(buf);
+                    if (buf.hasRemaining()) {
+                        // socket buffer is full, wait for OP_WRITE
+                        conn.key.interestOps(conn.readInterest() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    conn.replies.poll();
+                }
+                if (conn.paused && conn.unanswered <= MAX_IN_FLIGHT / 2) {
+                    // the client caught up, read from it again
+                    conn.paused = false;
+                }
+                conn.key.interestOps(conn.readInterest());
+            }
+        } catch (IOException e) {
+            Log.warn("IO: " + e.getMessage());
+            close(conn);
+        }
+    }
+
+    // marks a queued line that is over the limit of its connection
+    private static final byte[] BUSY = new byte[0];
+
+    private void close(Connection conn) {
+        conn.key.cancel();
+        try {
+            conn.channel.close();
+        } catch (IOException e) {
+            Log.warn("IO: " + e.getMessage());
+        }
+    }
+
+    /**
+     * State of one client connection. The partial line buffer is only
+     * allocated while a line is split across reads.
+     */
+    static final class Connection {
+        static final int UNKNOWN = 0, TEXT = 1, BINARY = 2;
+
+        final SocketChannel channel;
+        // protocol of the client, known after its first byte
+        int protocol = UNKNOWN;
+        SelectionKey key;
+        // bytes of a line that is not complete yet
+        byte[] partial;
+        int partialLength;
+        // request lines or frames waiting for a worker, guarded by this
+        final Queue<byte[]> requests = new ArrayDeque<>();
+        // true while a worker is servicing this connection, guarded by this
+        boolean servicing;
+        // replies waiting to be written, guarded by this
+        final Queue<ByteBuffer> replies = new ArrayDeque<>();
+        // submits the text lines in batch mode, only used by the selector thread
+        BatchVerifier.Lines batchLines;
+        // lines waiting for a free slot of the pipeline ring, BUSY for one
+        // over the limit, and true while there are any; only used by the
+        // selector thread
+        final Queue<byte[]> ringWaiting = new ArrayDeque<>();
+        boolean ringBlocked;
+        // authenticates the session lines of the connection
+        final Session session = new Session();
+        // where the LedgerPipeline hands the replies of the connection
+        LedgerPipeline.Replies sink;
+        // lines the connection may still send, null without --conn-rate
+        final Admission.TokenBucket bucket = Admission.connectionBucket();
+        // requests read but not answered yet, guarded by this
+        int unanswered;
+        // true while the connection is not read from, guarded by this
+        boolean paused;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * @return OP_READ unless the connection is paused or waits for the ring
+         */
+        int readInterest() {
+            return paused || ringBlocked ? 0 : SelectionKey.OP_READ;
+        }
+
+        /**
+         * Appends bytes [from, to) of the buffer to the current line.
+         */
+        void append(ByteBuffer buf, int from, int to) {
+            int len = to - from;
+            if (len == 0) {
+                return;
+            }
+            if (partial == null) {
+                partial = new byte[Math.max(256, len)];
+            } else if (partialLength + len > partial.length) {
+                partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + len));
+            }
+            buf.get(from, partial, partialLength, len);
+            partialLength += len;
+        }
+
+        /**
+         * Drops the first count buffered bytes.
+         */
+        void consume(int count) {
+            if (count > 0) {
+                System.arraycopy(partial, count, partial, 0, partialLength - count);
+                partialLength -= count;
+            }
+        }
+
+        /**
+         * Returns a copy of the current line without its line terminator
+         * and starts a new one.
+         */
+        byte[] takeLine() {
+            int len = partialLength;
+            if (len > 0 && partial[len - 1] == '\r') {
+                len--;
+            }
+            byte[] line = len == 0 ? new byte[0] : Arrays.copyOf(partial, len);
+            partialLength = 0;
+            return line;
+        }
+    }
+}
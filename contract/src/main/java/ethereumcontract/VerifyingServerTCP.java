@@ -0,0 +1,1305 @@
+/**
+ *  Author: Lawrence Li
+ *  Last Modified: Feb 23rd, 2022
+ *
+ *  VerifyingServerTCP.java provides capabilities to verify messages sent
+ *  from SigningClientTCP.java. If the message sent by the client has a valid
+ *  signature and the public key matches the client id, then the server will
+ *  provide service to the client's request. If not, it will return an error
+ *  message to the client.
+ *
+ *  Each client connection is served on its own worker thread from a
+ *  bounded pool, so many clients can use the server at once. Options:
+ *  --port=N (otherwise asked on the console), --threads=N.
+ *  With --mode=nio the connections are served by VerifyingServerNIO
+ *  instead, one selector thread for all of them and --threads workers.
+ *  --identity-cache=N bounds the number of verified id and key pairs
+ *  kept by IdentityCache. --batch=N verifies pipelined requests of all
+ *  connections in parallel batches of up to N lines (see BatchVerifier).
+ *  Clients may also speak the binary protocol described in BinaryProtocol.
+ *  A text client may sign many operations at once as a batch request,
+ *  "id,key,batch,add:5|min:2|get:0;signature", applied as one change and
+ *  answered with the value after each operation, "5,3,3".
+ *  A client that keeps its connection may start a Session on it and then
+ *  authenticate its requests with an HMAC instead of a signature.
+ *  Under overload requests get "busy" instead of waiting, see Admission
+ *  for --verify-slots, --max-wait-ms and the --conn-rate and --id-rate
+ *  limits; --max-queued bounds the lines waiting for BatchVerifier.
+ *  --pipeline=N runs text requests through a LedgerPipeline of N slots
+ *  instead: the connection threads parse, a pool verifies and one writer
+ *  thread applies every update in arrival order. It cannot be combined
+ *  with --batch.
+ *  --data-dir=DIR keeps the ledger on disk with WriteAheadLog, restoring it
+ *  at startup; --wal-file-mb=N (up to 2047) and --snapshot-interval=SECONDS tune the log.
+ *  --metrics-port=N serves ServerMetrics on http://127.0.0.1:N/metrics.
+ *  Console output goes through Log; --log-level=DEBUG prints every request.
+ *  --shard=NAME --admin-port=N runs the server as one shard of a sharded
+ *  ledger behind a ShardRouter, see ShardAdmin.
+ *  --state-root keeps a StateTree over the ledger: a text "get" is then
+ *  answered "balance;root;proof", the state root and the proof of the
+ *  balance under it in hex, which StateTree.verify checks.
+ *  --ledger-admin-port=N serves scans of the accounts in id order and
+ *  aggregates over snapshots of the ledger, see LedgerAdmin.
+ *  --mode=import checks and applies a file of request lines offline
+ *  instead of serving, see ArchiveImporter.
+ *  --replication-port=N streams the ledger to read replicas (see
+ *  ReplicationPrimary), on --replication-bind=ADDRESS (127.0.0.1 unless
+ *  given). --replica-of=HOST:PORT runs the server as such a replica: it
+ *  answers "get" from its copy of the ledger and rejects "add" and "min",
+ *  see ReplicationFollower.
+ *
+ *  VerifyingServerTCP has two private members: RSA e and n.
+ *  These are java BigIntegers.
+ *
+ *  For verification: the object is constructed with keys (e and n). The verify
+ *  method is called with two parameters - the string to be checked and the
+ *  evidence that this string was indeed manipulated by code with access to the
+ *  private key d.
+ *
+ */
+
+package ethereumcontract;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+public class VerifyingServerTCP {
+
+    private BigInteger e,n;
+
+    /** For verifying, a SignOrVerify object may be constructed
+     *   with a RSA's e and n. Only e and n are used for signature verification.
+     */
+    public VerifyingServerTCP(BigInteger e, BigInteger n) {
+        this.e = e;
+        this.n = n;
+    }
+
+
+    // the ledger stores user's id and value
+    // User's id is the key and the value
+    // is the cumulative results of all the user's action.
+    // It is shared by every connection thread and thread-safe,
+    // updates on different ids do not block each other.
+    static final Ledger ledger = new Ledger();
+
+    // durable log of the ledger updates, null unless the server runs with --data-dir
+    static WriteAheadLog wal;
+
+    // identities (id and public key pairs) that already passed the id check
+    static IdentityCache identityCache = new IdentityCache(10_000);
+
+    // verifies pipelined lines of all connections in parallel batches,
+    // null unless the server runs with --batch
+    static BatchVerifier batchVerifier;
+
+    // stages text requests through a ring to a single ledger writer,
+    // null unless the server runs with --pipeline
+    static LedgerPipeline pipeline;
+
+    // replies a pipelining client may have outstanding in batch mode
+    static final int MAX_IN_FLIGHT = 1024;
+
+    // name of this server as a shard, null unless it runs with --shard
+    static String shardName;
+
+    // accounts of each shard, set by the router through ShardAdmin
+    static volatile ShardMap shardMap;
+
+    // streams the ledger updates to read replicas, null unless the server
+    // runs with --replication-port
+    static ReplicationPrimary replicationPrimary;
+
+    // keeps the ledger of a read replica up to date, null unless the server
+    // runs with --replica-of
+    static ReplicationFollower replicationFollower;
+
+    public static void main(String args[]) throws Exception {
+        // offline validation of a file of requests, see ArchiveImporter
+        if(option(args, "mode", "").equals("import")) {
+            ArchiveImporter.main(args);
+            return;
+        }
+
+        // number of connections served at the same time,
+        // clients beyond that wait until a worker is free
+        int threads = Integer.parseInt(option(args, "threads",
+                String.valueOf(Math.max(64, Runtime.getRuntime().availableProcessors() * 16))));
+
+        // Server prompt the user for the port number
+        // that the server is supposed to listen on
+        int serverPort;
+        String portArg = option(args, "port", null);
+        if(portArg != null) {
+            serverPort = Integer.parseInt(portArg);
+        } else {
+            Scanner reader = new Scanner(System.in);
+            System.out.println("Enter port number: ");
+            serverPort = reader.nextInt();
+        }
+        Log.setLevel(Log.Level.valueOf(option(args, "log-level", "INFO").toUpperCase()));
+        Log.info("Port " + serverPort + " is using");
+        Admission.configure(args);
+
+        // per-stage latencies and counters over HTTP
+        String metricsPort = option(args, "metrics-port", null);
+        if(metricsPort != null) {
+            ServerMetrics.serve(Integer.parseInt(metricsPort));
+            Log.info("Metrics on http://127.0.0.1:" + metricsPort + "/metrics");
+        }
+
+        // restore the ledger and log every update from now on
+        String dataDir = option(args, "data-dir", null);
+        if(dataDir != null) {
+            wal = WriteAheadLog.open(Paths.get(dataDir), ledger,
+                    WriteAheadLog.fileSize(option(args, "wal-file-mb", "64")),
+                    Integer.parseInt(option(args, "snapshot-interval", "300")));
+            Log.info("Recovered " + ledger.size() + " accounts, replayed " + wal.recoveredRecords()
+                    + " log records in " + wal.recoveryMillis() + " ms");
+        }
+
+        // commit to the ledger with one hash, built from what was recovered
+        if(Arrays.asList(args).contains("--state-root")) {
+            ledger.trackState();
+            Log.info("State root " + HexFormat.of().formatHex(ledger.snapshot().root()));
+        }
+        // reads of the whole ledger from snapshots, while it serves
+        String ledgerAdminPort = option(args, "ledger-admin-port", null);
+        if(ledgerAdminPort != null) {
+            LedgerAdmin.serve(ledger, Integer.parseInt(ledgerAdminPort));
+            Log.info("Ledger admin on http://127.0.0.1:" + ledgerAdminPort + "/ledger/accounts");
+        }
+
+        // one shard of a sharded ledger, it owns nothing until the router sends the map
+        shardName = option(args, "shard", null);
+        if(shardName != null) {
+            int adminPort = Integer.parseInt(option(args, "admin-port", String.valueOf(serverPort + 2000)));
+            ShardAdmin.serve(adminPort);
+            Log.info("Shard " + shardName + ", admin port " + adminPort);
+        }
+
+        // a replica takes its ledger from the primary, or serves the updates of this one to replicas
+        String replicaOf = option(args, "replica-of", null);
+        String replicationPort = option(args, "replication-port", null);
+        if(replicaOf != null) {
+            if(wal != null || shardName != null || replicationPort != null) {
+                throw new IllegalArgumentException("--replica-of cannot be used with --data-dir, --shard or --replication-port");
+            }
+            replicationFollower = new ReplicationFollower(replicaOf, ledger);
+            Log.info("Read replica of " + replicaOf);
+        } else if(replicationPort != null) {
+            InetAddress bind = InetAddress.getByName(option(args, "replication-bind", "127.0.0.1"));
+            replicationPrimary = new ReplicationPrimary(ledger, bind, Integer.parseInt(replicationPort));
+            Log.info("Replication on " + bind.getHostAddress() + ":" + replicationPort);
+        }
+
+        identityCache = new IdentityCache(Integer.parseInt(option(args, "identity-cache", "10000")));
+        // report the cache statistics every minute
+        Thread stats = new Thread(() -> {
+            try {
+                while(true) {
+                    Thread.sleep(60_000);
+                    Log.info(ServerMetrics.summary());
+                    Log.info(identityCache.stats());
+                    if(wal != null) {
+                        Log.info(wal.stats());
+                    }
+                    if(replicationFollower != null) {
+                        Log.info("Replication lag " + replicationFollower.lagMillis() + " ms");
+                    }
+                    if(ledger.tracksState()) {
+                        Log.info("State root " + HexFormat.of().formatHex(ledger.snapshot().root()));
+                    }
+                }
+            } catch (InterruptedException e) {
+                // server is stopping
+            }
+        }, "server-stats");
+        stats.setDaemon(true);
+        stats.start();
+
+        // verify pipelined requests in parallel batches across all cores
+        String batchArg = option(args, "batch", null);
+        if(batchArg != null) {
+            batchVerifier = new BatchVerifier(Runtime.getRuntime().availableProcessors(), Integer.parseInt(batchArg),
+                    Integer.parseInt(option(args, "max-queued", "16384")));
+            Log.info("Batch verification on, up to " + batchArg + " requests per batch");
+        }
+
+        // parse, verify and apply in stages, the ledger from one thread
+        String pipelineArg = option(args, "pipeline", null);
+        if(pipelineArg != null) {
+            if(batchVerifier != null) {
+                throw new IllegalArgumentException("--pipeline cannot be used with --batch");
+            }
+            pipeline = new LedgerPipeline(Integer.parseInt(pipelineArg), Runtime.getRuntime().availableProcessors());
+            Log.info("Pipeline on, " + pipeline.size() + " slots");
+        }
+
+        // event-driven front end for many mostly idle connections
+        if(option(args, "mode", "thread").equals("nio")) {
+            int nioThreads = Integer.parseInt(option(args, "threads",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            Log.info("Server started in nio mode with " + nioThreads + " worker threads");
+            new VerifyingServerNIO(serverPort, nioThreads).run();
+            return;
+        }
+        Log.info("Server started with " + threads + " worker threads");
+
+        // bounded pool of workers, one connection per worker; a connection
+        // that finds every worker and waiting place taken is turned away
+        ExecutorService workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads), (task, pool) -> {
+                    Admission.shed.increment();
+                    ((Connection) task).reject();
+                });
+
+        // create a new server socket
+        try (ServerSocket listenSocket = new ServerSocket(serverPort)) {
+            // server keeps running forever
+            while(true){
+                /*
+                 * waits for a new connection request from a client.
+                 * When the request is received, "accept" it, and the rest
+                 * the tcp protocol handshake will then take place, making
+                 * the socket ready for reading and writing.
+                 */
+                Socket clientSocket = listenSocket.accept();
+
+                // hand the connection to a worker and go back to accepting
+                workers.execute(new Connection(clientSocket));
+            }
+        }
+        // handle socket exceptions
+        catch (SocketException e) {
+            Log.warn("Socket: " + e.getMessage());
+        }
+        // handle general I/O exceptions
+        catch (IOException e) {
+            Log.warn("IO: " + e.getMessage());
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * An accepted connection waiting for a worker.
+     */
+    private record Connection(Socket socket) implements Runnable {
+        @Override
+        public void run() {
+            handleClient(socket);
+        }
+
+        /**
+         * Tells the client the server is full and closes the connection.
+         */
+        void reject() {
+            try (Socket s = socket) {
+                s.getOutputStream().write(BUSY_REPLY);
+            } catch (IOException e) {
+                Log.debug("IO: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Serves one connected client until it closes the connection.
+     * Runs on a worker thread, so several clients are served at once.
+     * @param clientSocket the accepted client socket
+     */
+    static void handleClient(Socket clientSocket) {
+        try {
+            // If we get here, then we are now connected to a client.
+            // A binary client announces itself with its first byte,
+            // anything else is a text client.
+            BufferedInputStream raw = new BufferedInputStream(clientSocket.getInputStream());
+            raw.mark(1);
+            if(raw.read() == BinaryProtocol.MAGIC) {
+                serveBinary(raw, clientSocket.getOutputStream());
+                return;
+            }
+            raw.reset();
+            LineReader in = new LineReader(raw);
+            // Set up "out" to write to the client socket
+            OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream());
+            // every line of the connection is parsed into the same view
+            Request request = new Request();
+            // authenticates the session lines, once the client started a session
+            Session session = new Session();
+            // lines the connection may still send, null without --conn-rate
+            Admission.TokenBucket bucket = Admission.connectionBucket();
+            // replies of the pipeline or the batches, collected by the thread
+            // that completes them and written out by this one only
+            LedgerPipeline.ReplyBuffer replies = pipeline != null || batchVerifier != null
+                    ? new LedgerPipeline.ReplyBuffer() : null;
+            // lines submitted since the replies were last written out
+            int unwritten = 0;
+
+            // submits the lines in batch mode, keeping their order
+            BatchVerifier.Lines batchLines = batchVerifier != null ? batchVerifier.lines(session, replies) : null;
+
+            // read each line from socket, do the operation and send the result
+            // back to the client
+            while(in.next()) {
+                if(pipeline != null) {
+                    replies.submitted();
+                    pipeline.submit(in.buf, in.lineStart, in.lineLength, Admission.admitLine(bucket), session, replies);
+                } else if(batchVerifier == null) {
+                    //echo back to client socket
+                    out.write(Admission.admitLine(bucket)
+                            ? service(request, session, in.buf, in.lineStart, in.lineLength)
+                            : BUSY_REPLY);
+                    // one flush for the replies of the lines already read
+                    if(!in.ready()) {
+                        out.flush();
+                    }
+                } else {
+                    // the batch outlives the read buffer, it gets a copy of the line
+                    byte[] line = Arrays.copyOfRange(in.buf, in.lineStart, in.lineStart + in.lineLength);
+                    replies.submitted();
+                    batchLines.submit(line, Admission.admitLine(bucket));
+                }
+                // the replies of every line read so far go out together, or
+                // before MAX_IN_FLIGHT of them pile up for a client that
+                // sends without a pause
+                if(replies != null && (++unwritten >= MAX_IN_FLIGHT || !in.ready())) {
+                    replies.drainTo(out);
+                    out.flush();
+                    unwritten = 0;
+                }
+            }
+            // wait for the replies still in flight before closing
+            if(replies != null) {
+                replies.drainTo(out);
+            }
+            out.flush();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // handle socket exceptions
+        catch (SocketException e) {
+            Log.warn("Socket: " + e.getMessage());
+        }
+        // handle general I/O exceptions
+        catch (IOException e) {
+            Log.warn("IO: " + e.getMessage());
+        } finally {
+            // always close the socket
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                Log.warn("IO: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Serves a client that speaks the binary protocol, one frame at a time.
+     * @param raw the socket input, after the MAGIC byte
+     * @param rawOut the socket output
+     */
+    static void serveBinary(InputStream raw, OutputStream rawOut) throws IOException {
+        DataInputStream in = new DataInputStream(raw);
+        OutputStream out = new BufferedOutputStream(rawOut);
+        while(true) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                // client closed the connection
+                return;
+            }
+            if(length <= 0 || length > BinaryProtocol.MAX_FRAME) {
+                // the stream cannot be framed any more
+                Log.warn("Binary frame of " + length + " bytes, closing connection");
+                return;
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            out.write(serviceBinary(body));
+            // one flush for the replies of the frames already received
+            if(in.available() == 0) {
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Binary counterpart of service(): checks one request frame and,
+     * if it is valid, carries out the operation on the shared ledger.
+     * @param body a request frame without its length
+     * @return the reply frame
+     */
+    static byte[] serviceBinary(byte[] body) {
+        long start = System.nanoTime();
+        try {
+            BinaryProtocol.Request frame = BinaryProtocol.Request.parse(body);
+            long t = ServerMetrics.parse.recordSince(start);
+
+            // the id and the modulus are one contiguous range of the frame
+            int keyLength = BinaryProtocol.ID_LENGTH + 2 + frame.modulusLength;
+            IdentityCache.Identity identity = identityCache.get(body, frame.idOffset, keyLength);
+            if(identity == null) {
+                String id = new BigInteger(Arrays.copyOfRange(body, frame.idOffset,
+                        frame.idOffset + BinaryProtocol.ID_LENGTH)).toString();
+                BigInteger n = new BigInteger(1, Arrays.copyOfRange(body, frame.modulusOffset,
+                        frame.modulusOffset + frame.modulusLength));
+                // same id check as a text client with this key
+                identity = checkIdentity(id, "65537" + n);
+                if(identity == null) {
+                    Log.debug("Error in request");
+                    return BinaryProtocol.reply(BinaryProtocol.STATUS_ERROR, 0);
+                }
+                identityCache.put(body, frame.idOffset, keyLength, identity);
+            }
+            t = ServerMetrics.idCheck.recordSince(t);
+
+            // a signature is below the modulus, a longer one is not checked
+            if(frame.signatureLength > frame.modulusLength + 1) {
+                ServerMetrics.invalidSignatures.increment();
+                return BinaryProtocol.reply(BinaryProtocol.STATUS_ERROR, 0);
+            }
+            BigInteger signature = new BigInteger(1, Arrays.copyOfRange(body, frame.signatureOffset,
+                    frame.signatureOffset + frame.signatureLength));
+            boolean valid;
+            Admission.beginVerification();
+            try {
+                valid = identity.verifier.verify(body, 0, frame.signedLength, signature);
+            } finally {
+                Admission.endVerification();
+            }
+            t = ServerMetrics.verify.recordSince(t);
+            if(!valid) {
+                ServerMetrics.invalidSignatures.increment();
+                Log.debug("Invalid Signature");
+                return BinaryProtocol.reply(BinaryProtocol.STATUS_ERROR, 0);
+            }
+            ServerMetrics.validSignatures.increment();
+            Log.debug("Valid Signature");
+            Admission.admit(identity);
+
+            long value = apply(frame.operation, frame.operand, identity);
+            t = ServerMetrics.ledger.recordSince(t);
+            awaitDurable();
+            ServerMetrics.commit.recordSince(t);
+            ServerMetrics.request.recordSince(start);
+            return BinaryProtocol.reply(BinaryProtocol.STATUS_OK, value);
+        } catch (Admission.BusyException e) {
+            return BinaryProtocol.reply(BinaryProtocol.STATUS_BUSY, 0);
+        } catch (Exception e) {
+            ServerMetrics.malformedRequests.increment();
+            Log.debug("Error in request: " + e);
+            return BinaryProtocol.reply(BinaryProtocol.STATUS_ERROR, 0);
+        }
+    }
+
+    /**
+     * Checks one request line and, if it is valid, carries out the
+     * operation on the shared ledger.
+     * @param request view the line is parsed into
+     * @param session session of the connection, checks the session lines
+     * @param buf bytes holding the line
+     * @param off start of the line
+     * @param len length of the line, without its terminator
+     * @return the reply line, the user's value after the operation or "error"
+     */
+    static byte[] service(Request request, Session session, byte[] buf, int off, int len) {
+        long start = System.nanoTime();
+        try {
+            request.parse(buf, off, len);
+            ServerMetrics.parse.recordSince(start);
+
+            // Checks two things:
+            // 1. Does the public key hashes to client' id correctly?
+            // 2. Is the request properly signed?
+            // If both are true, the server will do the operation for the client
+            // else if one of the above condition is false,
+            // the server will return an error message to client
+            // A session line is checked with the key of its session instead
+            IdentityCache.Identity identity = request.sequence >= 0 ? session.check(request) : checkRequest(request);
+            if(identity == null) {
+                Log.debug("Error in request");
+                return ERROR_REPLY;
+            }
+            Admission.admit(identity);
+            if(request.operation == Operation.SESSION) {
+                ServerMetrics.request.recordSince(start);
+                return session.start(identity);
+            }
+            long t = System.nanoTime();
+            byte[] reply = execute(request, identity);
+            t = ServerMetrics.ledger.recordSince(t);
+            awaitDurable();
+            ServerMetrics.commit.recordSince(t);
+            ServerMetrics.request.recordSince(start);
+            return reply;
+        } catch (Admission.BusyException e) {
+            return BUSY_REPLY;
+        } catch (Exception e) {
+            // a malformed line only fails this request, not the connection
+            ServerMetrics.malformedRequests.increment();
+            Log.debug("Error in request: " + e);
+            return ERROR_REPLY;
+        }
+    }
+
+    /**
+     * Carries out a text request that passed checkBeforeService, a single
+     * operation or a batch.
+     * @param request the parsed request
+     * @param identity the identity the request was verified for
+     * @return the reply line
+     */
+    static byte[] execute(Request request, IdentityCache.Identity identity) throws IOException {
+        if(request.operation == Operation.BATCH) {
+            return applyBatch(request, identity);
+        }
+        if(request.operation == Operation.GET && ledger.tracksState()) {
+            return proofReply(identity);
+        }
+        return replyLine(apply(request.operation, request.operand, identity));
+    }
+
+    /**
+     * Reads a balance with the proof of it, see StateTree.
+     * @param identity the identity the request was verified for
+     * @return the reply line "balance;root;proof", root and proof in hex
+     * @throws IllegalStateException if this server cannot serve the account
+     */
+    static byte[] proofReply(IdentityCache.Identity identity) {
+        checkServes(Operation.GET, identity);
+        // balance, root and proof all from one snapshot
+        StateTree.Proof proof = ledger.snapshot().prove(identity.idHigh, identity.idMiddle, identity.idLow);
+        Log.debug("user with id: %s getting %d with a proof", identity.id, proof.balance());
+        HexFormat hex = HexFormat.of();
+        return (proof.balance() + ";" + hex.formatHex(proof.root()) + ";" + hex.formatHex(proof.path()) + "\n")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Carries out the operation of a request that passed checkBeforeService.
+     * @param operation the operation of the request
+     * @param value the operand of the request
+     * @param identity the identity the request was verified for
+     * The change is logged to the write-ahead log when there is one,
+     * see awaitDurable() before replying.
+     * @return the user's value after the operation
+     * @throws ArithmeticException if the value would overflow
+     * @throws IllegalStateException if this shard does not own the account,
+     *         or for a change on a read replica
+     * @throws IOException if the change cannot be logged
+     */
+    static long apply(Operation operation, int value, IdentityCache.Identity identity) throws IOException {
+        checkServes(operation, identity);
+        long curVal = 0;
+
+        switch (operation) {
+            // do addition, the ledger finds the account once and
+            // updates it in place, creating it if needed
+            case ADD -> {
+                Log.debug("user with id: %s adding %d", identity.id, value);
+                curVal = update(identity.idHigh, identity.idMiddle, identity.idLow, value);
+            }
+            // do subtraction
+            case MIN -> {
+                Log.debug("user with id: %s subtracting %d", identity.id, value);
+                curVal = update(identity.idHigh, identity.idMiddle, identity.idLow, -(long) value);
+            }
+            // get value for the user with id
+            case GET -> {
+                curVal = ledger.get(identity.idHigh, identity.idMiddle, identity.idLow);
+                Log.debug("user with id: %s getting %d", identity.id, curVal);
+            }
+            case BATCH, SESSION -> throw new IllegalArgumentException(operation.text + " is not a ledger operation");
+        }
+
+        Log.debug("Returning %d as the result of %s to client", curVal, operation.text);
+        return curVal;
+    }
+
+    /**
+     * Carries out the operations of a batch request in order, as one change
+     * of the account: if one of them would overflow, none is done and the
+     * whole batch fails.
+     * @param request a parsed batch request
+     * @param identity the identity the request was verified for
+     * @return the reply line, the user's value after each operation
+     * @throws ArithmeticException if the value would overflow
+     * @throws IllegalStateException if this server cannot change the account
+     * @throws IOException if the change cannot be logged
+     */
+    static byte[] applyBatch(Request request, IdentityCache.Identity identity) throws IOException {
+        int count = request.batchSize;
+        long[] deltas = new long[count];
+        boolean changes = false;
+        for(int i = 0; i < count; i++) {
+            Operation operation = request.batchOperations[i];
+            int value = request.batchOperands[i];
+            deltas[i] = operation == Operation.ADD ? value : operation == Operation.MIN ? -(long) value : 0;
+            changes |= operation != Operation.GET;
+        }
+        // a batch of gets is a read and may go to a replica
+        checkServes(changes ? Operation.BATCH : Operation.GET, identity);
+        Log.debug("user with id: %s running a batch of %d", identity.id, count);
+        ServerMetrics.batchOperations.add(count);
+
+        long[] balances = new long[count];
+        updateAll(identity.idHigh, identity.idMiddle, identity.idLow, deltas, count, balances);
+
+        StringBuilder reply = new StringBuilder(count * 8);
+        for(int i = 0; i < count; i++) {
+            if(i > 0) {
+                reply.append(',');
+            }
+            reply.append(balances[i]);
+        }
+        return reply.append('\n').toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Rejects a request this server cannot serve: one for an account
+     * another shard owns, or a change on a read replica.
+     * @throws IllegalStateException if the request cannot be served here
+     */
+    private static void checkServes(Operation operation, IdentityCache.Identity identity) {
+        if(shardName != null) {
+            ShardMap map = shardMap;
+            if(map == null || !map.owner(identity.idHigh).name.equals(shardName)) {
+                throw new IllegalStateException("Account of " + identity.id + " is not on shard " + shardName);
+            }
+        }
+        if(replicationFollower != null && (operation != Operation.GET || !replicationFollower.synced())) {
+            throw new IllegalStateException(operation == Operation.GET ? "Replica has no snapshot yet" : "Read-only replica");
+        }
+    }
+
+    /**
+     * Adds delta to the balance of an account, logs the change to the
+     * write-ahead log when there is one and publishes it to the replicas.
+     * Both happen before the new balance can be read, see logChange().
+     * @return the new balance
+     * @throws ArithmeticException if the balance would overflow, nothing is
+     *         changed, logged or published then
+     * @throws IOException if the change cannot be logged, nothing is
+     *         changed or published then
+     */
+    static long update(long idHigh, long idMiddle, int idLow, long delta) throws IOException {
+        // a new replica copies the ledger while no update is between
+        // changing the ledger and publishing the change
+        Lock lock = replicationPrimary != null ? replicationPrimary.updates() : null;
+        if(lock != null) {
+            lock.lock();
+        }
+        try {
+            return ledger.add(idHigh, idMiddle, idLow, delta, CHANGE_LOG);
+        } finally {
+            if(lock != null) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Same as update() for the deltas of a batch, added with Ledger.addAll
+     * and logged and published as one change.
+     * @param balances receives the balance after each delta
+     */
+    static void updateAll(long idHigh, long idMiddle, int idLow, long[] deltas, int count, long[] balances) throws IOException {
+        Lock lock = replicationPrimary != null ? replicationPrimary.updates() : null;
+        if(lock != null) {
+            lock.lock();
+        }
+        try {
+            ledger.addAll(idHigh, idMiddle, idLow, deltas, count, balances, CHANGE_LOG);
+        } finally {
+            if(lock != null) {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static final Ledger.ChangeLog CHANGE_LOG = VerifyingServerTCP::logChange;
+
+    /**
+     * Appends a change to the write-ahead log and queues it to the
+     * replicas. The ledger calls this with the account locked, before it
+     * stores the new balance: a request that reads the balance comes after
+     * the append, so its awaitDurable() waits for the record too, and a
+     * failed append leaves the ledger as the log has it.
+     */
+    private static void logChange(long idHigh, long idMiddle, int idLow, long change) throws IOException {
+        if(wal != null) {
+            wal.append(idHigh, idMiddle, idLow, change);
+        }
+        if(replicationPrimary != null) {
+            // the followers only get it once it is durable, see ReplicationPrimary
+            replicationPrimary.publish(idHigh, idMiddle, idLow, change);
+        }
+    }
+
+    /**
+     * With a write-ahead log, waits until every change logged so far is on
+     * disk: the ones made by this thread and those of the balances it read.
+     * Called before a reply is sent.
+     */
+    static void awaitDurable() throws InterruptedException {
+        if(wal != null) {
+            wal.sync();
+        }
+    }
+
+    /**
+     * A request line "id,key,operation,operand;signature" seen in place in
+     * the bytes it was received in. parse() fills it in one pass over the
+     * line and makes no String, so a connection reuses one Request for all
+     * of its lines. The slices are only valid until the bytes are reused.
+     * For a batch the operand is a list of operation:operand pairs
+     * separated by '|', kept in batchOperations and batchOperands. A
+     * session line "@sequence,operation,operand;mac" (see Session) has no
+     * id and key, and a mac in hex in place of the signature.
+     */
+    static final class Request {
+        // a signature is below the modulus, even an 8192 bit one has fewer digits
+        static final int MAX_SIGNATURE_DIGITS = 2500;
+        // "65537" and a modulus with no more digits than a signature may have
+        static final int MAX_KEY_DIGITS = 5 + MAX_SIGNATURE_DIGITS;
+        // operations of one batch request
+        static final int MAX_BATCH_OPERATIONS = 1024;
+
+        private static final int[] POWERS_OF_TEN = {1, 10, 100, 1_000, 10_000, 100_000,
+                1_000_000, 10_000_000, 100_000_000, 1_000_000_000};
+
+        byte[] buf;
+        // sequence number of a session line, -1 for a signed request
+        long sequence;
+        // client id and public key, id,key is what the identity cache is keyed by
+        int idOffset, idLength;
+        int keyOffset, keyLength;
+        Operation operation;
+        int operand;
+        // the operations of a batch, batchSize of them
+        Operation[] batchOperations = new Operation[16];
+        int[] batchOperands = new int[16];
+        int batchSize;
+        // the signed message: id, public key, operation and operand
+        int messageOffset, messageLength;
+        // the signature of the message, as decimal digits
+        int signatureOffset, signatureLength;
+
+        /**
+         * Parses the line buf[off, off + len), without its terminator.
+         * @return this request
+         * @throws IllegalArgumentException if the line is malformed
+         */
+        Request parse(byte[] buf, int off, int len) {
+            this.buf = buf;
+            int end = off + len;
+            int pos;
+
+            if (len > 0 && buf[off] == Session.PREFIX) {
+                // the sequence number takes the place of the id and the key
+                idOffset = keyOffset = -1;
+                idLength = keyLength = 0;
+                long value = 0;
+                for (pos = off + 1; pos < end && buf[pos] >= '0' && buf[pos] <= '9'; pos++) {
+                    if (value > Long.MAX_VALUE / 10 - 1) {
+                        throw new IllegalArgumentException("Bad sequence number");
+                    }
+                    value = value * 10 + (buf[pos] - '0');
+                }
+                if (pos == off + 1 || pos == end || buf[pos] != ',') {
+                    throw new IllegalArgumentException("Bad sequence number");
+                }
+                sequence = value;
+            } else {
+                sequence = -1;
+                idOffset = off;
+                pos = indexOf(buf, off, end, (byte) ',');
+                idLength = pos - idOffset;
+
+                keyOffset = pos + 1;
+                pos = indexOf(buf, keyOffset, end, (byte) ',');
+                keyLength = pos - keyOffset;
+                if (keyLength > MAX_KEY_DIGITS) {
+                    throw new IllegalArgumentException("Key too long");
+                }
+            }
+
+            int operationOffset = pos + 1;
+            pos = indexOf(buf, operationOffset, end, (byte) ',');
+            operation = Operation.parse(buf, operationOffset, pos - operationOffset);
+            if (operation == null || (operation == Operation.SESSION && sequence >= 0)) {
+                throw new IllegalArgumentException("Unknown operation");
+            }
+
+            // the operand, or the operations of a batch, ends the message
+            pos++;
+            if (operation == Operation.BATCH) {
+                batchSize = 0;
+                while (true) {
+                    int colon = indexOf(buf, pos, end, (byte) ':');
+                    Operation batched = Operation.parse(buf, pos, colon - pos);
+                    // only ledger operations, a session is not started from a batch
+                    if (batched == null || batched == Operation.BATCH || batched == Operation.SESSION
+                            || batchSize == MAX_BATCH_OPERATIONS) {
+                        throw new IllegalArgumentException("Bad batch");
+                    }
+                    pos = parseOperand(buf, colon + 1, end);
+                    if (batchSize == batchOperations.length) {
+                        batchOperations = Arrays.copyOf(batchOperations, batchSize * 2);
+                        batchOperands = Arrays.copyOf(batchOperands, batchSize * 2);
+                    }
+                    batchOperations[batchSize] = batched;
+                    batchOperands[batchSize++] = operand;
+                    if (pos == end || buf[pos] != '|') {
+                        break;
+                    }
+                    pos++;
+                }
+            } else {
+                pos = parseOperand(buf, pos, end);
+            }
+            if (pos == end || buf[pos] != ';') {
+                throw new IllegalArgumentException("Bad operand");
+            }
+            messageOffset = off;
+            messageLength = pos - off;
+
+            signatureOffset = pos + 1;
+            signatureLength = end - signatureOffset;
+            if (sequence >= 0) {
+                // the mac is compared as text, its length is all that is checked here
+                if (signatureLength != Session.MAC_HEX_LENGTH) {
+                    throw new IllegalArgumentException("Bad mac");
+                }
+                return this;
+            }
+            if (signatureLength == 0 || signatureLength > MAX_SIGNATURE_DIGITS) {
+                throw new IllegalArgumentException("Bad signature");
+            }
+            for (int i = signatureOffset; i < end; i++) {
+                if (buf[i] < '0' || buf[i] > '9') {
+                    throw new IllegalArgumentException("Bad signature");
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Parses an int with an optional sign into operand.
+         * @return the position after its last digit
+         */
+        private int parseOperand(byte[] buf, int pos, int end) {
+            boolean negative = pos < end && buf[pos] == '-';
+            if (pos < end && (buf[pos] == '-' || buf[pos] == '+')) {
+                pos++;
+            }
+            int digitsStart = pos;
+            long value = 0;
+            for (; pos < end && buf[pos] >= '0' && buf[pos] <= '9'; pos++) {
+                if (value > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Bad operand");
+                }
+                value = value * 10 + (buf[pos] - '0');
+            }
+            if (pos == digitsStart || value > (negative ? 1L << 31 : Integer.MAX_VALUE)) {
+                throw new IllegalArgumentException("Bad operand");
+            }
+            operand = (int) (negative ? -value : value);
+            return pos;
+        }
+
+        /**
+         * @return the signature as a number, made straight from its digits
+         */
+        BigInteger signature() {
+            // nine digits at a time are folded into the words of the
+            // magnitude, least significant word first
+            int[] words = new int[(int) (signatureLength * 0.10381025296523008) + 2];
+            int pos = signatureOffset;
+            int end = signatureOffset + signatureLength;
+            int chunk = signatureLength % 9 == 0 ? 9 : signatureLength % 9;
+            while (pos < end) {
+                int value = 0;
+                for (int i = 0; i < chunk; i++) {
+                    value = value * 10 + (buf[pos++] - '0');
+                }
+                // words = words * 10^chunk + value
+                long multiplier = POWERS_OF_TEN[chunk];
+                long carry = value;
+                for (int i = 0; i < words.length; i++) {
+                    long product = (words[i] & 0xffffffffL) * multiplier + carry;
+                    words[i] = (int) product;
+                    carry = product >>> 32;
+                }
+                chunk = 9;
+            }
+            byte[] magnitude = new byte[words.length * 4];
+            for (int i = 0; i < words.length; i++) {
+                int word = words[words.length - 1 - i];
+                magnitude[4 * i] = (byte) (word >>> 24);
+                magnitude[4 * i + 1] = (byte) (word >>> 16);
+                magnitude[4 * i + 2] = (byte) (word >>> 8);
+                magnitude[4 * i + 3] = (byte) word;
+            }
+            return new BigInteger(1, magnitude);
+        }
+
+        private static int indexOf(byte[] buf, int from, int end, byte b) {
+            for (int i = from; i < end; i++) {
+                if (buf[i] == b) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("Missing field");
+        }
+    }
+
+    /**
+     * Cuts the input of a connection into lines without making Strings.
+     * The current line stays in buf until the next call to next().
+     */
+    static final class LineReader {
+        private final InputStream in;
+        byte[] buf = new byte[8192];
+        // bytes read and not handed out yet are buf[pos, limit)
+        private int pos, limit;
+        // the current line, without its terminator
+        int lineStart, lineLength;
+
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Moves to the next line.
+         * @return false at the end of the stream
+         * @throws IOException if the line is longer than VerifyingServerNIO.MAX_LINE_LENGTH
+         */
+        boolean next() throws IOException {
+            int scan = pos;
+            while (true) {
+                for (; scan < limit; scan++) {
+                    if (buf[scan] == '\n') {
+                        line(scan);
+                        pos = scan + 1;
+                        return true;
+                    }
+                }
+                // no whole line left, make room and read more
+                if (pos > 0) {
+                    System.arraycopy(buf, pos, buf, 0, limit - pos);
+                    scan -= pos;
+                    limit -= pos;
+                    pos = 0;
+                }
+                if (limit == buf.length) {
+                    if (buf.length >= VerifyingServerNIO.MAX_LINE_LENGTH) {
+                        throw new IOException("Request line too long");
+                    }
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                int n = in.read(buf, limit, buf.length - limit);
+                if (n < 0) {
+                    if (limit == pos) {
+                        return false;
+                    }
+                    // the last line may have no terminator
+                    line(limit);
+                    pos = limit;
+                    return true;
+                }
+                limit += n;
+            }
+        }
+
+        /**
+         * @return true if next() can return a line without waiting for
+         *         the client, one is buffered or more bytes have arrived
+         */
+        boolean ready() throws IOException {
+            for (int i = pos; i < limit; i++) {
+                if (buf[i] == '\n') {
+                    return true;
+                }
+            }
+            return in.available() > 0;
+        }
+
+        private void line(int end) {
+            lineStart = pos;
+            lineLength = (end > pos && buf[end - 1] == '\r' ? end - 1 : end) - pos;
+        }
+    }
+
+    // reply line of a request that failed
+    static final byte[] ERROR_REPLY = "error\n".getBytes(StandardCharsets.US_ASCII);
+
+    // reply line of a request the server turned away, see Admission
+    static final byte[] BUSY_REPLY = Admission.BUSY_REPLY;
+
+    /**
+     * @param value the user's value after an operation
+     * @return the reply line for the value
+     */
+    static byte[] replyLine(long value) {
+        // written backwards, Long.MIN_VALUE and the newline take 21 bytes
+        byte[] line = new byte[21];
+        int pos = line.length;
+        line[--pos] = '\n';
+        long v = value;
+        do {
+            line[--pos] = (byte) ('0' + Math.abs(v % 10));
+            v /= 10;
+        } while (v != 0);
+        if (value < 0) {
+            line[--pos] = '-';
+        }
+        return Arrays.copyOfRange(line, pos, line.length);
+    }
+
+    /**
+     * Reads an option given on the command line as --name=value.
+     * @param args command line arguments
+     * @param name name of the option
+     * @param def value used when the option is not given
+     * @return the option value
+     */
+    static String option(String[] args, String name, String def) {
+        for(String arg : args) {
+            if(arg.startsWith("--" + name + "=")) {
+                return arg.substring(name.length() + 3);
+            }
+        }
+        return def;
+    }
+
+    /**
+     * Verifying proceeds as follows:
+     * 1) Decrypt the encryptedHash to compute a decryptedHash
+     * 2) Hash the messageToCheck using SHA-256 (be sure to handle
+     *    the extra byte as described in the signing method.)
+     * 3) If this new hash is equal to the decryptedHash, return true else false.
+     *
+     * @param messageToCheck  a normal string that needs to be verified.
+     * @param encryptedHashStr integer string - possible evidence attesting to its origin.
+     * @return true or false depending on whether the verification was a success
+     * @throws Exception
+     */
+    public boolean verify(String messageToCheck, String encryptedHashStr) throws Exception  {
+
+        // Take the encrypted string and make it a big integer
+        BigInteger encryptedHash = new BigInteger(encryptedHashStr);
+
+        // Get the bytes from messageToCheck
+        byte[] bytesOfMessageToCheck = messageToCheck.getBytes("UTF-8");
+
+        return verify(bytesOfMessageToCheck, 0, bytesOfMessageToCheck.length, encryptedHash);
+    }
+
+    /**
+     * Same as verify(String, String) for a message given as bytes
+     * message[off, off + len) and a signature already parsed.
+     * @param message bytes holding the message to check
+     * @param off start of the message
+     * @param len length of the message
+     * @param encryptedHash the signature
+     * @return true or false depending on whether the verification was a success
+     * @throws Exception
+     */
+    public boolean verify(byte[] message, int off, int len, BigInteger encryptedHash) throws Exception {
+
+        // Decrypt it
+        BigInteger decryptedHash = encryptedHash.modPow(e, n);
+
+        // compute the digest of the message with SHA-256
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(message, off, len);
+
+        byte[] messageToCheckDigest = md.digest();
+
+        // messageToCheckDigest is a full SHA-256 digest
+        // take two bytes from SHA-256 and add a zero byte
+        byte[] extraByte = new byte[messageToCheckDigest.length + 1];
+        extraByte[0] = 0;
+        System.arraycopy(messageToCheckDigest,0,extraByte,1,messageToCheckDigest.length);
+
+        // Make it a big int
+        BigInteger bigIntegerToCheck = new BigInteger(extraByte);
+
+        // inform the client on how the two compare
+        if(bigIntegerToCheck.compareTo(decryptedHash) == 0) {
+            return true;
+        }
+        else {
+            return false;
+        }
+    }
+
+    /**
+     * The server will make two checks before servicing any client request.
+     * First, does the public key hash to the ID?
+     * Second, is the request properly signed?
+     * If both of these are true, the request is carried out on behalf of the client
+     * The first check is cached in identityCache per id and public key.
+     * @return true
+     */
+    public static boolean checkBeforeService(String message, String signedVal) throws Exception {
+        return checkRequest(message, signedVal) != null;
+    }
+
+    /**
+     * Same checks as checkBeforeService.
+     * @return the verified identity of the client, or null if a check failed
+     */
+    static IdentityCache.Identity checkRequest(String message, String signedVal) throws Exception {
+        byte[] line = (message + ";" + signedVal).getBytes(StandardCharsets.UTF_8);
+        Request request;
+        try {
+            request = new Request().parse(line, 0, line.length);
+        } catch (IllegalArgumentException e) {
+            Log.debug("Malformed request: " + e.getMessage());
+            return null;
+        }
+        return checkRequest(request);
+    }
+
+    /**
+     * Same checks as checkBeforeService on a parsed request.
+     * @return the verified identity of the client, or null if a check failed
+     */
+    static IdentityCache.Identity checkRequest(Request request) throws Exception {
+        return checkRequest(request, true);
+    }
+
+    /**
+     * Same as checkRequest(Request).
+     * @param admission true to take a verification slot of Admission for the
+     *                  signature check, false when the caller bounds the
+     *                  number of checks itself, as ArchiveImporter does
+     */
+    static IdentityCache.Identity checkRequest(Request request, boolean admission) throws Exception {
+        byte[] buf = request.buf;
+        long t = System.nanoTime();
+
+        // FixedExponentVerifier only accepts a signature below n, so it
+        // cannot have more digits than the key has after "65537"; a longer
+        // one is refused here, before the identity is even looked up
+        if(request.signatureLength > request.keyLength - 5) {
+            ServerMetrics.invalidSignatures.increment();
+            Log.debug("Signature longer than the modulus");
+            return null;
+        }
+
+        // a client sends the same id and key with every request,
+        // so both checks on the key are usually done already
+        int keyEnd = request.keyOffset + request.keyLength;
+        IdentityCache.Identity identity = identityCache.get(buf, request.idOffset, keyEnd - request.idOffset);
+        if(identity == null) {
+            // the id check works on text, only a new client pays for it
+            identity = checkIdentity(new String(buf, request.idOffset, request.idLength, StandardCharsets.UTF_8),
+                    new String(buf, request.keyOffset, request.keyLength, StandardCharsets.UTF_8));
+            if(identity == null) {
+                return null;
+            }
+            identityCache.put(buf, request.idOffset, keyEnd - request.idOffset, identity);
+        }
+        t = ServerMetrics.idCheck.recordSince(t);
+
+        // Second, Check if the request is properly signed
+        // verify the signature, if the signature does not match,
+        // it will return false
+        boolean valid;
+        if(admission) {
+            Admission.beginVerification();
+        }
+        try {
+            valid = identity.verifier.verify(buf, request.messageOffset, request.messageLength, request.signature());
+        } finally {
+            if(admission) {
+                Admission.endVerification();
+            }
+        }
+        ServerMetrics.verify.recordSince(t);
+        if(!valid) {
+            ServerMetrics.invalidSignatures.increment();
+            Log.debug("Invalid Signature");
+            return null;
+        } else {
+            ServerMetrics.validSignatures.increment();
+            Log.debug("Valid Signature");
+        }
+        return identity;
+    }
+
+    /**
+     * Checks that the public key hashes to the ID and parses the key.
+     * Only done the first time the server sees an id and key pair.
+     * @param id client id from the request
+     * @param publicKey e and n concatenated as decimal
+     * @return the verified identity, or null if the key does not hash to the id
+     */
+    static IdentityCache.Identity checkIdentity(String id, String publicKey) throws Exception {
+
+        // First check if the public key hash to ID
+
+        // change public key to byte array
+        byte[] publicKeyBytes = publicKey.getBytes();
+        // hashing the key to SHA-256
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(publicKeyBytes);
+        byte[] publicKeyDigest = md.digest();
+
+        // takes the least significant 20 bytes of the hash
+        byte[] messageDigest;
+        int len = publicKeyDigest.length;
+        messageDigest = Arrays.copyOfRange(publicKeyDigest,len - 20, len);
+
+        // change least significant 20 bytes of the hashes to BigInteger
+        BigInteger publicKeyHash = new BigInteger(messageDigest);
+
+        // if the public key does not hash to ID return false;
+        if(!publicKeyHash.toString().equals(id)) {
+            ServerMetrics.idMismatches.increment();
+            Log.debug("The public key does not hash to the ID");
+            return null;
+        }
+
+        BigInteger e = FixedExponentVerifier.E;
+
+        // get n from the request
+        String nStr = publicKey.substring(5);
+        // print the public key, it is ~1233 digits so only when debugging
+        if(Log.isDebug()) {
+            Log.debug("public key: %ne: %s%nn: %s%n", e, nStr);
+        }
+
+        BigInteger n = new BigInteger(nStr);
+
+        return new IdentityCache.Identity(id, e, n);
+    }
+}
@@ -0,0 +1,510 @@
+/**
+ *  WriteAheadLog.java makes the ledger survive a restart.
+ *
+ *  Every add and min that changed a balance is appended to a memory-mapped
+ *  log file as a fixed size record: the account id, the amount added and a
+ *  CRC32 of both. A reply is only sent once its record is on disk.
+ *
+ *  Group commit: appending only copies the record into the mapped file. A
+ *  committer thread forces everything appended since its last fsync in one
+ *  go, so the requests of all connections that arrive during one fsync share
+ *  the next one instead of paying an fsync each.
+ *
+ *  Log files are numbered by generation (wal-GEN.log). When a file is
+ *  full, or every snapshot interval, the log rolls over to a new file. A
+ *  background thread then folds the closed file into the latest snapshot
+ *  (snapshot-GEN.dat, the balance of every account) and deletes the
+ *  files the new snapshot covers. This happens from the files alone, so it
+ *  never stops the server.
+ *
+ *  Recovery loads the newest snapshot and replays the log files written
+ *  after it, up to the first torn or missing record.
+ */
+
+package ethereumcontract;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+public class WriteAheadLog {
+
+    // id high, id middle, id low, delta, crc
+    static final int RECORD_SIZE = 8 + 8 + 4 + 8 + 4;
+    private static final int SNAPSHOT_MAGIC = 0x4C454447; // "LEDG"
+
+    private final Path dir;
+    private final int fileSize;
+
+    // guards the current file and the append position
+    private final ReentrantLock lock = new ReentrantLock();
+    // signalled when records are appended, wakes the committer
+    private final Condition appendedRecords = lock.newCondition();
+    // signalled when records become durable, wakes sync()
+    private final Condition durableRecords = lock.newCondition();
+    private long generation;
+    private MappedByteBuffer file;
+    private int filePosition;
+    // records appended so far, and the part of them that is on disk
+    private long appended;
+    private volatile long durable;
+    // appended count at which the current file starts
+    private long fileStart;
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "wal-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // statistics
+    private final LongAdder fsyncs = new LongAdder();
+    private final LongAdder fsyncNanos = new LongAdder();
+    private final LongAdder syncedRecords = new LongAdder();
+    private volatile long maxFsyncNanos;
+    private volatile long recoveryMillis;
+    private volatile long recoveredRecords;
+
+    private WriteAheadLog(Path dir, int fileSize) {
+        this.dir = dir;
+        this.fileSize = fileSize - fileSize % RECORD_SIZE;
+    }
+
+    /**
+     * @param megabytes size of one log file in MB, as given by --wal-file-mb
+     * @return the size in bytes
+     * @throws IllegalArgumentException if it is not from 1 to 2047: a log
+     *         file is mapped whole, and a mapping is smaller than 2 GB
+     */
+    public static int fileSize(String megabytes) {
+        int mb = Integer.parseInt(megabytes);
+        if (mb < 1 || mb > 2047) {
+            throw new IllegalArgumentException("--wal-file-mb must be from 1 to 2047, not " + megabytes);
+        }
+        return mb * 1024 * 1024;
+    }
+
+    /**
+     * Recovers the ledger from the files in dir and opens a new log file.
+     * @param dir directory holding the snapshots and the log files
+     * @param ledger an empty ledger, filled with the recovered balances
+     * @param fileSize size of one log file in bytes
+     * @param snapshotSeconds the log rolls over and is compacted at least this often
+     * @return the log, ready for appends
+     */
+    public static WriteAheadLog open(Path dir, Ledger ledger, int fileSize, int snapshotSeconds) throws IOException {
+        Files.createDirectories(dir);
+        WriteAheadLog wal = new WriteAheadLog(dir, fileSize);
+
+        long start = System.nanoTime();
+        long lastGeneration = wal.recover(ledger);
+        wal.recoveryMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        wal.lock.lock();
+        try {
+            wal.openFile(lastGeneration + 1);
+        } finally {
+            wal.lock.unlock();
+        }
+
+        Thread committer = new Thread(wal::commitLoop, "wal-committer");
+        committer.setDaemon(true);
+        committer.start();
+
+        Thread roller = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(snapshotSeconds * 1000L);
+                    wal.roll();
+                }
+            } catch (InterruptedException e) {
+                // server is stopping
+            } catch (IOException e) {
+                Log.error("WAL: " + e.getMessage());
+            }
+        }, "wal-roller");
+        roller.setDaemon(true);
+        roller.start();
+
+        // fold whatever the last run left behind
+        if (lastGeneration > 0) {
+            wal.compactor.execute(() -> wal.compact(lastGeneration));
+        }
+        return wal;
+    }
+
+    /**
+     * Appends one balance change. The record is not durable yet, see sync().
+     */
+    public void append(long idHigh, long idMiddle, int idLow, long delta) throws IOException {
+        lock.lock();
+        try {
+            if (filePosition + RECORD_SIZE > fileSize) {
+                rollLocked();
+            }
+            MappedByteBuffer f = file;
+            int pos = filePosition;
+            f.putLong(pos, idHigh);
+            f.putLong(pos + 8, idMiddle);
+            f.putInt(pos + 16, idLow);
+            f.putLong(pos + 20, delta);
+            f.putInt(pos + 28, crc(idHigh, idMiddle, idLow, delta));
+            filePosition = pos + RECORD_SIZE;
+            appended++;
+            appendedRecords.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every record appended before this call is on disk,
+     * which includes the records the calling thread appended.
+     */
+    public void sync() throws InterruptedException {
+        lock.lock();
+        try {
+            long target = appended;
+            while (durable < target) {
+                durableRecords.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Committer thread: one fsync for everything appended since the last one.
+     */
+    private void commitLoop() {
+        try {
+            while (true) {
+                MappedByteBuffer f;
+                int from, to;
+                long target;
+                lock.lock();
+                try {
+                    while (appended == durable) {
+                        appendedRecords.await();
+                    }
+                    target = appended;
+                    f = file;
+                    // the current file holds the records since fileStart,
+                    // earlier files were forced when the log rolled over
+                    from = (int) (Math.max(durable, fileStart) - fileStart) * RECORD_SIZE;
+                    to = filePosition;
+                } finally {
+                    lock.unlock();
+                }
+                long start = System.nanoTime();
+                f.force(from, to - from);
+                long nanos = System.nanoTime() - start;
+                fsyncs.increment();
+                fsyncNanos.add(nanos);
+                maxFsyncNanos = Math.max(maxFsyncNanos, nanos);
+                lock.lock();
+                try {
+                    // a roll over may have made more records durable meanwhile
+                    if (target > durable) {
+                        syncedRecords.add(target - durable);
+                        durable = target;
+                    }
+                    durableRecords.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            // server is stopping
+        }
+    }
+
+    /**
+     * Closes the current log file if it has records and starts a new one.
+     * The closed file is compacted in the background.
+     */
+    public void roll() throws IOException {
+        lock.lock();
+        try {
+            if (filePosition > 0) {
+                rollLocked();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void rollLocked() throws IOException {
+        long closed = generation;
+        // everything in the closed file must be durable before it is left behind
+        file.force();
+        if (durable < appended) {
+            syncedRecords.add(appended - durable);
+            durable = appended;
+            durableRecords.signalAll();
+        }
+        openFile(generation + 1);
+        compactor.execute(() -> compact(closed));
+    }
+
+    private void openFile(long gen) throws IOException {
+        try (FileChannel channel = FileChannel.open(logPath(gen), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            file = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        }
+        generation = gen;
+        filePosition = 0;
+        fileStart = appended;
+    }
+
+    /**
+     * Loads the newest snapshot and replays the log files after it.
+     * @return the highest generation found on disk, 0 if none
+     */
+    private long recover(Ledger ledger) throws IOException {
+        long snapshotGeneration = newestSnapshot();
+        if (snapshotGeneration > 0) {
+            readSnapshot(snapshotPath(snapshotGeneration), ledger);
+        }
+        long last = snapshotGeneration;
+        long records = 0;
+        for (long gen : logGenerations()) {
+            if (gen > snapshotGeneration) {
+                records += replay(logPath(gen), ledger);
+            }
+            last = Math.max(last, gen);
+        }
+        recoveredRecords = records;
+        return last;
+    }
+
+    /**
+     * Background: folds every closed log file up to gen into a new snapshot.
+     */
+    private void compact(long gen) {
+        try {
+            long snapshotGeneration = newestSnapshot();
+            if (snapshotGeneration >= gen) {
+                return;
+            }
+            Ledger folded = new Ledger();
+            if (snapshotGeneration > 0) {
+                readSnapshot(snapshotPath(snapshotGeneration), folded);
+            }
+            List<Long> covered = new ArrayList<>();
+            for (long g : logGenerations()) {
+                if (g > snapshotGeneration && g <= gen) {
+                    replay(logPath(g), folded);
+                    covered.add(g);
+                }
+            }
+            writeSnapshot(folded, gen);
+            for (long g : covered) {
+                Files.deleteIfExists(logPath(g));
+            }
+            if (snapshotGeneration > 0) {
+                Files.deleteIfExists(snapshotPath(snapshotGeneration));
+            }
+        } catch (IOException e) {
+            // the log files are kept, the next compaction tries again
+            Log.error("WAL compaction: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Replays one log file into the ledger.
+     * @return number of records replayed
+     */
+    private static long replay(Path log, Ledger ledger) throws IOException {
+        long records = 0;
+        try (InputStream raw = Files.newInputStream(log);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(raw, 1 << 16))) {
+            while (true) {
+                long idHigh = in.readLong();
+                long idMiddle = in.readLong();
+                int idLow = in.readInt();
+                long delta = in.readLong();
+                int crc = in.readInt();
+                if (crc != crc(idHigh, idMiddle, idLow, delta)) {
+                    // unused space or a record torn by a crash
+                    break;
+                }
+                ledger.replay(idHigh, idMiddle, idLow, delta);
+                records++;
+            }
+        } catch (EOFException e) {
+            // end of the file
+        }
+        return records;
+    }
+
+    private void writeSnapshot(Ledger ledger, long gen) throws IOException {
+        Path tmp = dir.resolve("snapshot.tmp");
+        CRC32 crc = new CRC32();
+        try (OutputStream raw = Files.newOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(raw, crc), 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(gen);
+            out.writeInt(ledger.size());
+            IOException[] failed = new IOException[1];
+            ledger.forEach((idHigh, idMiddle, idLow, balance) -> {
+                try {
+                    out.writeLong(idHigh);
+                    out.writeLong(idMiddle);
+                    out.writeInt(idLow);
+                    out.writeLong(balance);
+                } catch (IOException e) {
+                    failed[0] = e;
+                }
+            });
+            if (failed[0] != null) {
+                throw failed[0];
+            }
+            out.flush();
+            // the checksum itself is not part of the checksum
+            raw.write(intBytes((int) crc.getValue()));
+        }
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, snapshotPath(gen), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void readSnapshot(Path path, Ledger ledger) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream raw = Files.newInputStream(path);
+             DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(raw, 1 << 16), crc))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a ledger snapshot: " + path);
+            }
+            in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                ledger.set(in.readLong(), in.readLong(), in.readInt(), in.readLong());
+            }
+            int expected = (int) crc.getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("Corrupt ledger snapshot: " + path);
+            }
+        }
+    }
+
+    private long newestSnapshot() throws IOException {
+        long newest = 0;
+        for (long gen : generations("snapshot-", ".dat")) {
+            newest = Math.max(newest, gen);
+        }
+        return newest;
+    }
+
+    private Iterable<Long> logGenerations() throws IOException {
+        return generations("wal-", ".log");
+    }
+
+    private Iterable<Long> generations(String prefix, String suffix) throws IOException {
+        TreeMap<Long, Path> found = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*" + suffix)) {
+            for (Path p : files) {
+                String name = p.getFileName().toString();
+                try {
+                    found.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())), p);
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        return found.keySet();
+    }
+
+    private Path logPath(long gen) {
+        return dir.resolve(String.format("wal-%012d.log", gen));
+    }
+
+    private Path snapshotPath(long gen) {
+        return dir.resolve(String.format("snapshot-%012d.dat", gen));
+    }
+
+    private static int crc(long idHigh, long idMiddle, int idLow, long delta) {
+        CRC32 crc = new CRC32();
+        byte[] b = new byte[RECORD_SIZE - 4];
+        for (int i = 0; i < 8; i++) {
+            b[i] = (byte) (idHigh >>> (56 - 8 * i));
+            b[8 + i] = (byte) (idMiddle >>> (56 - 8 * i));
+            b[20 + i] = (byte) (delta >>> (56 - 8 * i));
+        }
+        for (int i = 0; i < 4; i++) {
+            b[16 + i] = (byte) (idLow >>> (24 - 8 * i));
+        }
+        crc.update(b);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] intBytes(int v) {
+        return new byte[] {(byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v};
+    }
+
+    public long fsyncs() {
+        return fsyncs.sum();
+    }
+
+    /**
+     * @return average fsync time in microseconds, the commit latency
+     *         a request sees on top of its own work
+     */
+    public double averageFsyncMicros() {
+        long n = fsyncs.sum();
+        return n == 0 ? 0 : fsyncNanos.sum() / 1000.0 / n;
+    }
+
+    public double maxFsyncMicros() {
+        return maxFsyncNanos / 1000.0;
+    }
+
+    /**
+     * @return average number of records made durable by one fsync
+     */
+    public double recordsPerFsync() {
+        long n = fsyncs.sum();
+        return n == 0 ? 0 : (double) syncedRecords.sum() / n;
+    }
+
+    public long recoveryMillis() {
+        return recoveryMillis;
+    }
+
+    public long recoveredRecords() {
+        return recoveredRecords;
+    }
+
+    /**
+     * @return commit statistics, for the server console
+     */
+    public String stats() {
+        return String.format("wal: fsyncs=%d avgFsync=%.0fus maxFsync=%.0fus recordsPerFsync=%.1f",
+                fsyncs(), averageFsyncMicros(), maxFsyncMicros(), recordsPerFsync());
+    }
+}
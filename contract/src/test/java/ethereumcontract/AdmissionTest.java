@@ -0,0 +1,66 @@
+/**
+ *  AdmissionTest.java checks that the rate limit of a client id follows
+ *  its ledger id, not the Identity object the cache happens to hold.
+ */
+
+package ethereumcontract;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AdmissionTest {
+
+    private static IdentityCache.Identity identity(String id) {
+        return new IdentityCache.Identity(id, FixedExponentVerifier.E, BigInteger.valueOf(3233));
+    }
+
+    @AfterEach
+    void limitsOff() {
+        Admission.configure(new String[0]);
+    }
+
+    @Test
+    void bucketOutlivesIdentity() {
+        Admission.configure(new String[]{"--id-rate=0.001", "--id-burst=2"});
+        Admission.admit(identity("1001"));
+        // an identity evicted and checked again, or made for the other
+        // protocol, is a new object for the same ledger id
+        Admission.admit(identity("1001"));
+        assertThrows(Admission.BusyException.class, () -> Admission.admit(identity("1001")));
+    }
+
+    @Test
+    void idsHaveTheirOwnBuckets() {
+        Admission.configure(new String[]{"--id-rate=0.001", "--id-burst=1"});
+        IdentityCache.Identity first = identity("2001");
+        Admission.admit(first);
+        assertThrows(Admission.BusyException.class, () -> Admission.admit(first));
+        assertDoesNotThrow(() -> Admission.admit(identity("2002")));
+    }
+
+    @Test
+    void fullBucketsAreDropped() throws InterruptedException {
+        Admission.configure(new String[]{"--id-rate=1000", "--id-burst=1"});
+        Admission.admit(identity("4001"));
+        int buckets = Admission.idBuckets();
+        // the bucket of 4001 fills up in 1 ms, the sweeps are a second apart
+        Thread.sleep(1100);
+        Admission.admit(identity("4002"));
+        // 4001 is dropped as 4002 is added
+        assertEquals(buckets, Admission.idBuckets());
+    }
+
+    @Test
+    void unlimitedWithoutRate() {
+        IdentityCache.Identity identity = identity("3001");
+        for (int i = 0; i < 100; i++) {
+            Admission.admit(identity);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ *  ApplyBatchTest.java checks VerifyingServerTCP.applyBatch on the ledger
+ *  of the server: a batch replies one value per operation, and a batch
+ *  that would overflow changes nothing at all.
+ */
+
+package ethereumcontract;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ApplyBatchTest {
+
+    private static BigInteger n;
+
+    @BeforeAll
+    static void key() throws Exception {
+        n = SigningClientTCP.generateKeys(new Random(23), 128).n;
+    }
+
+    // each test has an account of its own in the server's ledger
+    private static IdentityCache.Identity identity(String id) {
+        return new IdentityCache.Identity(id, FixedExponentVerifier.E, n);
+    }
+
+    private static String apply(IdentityCache.Identity identity, String operations) throws Exception {
+        byte[] line = ("1,2,batch," + operations + ";9").getBytes(StandardCharsets.US_ASCII);
+        VerifyingServerTCP.Request request = new VerifyingServerTCP.Request().parse(line, 0, line.length);
+        return new String(VerifyingServerTCP.applyBatch(request, identity), StandardCharsets.US_ASCII);
+    }
+
+    private static long balance(IdentityCache.Identity identity) {
+        return VerifyingServerTCP.ledger.get(identity.idHigh, identity.idMiddle, identity.idLow);
+    }
+
+    @Test
+    void repliesOneValuePerOperation() throws Exception {
+        IdentityCache.Identity identity = identity("9100001");
+        assertEquals("5,2,2,9\n", apply(identity, "add:5|min:3|get:0|add:7"));
+        assertEquals(9, balance(identity));
+        assertEquals("9\n", apply(identity, "get:0"));
+    }
+
+    @Test
+    void overflowChangesNothing() throws Exception {
+        IdentityCache.Identity identity = identity("9100002");
+        Ledger ledger = VerifyingServerTCP.ledger;
+        ledger.set(identity.idHigh, identity.idMiddle, identity.idLow, Long.MAX_VALUE - 10);
+        // the third operation would overflow, the first two are not done either
+        assertThrows(ArithmeticException.class, () -> apply(identity, "add:5|add:3|add:7"));
+        assertEquals(Long.MAX_VALUE - 10, balance(identity));
+        // nor with a get before the overflow
+        assertThrows(ArithmeticException.class, () -> apply(identity, "min:1|get:0|add:20"));
+        assertEquals(Long.MAX_VALUE - 10, balance(identity));
+        // the same below the minimum
+        ledger.set(identity.idHigh, identity.idMiddle, identity.idLow, Long.MIN_VALUE + 1);
+        assertThrows(ArithmeticException.class, () -> apply(identity, "add:1|min:3"));
+        assertEquals(Long.MIN_VALUE + 1, balance(identity));
+        // up to the limit is fine
+        assertEquals((Long.MIN_VALUE + 2) + "," + Long.MIN_VALUE + "\n", apply(identity, "add:1|min:2"));
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ *  BatchVerifierTest.java submits lines of one account through the Lines
+ *  of a BatchVerifier and checks from the balances replied the order they
+ *  were applied in: that of each connection, when several send to the
+ *  account at once, and also around session lines, which are serviced
+ *  apart from the batches.
+ */
+
+package ethereumcontract;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BatchVerifierTest {
+
+    private static SigningClientTCP signer;
+    private static SigningClientTCP shared;
+
+    @BeforeAll
+    static void keys() throws Exception {
+        // each test has an account of its own in the server's ledger
+        signer = SigningClientTCP.generateKeys(new Random(31), 256);
+        shared = SigningClientTCP.generateKeys(new Random(37), 256);
+    }
+
+    private static byte[] bytes(String line) {
+        return line.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static long balance(SigningClientTCP signer) {
+        IdentityCache.Identity identity = new IdentityCache.Identity(signer.idStr, signer.e, signer.n);
+        return VerifyingServerTCP.ledger.get(identity.idHigh, identity.idMiddle, identity.idLow);
+    }
+
+    /**
+     * The replies of a connection, as strings without the terminator.
+     */
+    private static final class Received implements LedgerPipeline.Replies {
+        private final List<String> replies = new ArrayList<>();
+
+        @Override
+        public synchronized void reply(byte[] reply) {
+            replies.add(new String(reply, StandardCharsets.US_ASCII).trim());
+            notifyAll();
+        }
+
+        /**
+         * @return the first count replies, once they are in
+         */
+        synchronized List<String> await(int count) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (replies.size() < count) {
+                long left = deadline - System.nanoTime();
+                assertTrue(left > 0, "timed out with " + replies.size() + " replies");
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            return new ArrayList<>(replies.subList(0, count));
+        }
+    }
+
+    @Test
+    void sessionLinesKeepTheirPlaceAmongSignedLines() throws Exception {
+        BatchVerifier verifier = new BatchVerifier(2, 64, 1024);
+        int count = 200;
+        Received received = new Received();
+        BatchVerifier.Lines lines = verifier.lines(new Session(), received);
+
+        lines.submit(bytes(signer.request(0, "session")), true);
+        Session client = Session.open(signer, received.await(1).get(0));
+
+        // signed and session lines in turns, and in runs of each, so signed
+        // lines follow a session line that is still waiting for a batch
+        Random rnd = new Random(5);
+        long balance = balance(signer);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int operand = rnd.nextInt(100);
+            String operation = rnd.nextBoolean() ? "add" : "min";
+            balance += operation.equals("add") ? operand : -operand;
+            expected.add(String.valueOf(balance));
+            boolean session = i % 7 < 3 ? i % 2 == 0 : i % 7 == 3;
+            lines.submit(bytes(session ? client.request(operand, operation) : signer.request(operand, operation)), true);
+        }
+
+        assertEquals(expected, received.await(1 + count).subList(1, 1 + count));
+        assertEquals(balance, balance(signer));
+    }
+
+    @Test
+    void eachConnectionIsAppliedInArrivalOrder() throws Exception {
+        BatchVerifier verifier = new BatchVerifier(2, 16, 4096);
+        int connections = 4;
+        int count = 150;
+        long start = balance(shared);
+        // line j of connection c adds c * 1000 + j + 1: every balance
+        // replied is a new one, and the step to the one before it tells
+        // which line was applied
+        Received[] received = new Received[connections];
+        Thread[] senders = new Thread[connections];
+        CountDownLatch go = new CountDownLatch(1);
+        AtomicReference<Exception> failed = new AtomicReference<>();
+        for (int c = 0; c < connections; c++) {
+            int connection = c;
+            received[c] = new Received();
+            BatchVerifier.Lines lines = verifier.lines(new Session(), received[c]);
+            senders[c] = new Thread(() -> {
+                try {
+                    go.await();
+                    for (int j = 0; j < count; j++) {
+                        lines.submit(bytes(shared.request(connection * 1000 + j + 1, "add")), true);
+                    }
+                } catch (Exception e) {
+                    failed.set(e);
+                }
+            });
+            senders[c].start();
+        }
+        go.countDown();
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        assertNull(failed.get());
+
+        TreeMap<Long, Integer> applied = new TreeMap<>();
+        long total = 0;
+        for (int c = 0; c < connections; c++) {
+            long last = start;
+            for (String reply : received[c].await(count)) {
+                long balance = Long.parseLong(reply);
+                // a connection sees its own lines in the order it sent them
+                assertTrue(balance > last, "connection " + c + " went from " + last + " to " + balance);
+                last = balance;
+                applied.put(balance, c);
+            }
+            total += (long) count * (c * 1000) + (long) count * (count + 1) / 2;
+        }
+        assertEquals(connections * count, applied.size());
+        assertEquals(start + total, balance(shared));
+
+        // walk the balances in the order they changed
+        int[] next = new int[connections];
+        long before = start;
+        for (Map.Entry<Long, Integer> change : applied.entrySet()) {
+            int c = change.getValue();
+            assertEquals(c * 1000 + next[c] + 1, change.getKey() - before,
+                    "connection " + c + " had line " + next[c] + " next after balance " + before);
+            next[c]++;
+            before = change.getKey();
+        }
+    }
+}
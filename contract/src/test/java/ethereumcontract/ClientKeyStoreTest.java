@@ -0,0 +1,117 @@
+/**
+ *  ClientKeyStoreTest.java checks that a ClientKeyStore gives back the
+ *  keys added to it, and that an append a crash cut short loses no more
+ *  than the key it was writing.
+ */
+
+package ethereumcontract;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ClientKeyStoreTest {
+
+    private static SigningClientTCP[] signers = new SigningClientTCP[3];
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void keys() throws Exception {
+        Random rnd = new Random(21);
+        for (int i = 0; i < signers.length; i++) {
+            signers[i] = SigningClientTCP.generateKeys(rnd, 128);
+        }
+    }
+
+    private Path storeOfTwo() throws Exception {
+        Path file = dir.resolve("keys.cks");
+        ClientKeyStore store = ClientKeyStore.open(file);
+        store.add(signers[0]);
+        store.add(signers[1]);
+        return file;
+    }
+
+    private static void assertKeys(ClientKeyStore store, int count) throws Exception {
+        assertEquals(count, store.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(signers[i].idStr, store.get(i).idStr);
+            assertEquals(128, store.primeBits(i));
+        }
+    }
+
+    @Test
+    void keepsKeysAcrossOpens() throws Exception {
+        Path file = storeOfTwo();
+        assertKeys(ClientKeyStore.open(file), 2);
+    }
+
+    @Test
+    void skipsRecordCutShort() throws Exception {
+        Path file = storeOfTwo();
+        long whole = Files.size(file);
+        // every cut of the third record
+        ClientKeyStore.open(file).add(signers[2]);
+        long longer = Files.size(file);
+        for (long size = whole + 1; size < longer; size++) {
+            Path copy = dir.resolve("cut-" + size);
+            Files.copy(file, copy);
+            try (FileChannel channel = FileChannel.open(copy, StandardOpenOption.WRITE)) {
+                channel.truncate(size);
+            }
+            assertKeys(ClientKeyStore.open(copy), 2);
+        }
+    }
+
+    @Test
+    void nextAddReplacesRecordCutShort() throws Exception {
+        Path file = storeOfTwo();
+        Files.write(file, new byte[]{0, 0, 0, 65, 1, 2}, StandardOpenOption.APPEND);
+        ClientKeyStore store = ClientKeyStore.open(file);
+        assertKeys(store, 2);
+        store.add(signers[2]);
+        assertKeys(ClientKeyStore.open(file), 3);
+    }
+
+    @Test
+    void skipsZerosAfterLastRecord() throws Exception {
+        Path file = storeOfTwo();
+        Files.write(file, new byte[100], StandardOpenOption.APPEND);
+        ClientKeyStore store = ClientKeyStore.open(file);
+        assertKeys(store, 2);
+        store.add(signers[2]);
+        assertKeys(ClientKeyStore.open(file), 3);
+    }
+
+    @Test
+    void startsOverAfterMagicCutShort() throws Exception {
+        Path file = dir.resolve("keys.cks");
+        Files.write(file, new byte[]{'C', 'K'});
+        ClientKeyStore store = ClientKeyStore.open(file);
+        assertEquals(0, store.size());
+        store.add(signers[0]);
+        assertKeys(ClientKeyStore.open(file), 1);
+    }
+
+    @Test
+    void refusesOtherFiles() throws Exception {
+        Path file = dir.resolve("other");
+        Files.write(file, new byte[]{'C', 'K', 'S', '2', 0, 0, 0, 1, 7});
+        assertThrows(IOException.class, () -> ClientKeyStore.open(file));
+        Path damaged = storeOfTwo();
+        // a length no prime of the store has, with more after it
+        Files.write(damaged, new byte[]{127, 0, 0, 0, 1}, StandardOpenOption.APPEND);
+        assertThrows(IOException.class, () -> ClientKeyStore.open(damaged));
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ *  FixedExponentVerifierTest.java checks FixedExponentVerifier against
+ *  VerifyingServerTCP.verify, and pins down where the two differ: the
+ *  verifier refuses a signature that is not from 1 to n - 1.
+ */
+
+package ethereumcontract;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FixedExponentVerifierTest {
+
+    private static BigInteger n, d;
+    private static FixedExponentVerifier verifier;
+    private static VerifyingServerTCP baseline;
+
+    @BeforeAll
+    static void key() {
+        // a small key is enough to check the arithmetic
+        Random rnd = new Random(7);
+        BigInteger p, q, phi;
+        do {
+            p = BigInteger.probablePrime(256, rnd);
+            q = BigInteger.probablePrime(256, rnd);
+            phi = p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE));
+        } while (!phi.gcd(FixedExponentVerifier.E).equals(BigInteger.ONE));
+        n = p.multiply(q);
+        d = FixedExponentVerifier.E.modInverse(phi);
+        verifier = new FixedExponentVerifier(n);
+        baseline = new VerifyingServerTCP(FixedExponentVerifier.E, n);
+    }
+
+    /**
+     * Signs a message the way SigningClientTCP does.
+     */
+    private static BigInteger sign(byte[] message) throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(message);
+        return new BigInteger(1, digest).modPow(d, n);
+    }
+
+    private static byte[] bytes(String message) {
+        return message.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void agreesWithBaselineBelowModulus() throws Exception {
+        Random rnd = new Random(11);
+        for (int i = 0; i < 200; i++) {
+            byte[] message = bytes("1234,65537" + i + ",add," + rnd.nextInt());
+            BigInteger good = sign(message);
+            // a random residue, and the right one for another message
+            BigInteger bad = new BigInteger(n.bitLength() - 1, rnd).add(BigInteger.ONE);
+            BigInteger other = sign(bytes("other" + i));
+            for (BigInteger signature : new BigInteger[]{good, bad, other}) {
+                assertEquals(baseline.verify(message, 0, message.length, signature),
+                        verifier.verify(message, 0, message.length, signature));
+            }
+            assertTrue(verifier.verify(message, 0, message.length, good));
+        }
+    }
+
+    @Test
+    void verifiesMessageInsideBuffer() throws Exception {
+        byte[] message = bytes("1,2,min,5");
+        BigInteger signature = sign(message);
+        byte[] buf = bytes("xx1,2,min,5;yy");
+        assertTrue(verifier.verify(buf, 2, message.length, signature));
+        assertFalse(verifier.verify(buf, 2, message.length - 1, signature));
+    }
+
+    @Test
+    void refusesSignatureAtOrAboveModulus() throws Exception {
+        byte[] message = bytes("1,2,add,7");
+        BigInteger signature = sign(message);
+        BigInteger congruent = signature.add(n);
+        // the baseline reduces mod n in modPow, the verifier refuses
+        assertTrue(baseline.verify(message, 0, message.length, congruent));
+        assertFalse(verifier.verify(message, 0, message.length, congruent));
+        assertFalse(verifier.verify(message, 0, message.length, n));
+        assertFalse(verifier.verify(message, 0, message.length, BigInteger.ZERO));
+    }
+}
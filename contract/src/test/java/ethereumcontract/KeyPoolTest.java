@@ -0,0 +1,72 @@
+/**
+ *  KeyPoolTest.java checks that a KeyPool hands out the keys it was asked
+ *  for and no more, and that take fails instead of waiting for good when
+ *  the pool is closed, also while it waits, or its generator gave up.
+ */
+
+package ethereumcontract;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class KeyPoolTest {
+
+    @Test
+    void makesAsManyKeysAsAskedFor() throws Exception {
+        try (KeyPool pool = new KeyPool(128, 3, 2)) {
+            Set<BigInteger> moduli = new HashSet<>();
+            for (int i = 0; i < 3; i++) {
+                SigningClientTCP signer = pool.take();
+                assertEquals(256, signer.n.bitLength(), 1);
+                moduli.add(signer.n);
+            }
+            assertEquals(3, moduli.size());
+            assertThrows(IllegalStateException.class, pool::take);
+        }
+    }
+
+    @Test
+    void takeFailsWhenGeneratorFails() {
+        // no prime has a single bit, the search throws at once
+        try (KeyPool pool = new KeyPool(1, 2, 1)) {
+            IllegalStateException e = assertThrows(IllegalStateException.class, pool::take);
+            assertInstanceOf(ArithmeticException.class, e.getCause());
+            // nor does the next take wait for the key that never comes
+            assertThrows(IllegalStateException.class, pool::take);
+        }
+    }
+
+    @Test
+    void takeFailsOnClosedPool() {
+        KeyPool pool = new KeyPool(128, 1, 1);
+        pool.close();
+        assertThrows(IllegalStateException.class, pool::take);
+    }
+
+    @Test
+    void closeWakesWaitingTake() throws Exception {
+        // large primes, so the take is still waiting when the pool is closed
+        KeyPool pool = new KeyPool(2048, 1, 1);
+        CompletableFuture<SigningClientTCP> taken = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.take();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(100);
+        pool.close();
+        ExecutionException e = assertThrows(ExecutionException.class, () -> taken.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ *  LatencyHistogramTest.java checks the quantiles and the max of a
+ *  LatencyHistogram, also when many threads record at once.
+ */
+
+package ethereumcontract;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    @Test
+    void quantilesStayWithinABucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 100_000; v++) {
+            histogram.record(v * 1000);
+        }
+        long p99 = histogram.quantileNanos(0.99);
+        assertTrue(p99 >= 99_000_000 && p99 <= 99_000_000 * 1.02, "p99 " + p99);
+        assertEquals(100_000_000, histogram.maxNanos());
+        assertEquals(100_000_000, histogram.quantileNanos(1));
+    }
+
+    @Test
+    void keepsLargestValueOfAllThreads() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(i * threads.length + offset);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400_000, histogram.count());
+        assertEquals(399_999, histogram.maxNanos());
+        // the top quantile is clamped to the max, not below it
+        assertEquals(399_999, histogram.quantileNanos(1));
+    }
+}
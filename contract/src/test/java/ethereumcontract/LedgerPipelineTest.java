@@ -0,0 +1,69 @@
+/**
+ *  LedgerPipelineTest.java checks that trySubmit never waits for a full
+ *  ring, and that whenFree calls back once the writer frees slots. The
+ *  lines are malformed, so they reach the writer without touching the
+ *  ledger, and a reply sink that blocks holds the writer up.
+ */
+
+package ethereumcontract;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LedgerPipelineTest {
+
+    private static final byte[] LINE = "not a request".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    void trySubmitRefusesFullRingAndWhenFreeCallsBack() throws Exception {
+        LedgerPipeline pipeline = new LedgerPipeline(2, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger replies = new AtomicInteger();
+        LedgerPipeline.Replies sink = reply -> {
+            assertArrayEquals(VerifyingServerTCP.ERROR_REPLY, reply);
+            replies.incrementAndGet();
+            try {
+                // the writer hands out this reply only once released
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        Session session = new Session();
+
+        assertTrue(pipeline.trySubmit(LINE, 0, LINE.length, true, session, sink));
+        assertTrue(pipeline.trySubmit(LINE, 0, LINE.length, true, session, sink));
+        // both slots are taken until the writer is released
+        assertFalse(pipeline.trySubmit(LINE, 0, LINE.length, true, session, sink));
+
+        CountDownLatch freed = new CountDownLatch(1);
+        pipeline.whenFree(freed::countDown);
+        assertFalse(freed.await(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(freed.await(5, TimeUnit.SECONDS));
+
+        assertTrue(pipeline.trySubmit(LINE, 0, LINE.length, true, session, sink));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (replies.get() < 3 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(3, replies.get());
+    }
+
+    @Test
+    void whenFreeRunsAtOnceWithFreeSlot() {
+        LedgerPipeline pipeline = new LedgerPipeline(2, 1);
+        boolean[] called = {false};
+        pipeline.whenFree(() -> called[0] = true);
+        assertTrue(called[0]);
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ *  LedgerTest.java checks the open-addressing tables of Ledger: growing
+ *  them, leaving them unchanged when a balance would overflow or its change
+ *  cannot be logged, and logging a change before it can be seen.
+ */
+
+package ethereumcontract;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LedgerTest {
+
+    // all these ids land in segment 0, so its table grows many times
+    private static long high(int i) {
+        return i;
+    }
+
+    @Test
+    void growKeepsEveryAccount() {
+        Ledger ledger = new Ledger();
+        int accounts = 10_000;
+        for (int i = 0; i < accounts; i++) {
+            ledger.add(high(i), i * 31L, i, i);
+        }
+        // a second add finds the account again instead of making a new one
+        for (int i = 0; i < accounts; i++) {
+            assertEquals(2L * i, ledger.add(high(i), i * 31L, i, i));
+        }
+        assertEquals(accounts, ledger.size());
+        for (int i = 0; i < accounts; i++) {
+            assertEquals(2L * i, ledger.get(high(i), i * 31L, i));
+        }
+        long[] visited = new long[2];
+        ledger.forEach((idHigh, idMiddle, idLow, balance) -> {
+            visited[0]++;
+            visited[1] += balance;
+        });
+        assertEquals(accounts, visited[0]);
+        assertEquals((long) accounts * (accounts - 1), visited[1]);
+    }
+
+    @Test
+    void idsDifferingInOneWordAreDifferentAccounts() {
+        Ledger ledger = new Ledger();
+        ledger.add(1, 2, 3, 10);
+        ledger.add(1, 2, 4, 20);
+        ledger.add(1, 5, 3, 30);
+        ledger.add(6, 2, 3, 40);
+        assertEquals(4, ledger.size());
+        assertEquals(10, ledger.get(1, 2, 3));
+        assertEquals(20, ledger.get(1, 2, 4));
+        assertEquals(30, ledger.get(1, 5, 3));
+        assertEquals(40, ledger.get(6, 2, 3));
+        assertEquals(0, ledger.get(1, 2, 5));
+    }
+
+    @Test
+    void addOverflowLeavesBalance() {
+        Ledger ledger = new Ledger();
+        ledger.add(1, 1, 1, Long.MAX_VALUE);
+        assertThrows(ArithmeticException.class, () -> ledger.add(1, 1, 1, 1));
+        assertEquals(Long.MAX_VALUE, ledger.get(1, 1, 1));
+        assertEquals(1, ledger.size());
+    }
+
+    @Test
+    void addAllOverflowOfNewAccountCreatesNothing() {
+        Ledger ledger = new Ledger();
+        ledger.trackState();
+        long[] balances = new long[2];
+        assertThrows(ArithmeticException.class, () ->
+                ledger.addAll(1, 1, 1, new long[]{Long.MAX_VALUE, 1}, 2, balances));
+        assertEquals(0, ledger.size());
+        // the state tree agrees with the table
+        int[] leaves = {0};
+        ledger.snapshot().scan(false, 0, 0, 0, leaf -> {
+            leaves[0]++;
+            return true;
+        });
+        assertEquals(0, leaves[0]);
+    }
+
+    @Test
+    void addAllIsAllOrNothing() {
+        Ledger ledger = new Ledger();
+        ledger.add(1, 1, 1, 5);
+        long[] balances = new long[3];
+        assertThrows(ArithmeticException.class, () ->
+                ledger.addAll(1, 1, 1, new long[]{-2, Long.MAX_VALUE, 1}, 3, balances));
+        assertEquals(5, ledger.get(1, 1, 1));
+
+        assertEquals(4, ledger.addAll(1, 1, 1, new long[]{3, -1, 2}, 3, balances));
+        assertArrayEquals(new long[]{8, 7, 9}, balances);
+        assertEquals(9, ledger.get(1, 1, 1));
+    }
+
+    @Test
+    void changeIsLoggedBeforeItIsSeen() throws Exception {
+        Ledger ledger = new Ledger();
+        ledger.add(1, 1, 1, 5);
+        List<Long> logged = new ArrayList<>();
+        long[] before = {5};
+        Ledger.ChangeLog log = (idHigh, idMiddle, idLow, change) -> {
+            // the new balance is not there yet
+            assertEquals(before[0], ledger.get(1, 1, 1));
+            logged.add(change);
+        };
+        assertEquals(8, ledger.add(1, 1, 1, 3, log));
+        before[0] = 8;
+        long[] balances = new long[2];
+        assertEquals(-1, ledger.addAll(1, 1, 1, new long[]{2, -3}, 2, balances, log));
+        // a batch that changes nothing in all is not logged
+        ledger.addAll(1, 1, 1, new long[]{4, -4}, 2, balances, log);
+        assertEquals(List.of(3L, -1L), logged);
+        assertEquals(7, ledger.get(1, 1, 1));
+    }
+
+    @Test
+    void failedLogLeavesBalance() {
+        Ledger ledger = new Ledger();
+        ledger.trackState();
+        ledger.add(1, 1, 1, 5);
+        Ledger.ChangeLog failing = (idHigh, idMiddle, idLow, change) -> {
+            throw new IOException("disk full");
+        };
+        assertThrows(IOException.class, () -> ledger.add(1, 1, 1, 3, failing));
+        assertThrows(IOException.class, () -> ledger.addAll(1, 1, 1, new long[]{1, 2}, 2, new long[2], failing));
+        assertEquals(5, ledger.get(1, 1, 1));
+        // nor is a new account created
+        assertThrows(IOException.class, () -> ledger.add(2, 2, 2, 3, failing));
+        assertEquals(1, ledger.size());
+        assertEquals(5, ledger.snapshot().prove(1, 1, 1).balance());
+        assertEquals(0, ledger.snapshot().prove(2, 2, 2).balance());
+    }
+
+    @Test
+    void replayWraps() {
+        Ledger ledger = new Ledger();
+        ledger.replay(1, 1, 1, Long.MAX_VALUE);
+        ledger.replay(1, 1, 1, 2);
+        ledger.replay(1, 1, 1, -2);
+        assertEquals(Long.MAX_VALUE, ledger.get(1, 1, 1));
+    }
+
+    @Test
+    void idBytesRoundTrip() {
+        byte[] id = Ledger.idBytes("-123456789012345678901234567890");
+        long high = Ledger.idHigh(id, 0);
+        long middle = Ledger.idMiddle(id, 0);
+        int low = Ledger.idLow(id, 0);
+        assertArrayEquals(id, Ledger.idBytes(high, middle, low));
+        assertEquals("-123456789012345678901234567890", Ledger.idString(high, middle, low));
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ *  ReplicationFollowerTest.java follows a primary, a ReplicationPrimary and
+ *  one played by the test, and checks the ledger of the follower, when it
+ *  may be read, and its lag: also across a reconnect, while the new
+ *  snapshot is only partly loaded.
+ */
+
+package ethereumcontract;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplicationFollowerTest {
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+
+    private static DataOutputStream stream(Socket socket) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    private static void account(DataOutputStream out, long id, long balance) throws IOException {
+        out.writeLong(id);
+        out.writeLong(id);
+        out.writeInt((int) id);
+        out.writeLong(balance);
+    }
+
+    @Test
+    void followsReplicationPrimary() throws Exception {
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        Ledger primaryLedger = new Ledger();
+        primaryLedger.add(1, 1, 1, 10);
+        ReplicationPrimary primary = new ReplicationPrimary(primaryLedger, InetAddress.getLoopbackAddress(), port);
+
+        Ledger ledger = new Ledger();
+        ReplicationFollower follower = new ReplicationFollower("127.0.0.1:" + port, ledger);
+        await(follower::synced);
+        assertEquals(10, ledger.get(1, 1, 1));
+        assertTrue(follower.lagMillis() < 1000, "lag " + follower.lagMillis());
+
+        // a change published the way the server does it
+        Lock lock = primary.updates();
+        lock.lock();
+        try {
+            primaryLedger.add(2, 2, 2, 7, (h, m, l, change) -> primary.publish(h, m, l, change));
+        } finally {
+            lock.unlock();
+        }
+        await(() -> ledger.get(2, 2, 2) == 7);
+        assertEquals(1, primary.followers());
+    }
+
+    @Test
+    void reloadsSnapshotAfterReconnect() throws Exception {
+        try (ServerSocket listen = new ServerSocket(0)) {
+            Ledger ledger = new Ledger();
+            ReplicationFollower follower = new ReplicationFollower("127.0.0.1:" + listen.getLocalPort(), ledger);
+
+            try (Socket first = listen.accept()) {
+                DataOutputStream out = stream(first);
+                out.writeByte(ReplicationPrimary.SNAPSHOT);
+                out.writeLong(2);
+                account(out, 1, 5);
+                account(out, 2, 6);
+                // a copy five seconds old
+                out.writeLong(System.currentTimeMillis() - 5000);
+                out.writeByte(ReplicationPrimary.DELTA);
+                account(out, 1, 3);
+                // the delta record ends with the time it was published
+                out.writeLong(System.currentTimeMillis() - 4000);
+                out.flush();
+                await(() -> ledger.get(1, 1, 1) == 8);
+                assertTrue(follower.synced());
+                long lag = follower.lagMillis();
+                assertTrue(lag >= 4000 && lag < 6000, "lag " + lag);
+            }
+
+            try (Socket second = listen.accept()) {
+                DataOutputStream out = stream(second);
+                out.writeByte(ReplicationPrimary.SNAPSHOT);
+                out.writeLong(2);
+                account(out, 1, 50);
+                out.flush();
+                // half loaded, the replica must not be read
+                await(() -> ledger.get(1, 1, 1) == 50);
+                assertFalse(follower.synced());
+                assertEquals(6, ledger.get(2, 2, 2));
+
+                account(out, 2, 60);
+                out.writeLong(System.currentTimeMillis());
+                out.flush();
+                await(follower::synced);
+                assertEquals(60, ledger.get(2, 2, 2));
+                // the lag is that of the new snapshot, without a heartbeat
+                assertTrue(follower.lagMillis() < 1000, "lag " + follower.lagMillis());
+            }
+        }
+    }
+}
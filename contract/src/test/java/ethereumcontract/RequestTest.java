@@ -0,0 +1,157 @@
+/**
+ *  RequestTest.java checks how VerifyingServerTCP.Request cuts a text line
+ *  into its fields: signed requests, batches and session lines, and the
+ *  malformed lines it must refuse.
+ */
+
+package ethereumcontract;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RequestTest {
+
+    private static final String MAC = "0123456789abcdef".repeat(4);
+
+    private static VerifyingServerTCP.Request parse(String line) {
+        // the line sits inside a larger buffer, as it does in LineReader
+        byte[] buf = ("xx" + line + "\nyy").getBytes(StandardCharsets.UTF_8);
+        return new VerifyingServerTCP.Request().parse(buf, 2, line.length());
+    }
+
+    private static String field(VerifyingServerTCP.Request request, int off, int len) {
+        return new String(request.buf, off, len, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void signedRequest() {
+        VerifyingServerTCP.Request request = parse("123,65537987,add,-42;456789");
+        assertEquals(-1, request.sequence);
+        assertEquals("123", field(request, request.idOffset, request.idLength));
+        assertEquals("65537987", field(request, request.keyOffset, request.keyLength));
+        assertEquals(Operation.ADD, request.operation);
+        assertEquals(-42, request.operand);
+        assertEquals("123,65537987,add,-42", field(request, request.messageOffset, request.messageLength));
+        assertEquals("456789", field(request, request.signatureOffset, request.signatureLength));
+    }
+
+    @Test
+    void operandLimits() {
+        assertEquals(Integer.MAX_VALUE, parse("1,2,min,2147483647;3").operand);
+        assertEquals(Integer.MIN_VALUE, parse("1,2,min,-2147483648;3").operand);
+        assertEquals(7, parse("1,2,get,+7;3").operand);
+        assertThrows(IllegalArgumentException.class, () -> parse("1,2,min,2147483648;3"));
+        assertThrows(IllegalArgumentException.class, () -> parse("1,2,min,-2147483649;3"));
+        assertThrows(IllegalArgumentException.class, () -> parse("1,2,min,-;3"));
+    }
+
+    @Test
+    void batch() {
+        VerifyingServerTCP.Request request = parse("1,2,batch,add:5|min:-3|get:0;99");
+        assertEquals(Operation.BATCH, request.operation);
+        assertEquals(3, request.batchSize);
+        assertEquals(Operation.ADD, request.batchOperations[0]);
+        assertEquals(5, request.batchOperands[0]);
+        assertEquals(Operation.MIN, request.batchOperations[1]);
+        assertEquals(-3, request.batchOperands[1]);
+        assertEquals(Operation.GET, request.batchOperations[2]);
+        assertEquals(0, request.batchOperands[2]);
+        assertEquals("1,2,batch,add:5|min:-3|get:0", field(request, request.messageOffset, request.messageLength));
+    }
+
+    @Test
+    void batchGrowsItsArrays() {
+        StringBuilder line = new StringBuilder("1,2,batch,");
+        for (int i = 0; i < 100; i++) {
+            line.append(i > 0 ? "|" : "").append("add:").append(i);
+        }
+        VerifyingServerTCP.Request request = parse(line.append(";9").toString());
+        assertEquals(100, request.batchSize);
+        assertEquals(99, request.batchOperands[99]);
+    }
+
+    @Test
+    void badBatches() {
+        assertThrows(IllegalArgumentException.class, () -> parse("1,2,batch,add:5|;9"));
+        assertThrows(IllegalArgumentException.class, () -> parse("1,2,batch,batch:5;9"));
+        assertThrows(IllegalArgumentException.class, () -> parse("1,2,batch,add5;9"));
+        assertThrows(IllegalArgumentException.class, () -> parse("1,2,batch,mul:5;9"));
+        // a session is no ledger operation, wherever it is in the batch
+        assertThrows(IllegalArgumentException.class, () -> parse("1,2,batch,session:0|add:5;9"));
+        assertThrows(IllegalArgumentException.class, () -> parse("1,2,batch,add:5|session:0;9"));
+        assertThrows(IllegalArgumentException.class, () -> parse("@1,batch,session:0;" + MAC));
+        StringBuilder tooLong = new StringBuilder("1,2,batch,");
+        for (int i = 0; i <= VerifyingServerTCP.Request.MAX_BATCH_OPERATIONS; i++) {
+            tooLong.append(i > 0 ? "|" : "").append("add:1");
+        }
+        assertThrows(IllegalArgumentException.class, () -> parse(tooLong.append(";9").toString()));
+    }
+
+    @Test
+    void sessionLine() {
+        VerifyingServerTCP.Request request = parse("@17,min,8;" + MAC);
+        assertEquals(17, request.sequence);
+        assertEquals(-1, request.idOffset);
+        assertEquals(0, request.keyLength);
+        assertEquals(Operation.MIN, request.operation);
+        assertEquals(8, request.operand);
+        assertEquals("@17,min,8", field(request, request.messageOffset, request.messageLength));
+        assertEquals(MAC, field(request, request.signatureOffset, request.signatureLength));
+    }
+
+    @Test
+    void sessionBatch() {
+        VerifyingServerTCP.Request request = parse("@1,batch,add:1|add:2;" + MAC);
+        assertEquals(1, request.sequence);
+        assertEquals(2, request.batchSize);
+    }
+
+    @Test
+    void badSessionLines() {
+        // the mac must be exactly as long as a hex HMAC-SHA256
+        assertThrows(IllegalArgumentException.class, () -> parse("@1,add,1;" + MAC.substring(1)));
+        assertThrows(IllegalArgumentException.class, () -> parse("@,add,1;" + MAC));
+        assertThrows(IllegalArgumentException.class, () -> parse("@1x,add,1;" + MAC));
+        assertThrows(IllegalArgumentException.class, () -> parse("@99999999999999999999,add,1;" + MAC));
+        // a session is not started from inside one
+        assertThrows(IllegalArgumentException.class, () -> parse("@1,session,0;" + MAC));
+    }
+
+    @Test
+    void malformedLines() {
+        assertThrows(IllegalArgumentException.class, () -> parse(""));
+        assertThrows(IllegalArgumentException.class, () -> parse("1,2,add,5"));
+        assertThrows(IllegalArgumentException.class, () -> parse("1,2,add,5;"));
+        assertThrows(IllegalArgumentException.class, () -> parse("1,2,add,5;12a"));
+        assertThrows(IllegalArgumentException.class, () -> parse("1,2,put,5;1"));
+        assertThrows(IllegalArgumentException.class, () -> parse("1,2,add,5x;1"));
+        String longKey = "9".repeat(VerifyingServerTCP.Request.MAX_KEY_DIGITS + 1);
+        assertThrows(IllegalArgumentException.class, () -> parse("1," + longKey + ",add,5;1"));
+        String longSignature = "9".repeat(VerifyingServerTCP.Request.MAX_SIGNATURE_DIGITS + 1);
+        assertThrows(IllegalArgumentException.class, () -> parse("1,2,add,5;" + longSignature));
+    }
+
+    @Test
+    void signatureFromDigits() {
+        for (String digits : new String[]{"0", "7", "123456789", "1234567890",
+                "9".repeat(617), "1" + "0".repeat(1000)}) {
+            assertEquals(new BigInteger(digits), parse("1,2,add,5;" + digits).signature());
+        }
+    }
+
+    @Test
+    void requestIsReused() {
+        VerifyingServerTCP.Request request = new VerifyingServerTCP.Request();
+        byte[] session = ("@3,add,1;" + MAC).getBytes(StandardCharsets.UTF_8);
+        request.parse(session, 0, session.length);
+        byte[] signed = "5,6,get,0;1".getBytes(StandardCharsets.UTF_8);
+        request.parse(signed, 0, signed.length);
+        assertEquals(-1, request.sequence);
+        assertEquals("5", field(request, request.idOffset, request.idLength));
+    }
+}
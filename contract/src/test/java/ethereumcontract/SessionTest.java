@@ -0,0 +1,129 @@
+/**
+ *  SessionTest.java runs the handshake of a Session between a client and
+ *  a server side and checks which session lines the server accepts: only
+ *  authentic ones, each sequence number once and in increasing order.
+ */
+
+package ethereumcontract;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionTest {
+
+    private static SigningClientTCP signer;
+    private static IdentityCache.Identity identity;
+
+    private Session server;
+    private Session client;
+
+    @BeforeAll
+    static void keys() throws Exception {
+        // small primes are enough for the handshake
+        signer = SigningClientTCP.generateKeys(new Random(3), 256);
+        identity = new IdentityCache.Identity(signer.idStr, signer.e, signer.n);
+    }
+
+    @BeforeEach
+    void handshake() {
+        server = new Session();
+        byte[] reply = server.start(identity);
+        client = Session.open(signer, new String(reply, StandardCharsets.US_ASCII));
+    }
+
+    private IdentityCache.Identity check(Session session, String line) {
+        byte[] buf = line.getBytes(StandardCharsets.US_ASCII);
+        return session.check(new VerifyingServerTCP.Request().parse(buf, 0, buf.length));
+    }
+
+    @Test
+    void acceptsLinesInOrder() {
+        assertSame(identity, check(server, client.request(5, "add")));
+        assertSame(identity, check(server, client.request(3, "min")));
+        assertSame(identity, check(server, client.batchRequest(new int[]{1, 2}, new String[]{"add", "min"})));
+    }
+
+    @Test
+    void rejectsReplayedLine() {
+        String line = client.request(5, "add");
+        assertSame(identity, check(server, line));
+        assertNull(check(server, line));
+    }
+
+    @Test
+    void rejectsLineOlderThanLastAccepted() {
+        String first = client.request(1, "add");
+        String second = client.request(2, "add");
+        assertSame(identity, check(server, second));
+        assertNull(check(server, first));
+    }
+
+    @Test
+    void skippedSequenceNumbersAreFine() {
+        client.request(1, "add");
+        client.request(2, "add");
+        assertSame(identity, check(server, client.request(3, "add")));
+    }
+
+    @Test
+    void rejectsTamperedLine() {
+        String line = client.request(5, "add");
+        // the operand changed, the mac did not
+        assertNull(check(server, line.replace("add,5;", "add,6;")));
+        // nor does a rejected line use up its sequence number
+        assertSame(identity, check(server, line));
+    }
+
+    @Test
+    void rejectsBadMac() {
+        String line = client.request(5, "add");
+        int last = line.length() - 1;
+        String flipped = line.substring(0, last) + (line.charAt(last) == '0' ? '1' : '0');
+        assertNull(check(server, flipped));
+        // upper case hex is not the mac either
+        assertNull(check(server, line.substring(0, line.indexOf(';') + 1) + line.substring(line.indexOf(';') + 1).toUpperCase()));
+    }
+
+    @Test
+    void rejectsLineOfAnotherSession() {
+        Session other = new Session();
+        other.start(identity);
+        assertNull(check(other, client.request(1, "add")));
+    }
+
+    @Test
+    void rejectsLineWithoutSession() {
+        assertNull(check(new Session(), client.request(1, "add")));
+    }
+
+    @Test
+    void newHandshakeReplacesSession() {
+        String old = client.request(1, "add");
+        byte[] reply = server.start(identity);
+        client = Session.open(signer, new String(reply, StandardCharsets.US_ASCII));
+        assertNull(check(server, old));
+        // the sequence numbers start over
+        assertSame(identity, check(server, client.request(1, "add")));
+    }
+
+    @Test
+    void recognizesSessionLines() {
+        byte[] session = client.request(1, "get").getBytes(StandardCharsets.US_ASCII);
+        assertTrue(Session.isSessionLine(session, 0, session.length));
+        byte[] handshake = "12,6553799,session,0;123".getBytes(StandardCharsets.US_ASCII);
+        assertTrue(Session.isSessionLine(handshake, 0, handshake.length));
+        byte[] signed = "12,6553799,add,0;123".getBytes(StandardCharsets.US_ASCII);
+        assertFalse(Session.isSessionLine(signed, 0, signed.length));
+        assertEquals(Session.MAC_HEX_LENGTH, client.request(1, "get").split(";")[1].length());
+    }
+}
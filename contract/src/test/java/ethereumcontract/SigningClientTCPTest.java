@@ -0,0 +1,66 @@
+/**
+ *  SigningClientTCPTest.java checks that a signer with the primes, which
+ *  signs through the Chinese Remainder Theorem, gives the very signatures
+ *  of m^d mod n, and that VerifyingServerTCP accepts them.
+ */
+
+package ethereumcontract;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SigningClientTCPTest {
+
+    private static SigningClientTCP crt;
+    private static SigningClientTCP plain;
+    private static VerifyingServerTCP verifier;
+
+    @BeforeAll
+    static void keys() throws Exception {
+        // small primes are enough to check the arithmetic
+        crt = SigningClientTCP.generateKeys(new Random(9), 256);
+        assertNotNull(crt.p);
+        plain = new SigningClientTCP(crt.e, crt.d, crt.n);
+        verifier = new VerifyingServerTCP(crt.e, crt.n);
+    }
+
+    @Test
+    void crtSignatureIsThePlainOne() throws Exception {
+        Random rnd = new Random(13);
+        for (int i = 0; i < 500; i++) {
+            String message = "1234,65537" + i + ",add," + rnd.nextInt();
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            BigInteger signature = crt.sign(bytes, 0, bytes.length);
+            assertEquals(plain.sign(bytes, 0, bytes.length), signature);
+            assertEquals(plain.sign(message), crt.sign(message));
+            assertTrue(verifier.verify(bytes, 0, bytes.length, signature));
+            assertTrue(verifier.verify(message, crt.sign(message)));
+            assertFalse(verifier.verify(message + "0", crt.sign(message)));
+        }
+    }
+
+    @Test
+    void crtDecryptIsModPowForAnyValueBelowN() {
+        Random rnd = new Random(17);
+        BigInteger n = crt.n;
+        BigInteger one = BigInteger.ONE;
+        // the edges, and values that are 0 modulo one of the primes
+        BigInteger[] edges = {BigInteger.ZERO, one, n.subtract(one), crt.p, crt.q, crt.p.multiply(BigInteger.TWO)};
+        for (BigInteger m : edges) {
+            assertEquals(m.modPow(crt.d, n), crt.decrypt(m), "m = " + m);
+        }
+        for (int i = 0; i < 500; i++) {
+            BigInteger m = new BigInteger(n.bitLength(), rnd).mod(n);
+            assertEquals(m.modPow(crt.d, n), crt.decrypt(m));
+        }
+    }
+}
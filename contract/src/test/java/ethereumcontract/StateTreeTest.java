@@ -0,0 +1,160 @@
+/**
+ *  StateTreeTest.java checks the proofs of StateTree: verify accepts what
+ *  prove makes, for accounts and for ids without one, and refuses a proof
+ *  that was changed, cut short or given with the wrong balance, id or root.
+ */
+
+package ethereumcontract;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StateTreeTest {
+
+    private static final int ACCOUNTS = 500;
+
+    private Ledger ledger;
+    private long[] highs = new long[ACCOUNTS], middles = new long[ACCOUNTS], balances = new long[ACCOUNTS];
+    private int[] lows = new int[ACCOUNTS];
+
+    @BeforeEach
+    void accounts() {
+        ledger = new Ledger();
+        ledger.trackState();
+        Random rnd = new Random(5);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            // a first bit of 0, so the segments of negative ids stay empty
+            highs[i] = rnd.nextLong() >>> 1;
+            middles[i] = rnd.nextLong();
+            lows[i] = rnd.nextInt();
+            balances[i] = 1 + rnd.nextInt(1000);
+            ledger.add(highs[i], middles[i], lows[i], balances[i]);
+        }
+    }
+
+    private static boolean verify(StateTree.Proof proof, long idHigh, long idMiddle, int idLow, long balance) {
+        return StateTree.verify(proof.root(), idHigh, idMiddle, idLow, balance, proof.path());
+    }
+
+    @Test
+    void provesEveryAccount() {
+        StateTree.Snapshot snapshot = ledger.snapshot();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            StateTree.Proof proof = snapshot.prove(highs[i], middles[i], lows[i]);
+            assertEquals(balances[i], proof.balance());
+            assertArrayEquals(snapshot.root(), proof.root());
+            assertTrue(verify(proof, highs[i], middles[i], lows[i], balances[i]));
+            assertFalse(verify(proof, highs[i], middles[i], lows[i], balances[i] + 1));
+            assertFalse(verify(proof, highs[i], middles[i], lows[i], 0));
+            // nor is it the proof of another account
+            int j = (i + 1) % ACCOUNTS;
+            assertFalse(verify(proof, highs[j], middles[j], lows[j], balances[i]));
+            assertFalse(verify(proof, highs[i], middles[i], lows[i] ^ 1, balances[i]));
+        }
+    }
+
+    @Test
+    void provesMissingAccountNextToAnother() {
+        StateTree.Snapshot snapshot = ledger.snapshot();
+        // the same id but for its last bit is not in the ledger
+        StateTree.Proof proof = snapshot.prove(highs[0], middles[0], lows[0] ^ 1);
+        assertEquals(0, proof.balance());
+        assertEquals(1, proof.path()[0]);
+        assertTrue(verify(proof, highs[0], middles[0], lows[0] ^ 1, 0));
+        assertFalse(verify(proof, highs[0], middles[0], lows[0] ^ 1, 1));
+        // the account it ends at does exist
+        assertFalse(verify(proof, highs[0], middles[0], lows[0], 0));
+        // an id in another segment leaves the path, it is not missing by this proof
+        assertFalse(verify(proof, highs[0] ^ (1L << 58), middles[0], lows[0], 0));
+    }
+
+    @Test
+    void provesMissingAccountInEmptySegment() {
+        StateTree.Snapshot snapshot = ledger.snapshot();
+        StateTree.Proof proof = snapshot.prove(-1L, 7, 7);
+        assertEquals(0, proof.balance());
+        assertEquals(2, proof.path()[0]);
+        assertTrue(verify(proof, -1L, 7, 7, 0));
+        assertFalse(verify(proof, -1L, 7, 7, 5));
+        // a segment with accounts is not proven empty
+        assertFalse(verify(proof, highs[0], middles[0], lows[0], 0));
+    }
+
+    @Test
+    void provesAccountOfLedgerWithOneAccount() {
+        Ledger single = new Ledger();
+        single.trackState();
+        single.add(1, 2, 3, 4);
+        StateTree.Proof proof = single.snapshot().prove(1, 2, 3);
+        assertTrue(verify(proof, 1, 2, 3, 4));
+        // only the 6 segment levels over the leaf
+        assertEquals(2 + StateTree.SEGMENT_BITS * (1 + StateTree.HASH_LENGTH), proof.path().length);
+    }
+
+    @Test
+    void refusesChangedProofs() {
+        StateTree.Snapshot snapshot = ledger.snapshot();
+        StateTree.Proof[] proofs = {
+                snapshot.prove(highs[3], middles[3], lows[3]),
+                snapshot.prove(highs[3], middles[3], lows[3] ^ 1),
+                snapshot.prove(-1L, 7, 7)};
+        long[][] ids = {{highs[3], middles[3], lows[3], balances[3]},
+                {highs[3], middles[3], lows[3] ^ 1, 0}, {-1L, 7, 7, 0}};
+        for (int p = 0; p < proofs.length; p++) {
+            long[] id = ids[p];
+            byte[] path = proofs[p].path();
+            for (int i = 0; i < path.length; i++) {
+                for (int flip : new int[]{1, 0x80}) {
+                    byte[] changed = path.clone();
+                    changed[i] ^= flip;
+                    assertFalse(StateTree.verify(proofs[p].root(), id[0], id[1], (int) id[2], id[3], changed),
+                            "byte " + i + " of proof " + p);
+                }
+            }
+            // cut short anywhere, or with a byte too many
+            for (int length = 0; length < path.length; length++) {
+                assertFalse(StateTree.verify(proofs[p].root(), id[0], id[1], (int) id[2], id[3],
+                        Arrays.copyOf(path, length)));
+            }
+            assertFalse(StateTree.verify(proofs[p].root(), id[0], id[1], (int) id[2], id[3],
+                    Arrays.copyOf(path, path.length + 1)));
+        }
+    }
+
+    @Test
+    void oldSnapshotKeepsItsRoot() {
+        StateTree.Snapshot before = ledger.snapshot();
+        byte[] root = before.root().clone();
+        ledger.add(highs[7], middles[7], lows[7], 10);
+        StateTree.Snapshot after = ledger.snapshot();
+
+        assertArrayEquals(root, before.root());
+        assertFalse(Arrays.equals(root, after.root()));
+        StateTree.Proof old = before.prove(highs[7], middles[7], lows[7]);
+        StateTree.Proof now = after.prove(highs[7], middles[7], lows[7]);
+        assertTrue(verify(old, highs[7], middles[7], lows[7], balances[7]));
+        assertTrue(verify(now, highs[7], middles[7], lows[7], balances[7] + 10));
+        // a proof only holds under the root it was made for
+        assertFalse(StateTree.verify(after.root(), highs[7], middles[7], lows[7], balances[7], old.path()));
+        // the accounts that did not change are proven under the new root too
+        assertTrue(verify(after.prove(highs[8], middles[8], lows[8]), highs[8], middles[8], lows[8], balances[8]));
+    }
+
+    @Test
+    void rootDoesNotDependOnOrder() {
+        Ledger reversed = new Ledger();
+        reversed.trackState();
+        for (int i = ACCOUNTS - 1; i >= 0; i--) {
+            reversed.add(highs[i], middles[i], lows[i], balances[i]);
+        }
+        assertArrayEquals(ledger.snapshot().root(), reversed.snapshot().root());
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ *  WriteAheadLogTest.java checks that a ledger is recovered from its log:
+ *  up to a torn or corrupt record at the end, across files the log rolled
+ *  over to, and from the snapshot the closed files are compacted into.
+ */
+
+package ethereumcontract;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class WriteAheadLogTest {
+
+    // the background roll over never happens during a test
+    private static final int SNAPSHOT_SECONDS = 3600;
+
+    @TempDir
+    Path dir;
+
+    private Ledger recover(int fileSize) throws Exception {
+        Ledger ledger = new Ledger();
+        WriteAheadLog.open(dir, ledger, fileSize, SNAPSHOT_SECONDS);
+        // the files the recovery read are compacted in the background
+        settle();
+        return ledger;
+    }
+
+    /**
+     * Waits until the compactor has folded every closed log file into one
+     * snapshot, leaving only that and the open log file.
+     */
+    private void settle() throws Exception {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while ((files("snapshot-*.dat").size() != 1 || files("wal-*.log").size() != 1)
+                && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private List<Path> files(String glob) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> dir.getFileSystem().getPathMatcher("glob:" + glob).matches(p.getFileName()))
+                    .sorted().toList();
+        }
+    }
+
+    @Test
+    void recoversSyncedRecords() throws Exception {
+        WriteAheadLog wal = WriteAheadLog.open(dir, new Ledger(), 1 << 20, SNAPSHOT_SECONDS);
+        wal.append(1, 2, 3, 10);
+        wal.append(1, 2, 3, -4);
+        wal.append(4, 5, 6, 7);
+        wal.sync();
+
+        Ledger ledger = recover(1 << 20);
+        assertEquals(2, ledger.size());
+        assertEquals(6, ledger.get(1, 2, 3));
+        assertEquals(7, ledger.get(4, 5, 6));
+    }
+
+    @Test
+    void stopsAtTornRecord() throws Exception {
+        WriteAheadLog wal = WriteAheadLog.open(dir, new Ledger(), 1 << 20, SNAPSHOT_SECONDS);
+        wal.append(1, 1, 1, 10);
+        wal.append(2, 2, 2, 20);
+        wal.sync();
+        // a crash in the middle of the second record
+        Path log = files("wal-*.log").get(0);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(WriteAheadLog.RECORD_SIZE + WriteAheadLog.RECORD_SIZE / 2);
+        }
+
+        Ledger ledger = recover(1 << 20);
+        assertEquals(1, ledger.size());
+        assertEquals(10, ledger.get(1, 1, 1));
+    }
+
+    @Test
+    void stopsAtRecordWithBadCrc() throws Exception {
+        WriteAheadLog wal = WriteAheadLog.open(dir, new Ledger(), 1 << 20, SNAPSHOT_SECONDS);
+        wal.append(1, 1, 1, 10);
+        wal.append(2, 2, 2, 20);
+        wal.append(3, 3, 3, 30);
+        wal.sync();
+        // flip a bit of the delta of the second record
+        Path log = files("wal-*.log").get(0);
+        byte[] bytes = Files.readAllBytes(log);
+        bytes[WriteAheadLog.RECORD_SIZE + 27] ^= 1;
+        Files.write(log, bytes);
+
+        // the records after the bad one are not replayed either
+        Ledger ledger = recover(1 << 20);
+        assertEquals(1, ledger.size());
+        assertEquals(10, ledger.get(1, 1, 1));
+        assertEquals(0, ledger.get(3, 3, 3));
+    }
+
+    @Test
+    void rollsOverAndCompacts() throws Exception {
+        int fileSize = 10 * WriteAheadLog.RECORD_SIZE;
+        WriteAheadLog wal = WriteAheadLog.open(dir, new Ledger(), fileSize, SNAPSHOT_SECONDS);
+        // 25 records fill two files and start a third
+        for (int i = 0; i < 25; i++) {
+            wal.append(i % 4, 0, 0, i);
+        }
+        wal.sync();
+
+        // the compactor folds the two full files into a snapshot, then deletes them
+        settle();
+        assertEquals(List.of(dir.resolve("snapshot-000000000002.dat")), files("snapshot-*.dat"));
+        assertEquals(List.of(dir.resolve("wal-000000000003.log")), files("wal-*.log"));
+
+        // the snapshot and the file after it give back every record
+        Ledger ledger = recover(fileSize);
+        for (int account = 0; account < 4; account++) {
+            long expected = 0;
+            for (int i = account; i < 25; i += 4) {
+                expected += i;
+            }
+            assertEquals(expected, ledger.get(account, 0, 0));
+        }
+    }
+
+    @Test
+    void explicitRollStartsNewFile() throws Exception {
+        WriteAheadLog wal = WriteAheadLog.open(dir, new Ledger(), 1 << 20, SNAPSHOT_SECONDS);
+        wal.append(1, 1, 1, 5);
+        wal.roll();
+        wal.append(1, 1, 1, 6);
+        wal.sync();
+        settle();
+        assertEquals(List.of(dir.resolve("snapshot-000000000001.dat")), files("snapshot-*.dat"));
+        assertEquals(List.of(dir.resolve("wal-000000000002.log")), files("wal-*.log"));
+
+        Ledger ledger = recover(1 << 20);
+        assertEquals(11, ledger.get(1, 1, 1));
+    }
+
+    @Test
+    void fileSizeIsRangeChecked() {
+        assertEquals(64 * 1024 * 1024, WriteAheadLog.fileSize("64"));
+        assertEquals(2047 * 1024 * 1024, WriteAheadLog.fileSize("2047"));
+        assertThrows(IllegalArgumentException.class, () -> WriteAheadLog.fileSize("2048"));
+        assertThrows(IllegalArgumentException.class, () -> WriteAheadLog.fileSize("0"));
+    }
+}